@@ -0,0 +1,403 @@
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Storage backend behind {@code Query}: one client session against some store of flights,
+ * users and reservations.
+ *
+ * {@code Query} picks the backend from the {@code flightservice.backend} property and forwards
+ * every call to it; see {@code Query} for the contract of each transaction. This class holds
+ * the per-session state and the response rendering that all backends share.
+ */
+abstract class Backend
+{
+  // Logged In User
+  String username; // customer username is unique
+
+  //Objects required
+  TreeMap<Integer,ArrayList<Query.Flight>> iternaries=new TreeMap<Integer,ArrayList<Query.Flight>>();
+  TreeMap<Integer, ArrayList<Query.Flight>> searchFlights = new TreeMap<Integer,ArrayList<Query.Flight>>();
+
+  // number of times this session was picked as a deadlock victim
+  int deadlocks;
+
+  // number of transactions of this session cut off by their deadline
+  int timeouts;
+
+  // signer of the itinerary tokens that searches hand out, or null; see ItineraryTokens
+  ItineraryTokens tokens;
+
+  // reusable buffer that search and reservation responses are rendered into
+  final ResponseWriter out = new ResponseWriter();
+
+  // runs the days of date-range searches; shared by all sessions, sized by the first configuration
+  private static volatile ExecutorService days;
+
+  // flights fly on days 1 to DAYS_IN_MONTH of one month
+  static final int DAYS_IN_MONTH = 31;
+
+  // direct itineraries before indirect ones, each fastest and then earliest first
+  private static final Comparator<ArrayList<Query.Flight>> DAY_ORDER =
+          Comparator.<ArrayList<Query.Flight>>comparingInt(i -> i.size() == 1 ? 0 : 1)
+                  .thenComparingInt(Backend::time)
+                  .thenComparingInt(i -> i.get(0).dayOfMonth);
+
+  /**
+   * Forgets what is cached about flights across sessions, after new flights were swapped in.
+   */
+  static void flightsReloaded()
+  {
+    FlightLines.clear();
+    JdbcBackend.forgetFlights();
+  }
+
+  /**
+   * @return a new, unopened session of the backend named by {@code flightservice.backend}
+   */
+  static Backend create(Properties configProps)
+  {
+    String name = configProps.getProperty("flightservice.backend", "jdbc").trim();
+    Backend backend;
+    if (name.equals("jdbc"))
+      backend = new JdbcBackend();
+    else if (name.equals("memory"))
+      backend = new MemoryBackend();
+    else if (name.equals("sharded"))
+      backend = new ShardedBackend();
+    else
+      throw new IllegalArgumentException("unknown flightservice.backend " + name);
+    backend.tokens = ItineraryTokens.open(configProps);
+    if (days == null)
+    {
+      synchronized (Backend.class)
+      {
+        if (days == null)
+        {
+          int threads = Integer.parseInt(configProps.getProperty("flightservice.search.parallelism", "4").trim());
+          days = Executors.newFixedThreadPool(Math.max(1, threads), r ->
+          {
+            Thread t = new Thread(r, "search-days");
+            t.setDaemon(true);
+            return t;
+          });
+        }
+      }
+    }
+    return backend;
+  }
+
+  /**
+   * Bounds the transaction about to run by {@code deadline}, a System.nanoTime() value, or
+   * not at all if it is 0. Backends that can block override this and {@link #endDeadline}.
+   */
+  void startDeadline(long deadline)
+  {
+  }
+
+  /**
+   * Called when the transaction started after {@link #startDeadline} has returned.
+   */
+  void endDeadline()
+  {
+  }
+
+  abstract void openConnection(Properties configProps) throws Exception;
+
+  abstract void prepareStatements() throws Exception;
+
+  abstract void closeConnection() throws Exception;
+
+  abstract void clearTables();
+
+  abstract String transaction_login(String username, String password);
+
+  abstract String transaction_createCustomer(String username, String password, int initAmount);
+
+  abstract String transaction_search(String originCity, String destinationCity, boolean directFlight, int dayOfMonth,
+                                     int numberOfItineraries);
+
+  /**
+   * Searches every day from {@code firstDay} to {@code lastDay} for up to
+   * {@code numberOfItineraries} itineraries in total. The days are searched in parallel on a
+   * pool of {@code flightservice.search.parallelism} threads shared by all sessions, with the
+   * session's own thread taking the first day. As on a single day, the fastest direct
+   * itineraries of all days come first and indirect ones fill the rest; the results are then
+   * sorted by total time, ties going to the earlier day. Flights fly on days 1 to
+   * {@link #DAYS_IN_MONTH}, so the range is clamped to those days before any are searched.
+   */
+  String transaction_searchDays(String originCity, String destinationCity, boolean directFlight, int firstDay,
+                                int lastDay, int numberOfItineraries)
+  {
+    searchFlights.clear();
+    firstDay = Math.max(1, firstDay);
+    lastDay = Math.min(DAYS_IN_MONTH, lastDay);
+    if (firstDay > lastDay || numberOfItineraries <= 0)
+      return "No flights match your selection\n";
+
+    List<Future<List<ArrayList<Query.Flight>>>> later = new ArrayList<>();
+    for (int day = firstDay + 1; day <= lastDay; day++)
+    {
+      int d = day;
+      later.add(days.submit(() -> searchDay(originCity, destinationCity, directFlight, d, numberOfItineraries,
+              false)));
+    }
+    ArrayList<ArrayList<Query.Flight>> all = new ArrayList<>();
+    try
+    {
+      all.addAll(searchDay(originCity, destinationCity, directFlight, firstDay, numberOfItineraries, false));
+      for (Future<List<ArrayList<Query.Flight>>> f : later)
+        all.addAll(f.get());
+    }
+    catch (Exception e)
+    {
+      for (Future<List<ArrayList<Query.Flight>>> f : later)
+        f.cancel(true);
+      EventLog.error(e instanceof ExecutionException ? e.getCause() : e);
+      return "Failed to search\n";
+    }
+
+    all.sort(DAY_ORDER);
+    List<ArrayList<Query.Flight>> best = all.subList(0, Math.min(numberOfItineraries, all.size()));
+    best.sort(Comparator.comparingInt(Backend::time));
+    TreeMap<Integer, ArrayList<Query.Flight>> found = new TreeMap<Integer, ArrayList<Query.Flight>>();
+    for (ArrayList<Query.Flight> itinerary : best)
+      found.computeIfAbsent(time(itinerary), t -> new ArrayList<Query.Flight>()).addAll(itinerary);
+    if (found.isEmpty())
+      return "No flights match your selection\n";
+    return flightAssorter(found, destinationCity);
+  }
+
+  /**
+   * @return the itineraries {@link #transaction_search} finds on {@code dayOfMonth}, direct ones
+   * first, or if {@code byPrice} the {@code numberOfItineraries} cheapest itineraries of at most
+   * two flights, cheapest first; runs on the pool of {@link #transaction_searchDays}, several
+   * days at once, so it must not touch the session's statements or search state
+   */
+  abstract List<ArrayList<Query.Flight>> searchDay(String originCity, String destinationCity, boolean directFlight,
+                                                   int dayOfMonth, int numberOfItineraries, boolean byPrice)
+          throws Exception;
+
+  static int time(List<Query.Flight> itinerary)
+  {
+    int time = 0;
+    for (Query.Flight f : itinerary)
+      time += f.time;
+    return time;
+  }
+
+  /**
+   * Searches outbound itineraries on {@code outboundDay} and return itineraries on
+   * {@code returnDay} as {@link #transaction_searchDays} searches a day, both at once, and
+   * ranks the (outbound, return) pairs by total time, or total price if {@code byPrice}. Each
+   * direction contributes the {@code numberOfItineraries} itineraries its own search would
+   * show, or its cheapest ones when ranking by price, which must hold the cheapest pairs; the
+   * best pairs among them are enumerated lazily from a heap seeded with the best of both, so
+   * the cross product is never built. Each pair is numbered like an itinerary and
+   * booked as a round trip.
+   */
+  String transaction_searchRoundTrip(String originCity, String destinationCity, boolean directFlight,
+                                     int outboundDay, int returnDay, int numberOfItineraries, boolean byPrice)
+  {
+    searchFlights.clear();
+    // both legs on one day could never be booked, as a user has one reservation per day
+    if (outboundDay >= returnDay || numberOfItineraries <= 0)
+      return "No flights match your selection\n";
+
+    List<ArrayList<Query.Flight>> outbound;
+    List<ArrayList<Query.Flight>> inbound;
+    Future<List<ArrayList<Query.Flight>>> later = days.submit(() ->
+            searchDay(destinationCity, originCity, directFlight, returnDay, numberOfItineraries, byPrice));
+    try
+    {
+      outbound = searchDay(originCity, destinationCity, directFlight, outboundDay, numberOfItineraries, byPrice);
+      inbound = later.get();
+    }
+    catch (Exception e)
+    {
+      later.cancel(true);
+      EventLog.error(e instanceof ExecutionException ? e.getCause() : e);
+      return "Failed to search\n";
+    }
+
+    Comparator<List<Query.Flight>> order = Comparator.comparingInt(byPrice ? Backend::price : Backend::time);
+    outbound.sort(order);
+    inbound.sort(order);
+    int[] a = new int[outbound.size()];
+    int[] b = new int[inbound.size()];
+    for (int i = 0; i < a.length; i++)
+      a[i] = byPrice ? price(outbound.get(i)) : time(outbound.get(i));
+    for (int j = 0; j < b.length; j++)
+      b[j] = byPrice ? price(inbound.get(j)) : time(inbound.get(j));
+
+    ResponseWriter result = out.reset();
+    int number = 0;
+    for (int[] pair : bestPairs(a, b, numberOfItineraries))
+    {
+      ArrayList<Query.Flight> trip = new ArrayList<Query.Flight>(outbound.get(pair[0]));
+      trip.addAll(inbound.get(pair[1]));
+      result.append(ResponseWriter.ITINERARY).append(number)
+              .append(ResponseWriter.COLON_SPACE).append(trip.size())
+              .append(ResponseWriter.FLIGHTS).append(time(trip))
+              .append(ResponseWriter.MINUTES);
+      for (Query.Flight f : trip)
+        FlightLines.write(result, f);
+      searchFlights.put(number++, trip);
+    }
+    if (number == 0)
+      return "No flights match your selection\n";
+    return result.toString();
+  }
+
+  /**
+   * @return the indexes {i, j} of the {@code k} pairs with the least {@code a[i] + b[j]}, least
+   * first and ties going to lower i, then lower j, for {@code a} and {@code b} sorted ascending
+   */
+  static List<int[]> bestPairs(int[] a, int[] b, int k)
+  {
+    List<int[]> best = new ArrayList<int[]>();
+    if (a.length == 0 || b.length == 0)
+      return best;
+    // {sum, i, j}; (i, j + 1) follows every pair and (i + 1, 0) the first of each row, so each
+    // pair enters the heap once, after the pairs that cannot be worse
+    PriorityQueue<int[]> next = new PriorityQueue<int[]>((x, y) ->
+            x[0] != y[0] ? Integer.compare(x[0], y[0]) : x[1] != y[1] ? Integer.compare(x[1], y[1])
+                    : Integer.compare(x[2], y[2]));
+    next.add(new int[] {a[0] + b[0], 0, 0});
+    while (best.size() < k && !next.isEmpty())
+    {
+      int[] p = next.poll();
+      int i = p[1];
+      int j = p[2];
+      best.add(new int[] {i, j});
+      if (j + 1 < b.length)
+        next.add(new int[] {a[i] + b[j + 1], i, j + 1});
+      if (j == 0 && i + 1 < a.length)
+        next.add(new int[] {a[i + 1] + b[0], i + 1, 0});
+    }
+    return best;
+  }
+
+  static int price(List<Query.Flight> itinerary)
+  {
+    int price = 0;
+    for (Query.Flight f : itinerary)
+      price += f.price;
+    return price;
+  }
+
+  abstract String transaction_book(int itineraryId);
+
+  /**
+   * Books the itinerary of a token handed out by a search of any session sharing the token
+   * secret; a token that is invalid or expired is reported as no such itinerary.
+   */
+  String transaction_book(String token)
+  {
+    if (username == null)
+      return "Cannot book reservations, not logged in\n";
+    ArrayList<Query.Flight> itinerary = tokens == null ? null : tokens.verify(token);
+    if (itinerary == null)
+      return "No such itinerary " + token + "\n";
+    return book(itinerary);
+  }
+
+  /**
+   * Books an itinerary of the last search of this session: a round trip if its flights span two
+   * days, see {@link #bookRoundTrip}, and otherwise as {@link #book}.
+   */
+  String bookSearched(ArrayList<Query.Flight> itinerary)
+  {
+    int split = 1;
+    while (split < itinerary.size() && itinerary.get(split).dayOfMonth == itinerary.get(0).dayOfMonth)
+      split++;
+    if (split == itinerary.size())
+      return book(itinerary);
+    return bookRoundTrip(new ArrayList<Query.Flight>(itinerary.subList(0, split)),
+            new ArrayList<Query.Flight>(itinerary.subList(split, itinerary.size())));
+  }
+
+  // a reservation holds at most this many flights; longer multi-stop itineraries can be searched but not booked
+  static final int MAX_BOOKED_FLIGHTS = 2;
+
+  // what book answers for an itinerary of more than MAX_BOOKED_FLIGHTS flights
+  static final String TOO_MANY_FLIGHTS = "Booking failed: itineraries of more than " + MAX_BOOKED_FLIGHTS
+          + " flights cannot be booked\n";
+
+  /**
+   * Books {@code itinerary} for the logged in user, as {@link #transaction_book(int)} does
+   * once it has found the itinerary; itineraries of more than {@link #MAX_BOOKED_FLIGHTS}
+   * flights get {@link #TOO_MANY_FLIGHTS}.
+   */
+  abstract String book(ArrayList<Query.Flight> itinerary);
+
+  /**
+   * Books both legs of a round trip, each on its own day, for the logged in user as one
+   * reservation per leg, all or nothing: if either leg cannot be booked, neither is.
+   *
+   * @return "Booked round trip, reservation IDs: [outbound id], [return id]\n", or what
+   * {@link #book} returns for the leg that failed
+   */
+  abstract String bookRoundTrip(ArrayList<Query.Flight> outbound, ArrayList<Query.Flight> inbound);
+
+  abstract String transaction_reservations();
+
+  abstract String transaction_cancel(int reservationId);
+
+  abstract String transaction_pay(int reservationId);
+
+  /**
+   * Renders itineraries grouped by total flight time and remembers them for booking. A group
+   * holds consecutive itineraries of the same duration, each ending with its flight into
+   * {@code destinationCity}. Itineraries too long to book get no token.
+   */
+  String flightAssorter(TreeMap<Integer,ArrayList<Query.Flight>> groupFlights,String destinationCity){
+    FlightEvents.Render event = new FlightEvents.Render();
+    event.begin();
+    ResponseWriter flightResult = out.reset();
+    int number = 0;
+    int flights = 0;
+
+    for (Map.Entry<Integer,ArrayList<Query.Flight>> pair : groupFlights.entrySet()) {
+      ArrayList<Query.Flight> schedules = pair.getValue();
+      int start = 0;
+      for (int i = 0; i < schedules.size(); i++) {
+        if (schedules.get(i).destCity.equals(destinationCity)) {
+          List<Query.Flight> fids_group = schedules.subList(start, i + 1);
+          flightResult.append(ResponseWriter.ITINERARY).append(number)
+                  .append(ResponseWriter.COLON_SPACE).append(fids_group.size())
+                  .append(ResponseWriter.FLIGHTS).append(pair.getKey().intValue())
+                  .append(ResponseWriter.MINUTES);
+          for (Query.Flight f1: fids_group) {
+            FlightLines.write(flightResult, f1);
+          }
+          if (tokens != null && fids_group.size() <= MAX_BOOKED_FLIGHTS) {
+            flightResult.append(ResponseWriter.TOKEN).append(tokens.issue(fids_group)).append(ResponseWriter.NEWLINE);
+          }
+          searchFlights.put(number, new ArrayList<Query.Flight>(fids_group));
+          number++;
+          flights += fids_group.size();
+          start = i + 1;
+        }
+      }
+    }
+    String result = flightResult.toString();
+    event.end();
+    if (event.shouldCommit())
+    {
+      event.itineraries = number;
+      event.flights = flights;
+      event.characters = result.length();
+      event.commit();
+    }
+    return result;
+  }
+}
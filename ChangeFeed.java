@@ -0,0 +1,342 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Local copy of the RESERVATIONS table, kept up to date by polling its {@code ver} rowversion
+ * column (see createTables.sql) so that reservation listings can be served without a round
+ * trip while all writes still go to the database.
+ *
+ * Every poll reads the next batch of rows whose {@code ver} is above the last one applied and
+ * below {@code MIN_ACTIVE_ROWVERSION()}, so rows of transactions that are still open are never
+ * skipped. Deleted rows are picked up from the DELETIONS table that the delete trigger fills.
+ * Changes of one poll are applied in rowversion order.
+ *
+ * The copy is fresh once a poll has reached the end of both tables; {@link #lagMillis} is the
+ * time since the start of the latest such poll, so every change committed before that moment
+ * is included. It is exported as the {@code Metrics} gauge {@code changeFeed.lagMillis}, next
+ * to {@code changeFeed.changes}.
+ */
+class ChangeFeed
+{
+  // one feed per database, shared by all sessions of the process
+  private static final Map<String, ChangeFeed> feeds = new ConcurrentHashMap<>();
+
+  private static final String MIN_ACTIVE = "SELECT MIN_ACTIVE_ROWVERSION()";
+  private static final String RESERVATIONS_CHANGED = "SELECT TOP (?) ver, rid, username, day, fid1, fid2, price1, "
+          + "price2, paid FROM reservations WHERE ver > ? AND ver < ? ORDER BY ver";
+  private static final String DELETIONS = "SELECT TOP (?) ver, k FROM deletions "
+          + "WHERE ver > ? AND ver < ? AND tbl = 'r' ORDER BY ver";
+
+  static final class Reservation
+  {
+    final int rid;
+    final String username;
+    final int day;
+    final int fid1;
+    final int fid2;
+    final int price1;
+    final int price2;
+    final int paid;
+
+    Reservation(int rid, String username, int day, int fid1, int fid2, int price1, int price2, int paid)
+    {
+      this.rid = rid;
+      this.username = username;
+      this.day = day;
+      this.fid1 = fid1;
+      this.fid2 = fid2;
+      this.price1 = price1;
+      this.price2 = price2;
+      this.paid = paid;
+    }
+  }
+
+  // one row change read by a poll, applied in ver order
+  private static final class Change
+  {
+    final long ver;
+    final char table; // 'r', or 'd' for a deletion
+    final Object row;
+
+    Change(long ver, char table, Object row)
+    {
+      this.ver = ver;
+      this.table = table;
+      this.row = row;
+    }
+  }
+
+  private final Properties configProps;
+  private final int batch;
+  private final long maxLagNanos;
+
+  private final ConcurrentHashMap<Integer, Reservation> reservations = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, TreeMap<Integer, Reservation>> byUser = new ConcurrentHashMap<>();
+
+  private Connection conn;
+  private long applied; // highest rowversion applied
+  private volatile long caughtUp; // System.nanoTime() at the start of the latest complete poll
+  private volatile boolean fresh;
+  private volatile long changes;
+
+  private ChangeFeed(Properties configProps, int batch, long maxLagMillis)
+  {
+    this.configProps = configProps;
+    this.batch = batch;
+    this.maxLagNanos = TimeUnit.MILLISECONDS.toNanos(maxLagMillis);
+  }
+
+  /**
+   * @return the feed for the configured database, started on first use, or null unless
+   * {@code flightservice.changefeed.millis} is set
+   */
+  static ChangeFeed open(Properties configProps)
+  {
+    int millis = Integer.parseInt(configProps.getProperty("flightservice.changefeed.millis", "0").trim());
+    if (millis <= 0)
+      return null;
+    return feeds.computeIfAbsent(configProps.getProperty("flightservice.url"), url ->
+    {
+      int batch = Integer.parseInt(configProps.getProperty("flightservice.changefeed.batch", "1000").trim());
+      long maxLag = Long.parseLong(configProps.getProperty("flightservice.changefeed.maxLagMillis", "1000").trim());
+      ChangeFeed feed = new ChangeFeed(configProps, batch, maxLag);
+      feed.start(millis);
+      Metrics.gauge("changeFeed.lagMillis", feed::lagMillis);
+      Metrics.gauge("changeFeed.changes", feed::changes);
+      return feed;
+    });
+  }
+
+  private void start(int millis)
+  {
+    ScheduledExecutorService poller = Executors.newSingleThreadScheduledExecutor(r ->
+    {
+      Thread t = new Thread(r, "change-feed");
+      t.setDaemon(true);
+      return t;
+    });
+    poller.scheduleWithFixedDelay(() ->
+    {
+      try
+      {
+        // keep going without waiting while there is a backlog
+        while (!poll())
+          ;
+      }
+      catch (Exception e)
+      {
+        // reconnect and carry on from the last applied change at the next poll
+        EventLog.error(e);
+        close();
+      }
+    }, 0, millis, TimeUnit.MILLISECONDS);
+  }
+
+  private void close()
+  {
+    try
+    {
+      if (conn != null)
+        conn.close();
+    }
+    catch (SQLException e)
+    {
+      // already broken
+    }
+    conn = null;
+  }
+
+  /**
+   * Reads and applies one batch of changes.
+   *
+   * @return true if the copy has caught up with everything committed before the poll started
+   */
+  boolean poll() throws Exception
+  {
+    long start = System.nanoTime();
+    if (conn == null)
+      conn = FlightsLoader.connect(configProps, false);
+
+    long end;
+    try (Statement s = conn.createStatement(); ResultSet rs = s.executeQuery(MIN_ACTIVE))
+    {
+      rs.next();
+      end = version(rs.getBytes(1));
+    }
+
+    List<Change> batchChanges = new ArrayList<>();
+    // when a table returns a full batch, changes after its last row may not all have been read
+    long limit = end - 1;
+    limit = Math.min(limit, read(RESERVATIONS_CHANGED, 'r', end, batchChanges));
+    limit = Math.min(limit, read(DELETIONS, 'd', end, batchChanges));
+
+    Collections.sort(batchChanges, (a, b) -> Long.compare(a.ver, b.ver));
+    for (Change c : batchChanges)
+    {
+      if (c.ver <= limit)
+        apply(c);
+    }
+    applied = Math.max(applied, limit);
+
+    boolean complete = limit == end - 1;
+    if (complete)
+    {
+      caughtUp = start;
+      fresh = true;
+    }
+    return complete;
+  }
+
+  // returns the last ver read if the batch was full, otherwise Long.MAX_VALUE
+  private long read(String sql, char table, long end, List<Change> out) throws SQLException
+  {
+    int rows = 0;
+    long last = Long.MAX_VALUE;
+    try (PreparedStatement ps = conn.prepareStatement(sql))
+    {
+      ps.setInt(1, batch);
+      ps.setBytes(2, bytes(applied));
+      ps.setBytes(3, bytes(end));
+      try (ResultSet rs = ps.executeQuery())
+      {
+        while (rs.next())
+        {
+          rows++;
+          last = version(rs.getBytes("ver"));
+          out.add(new Change(last, table, row(table, rs)));
+        }
+      }
+    }
+    return rows == batch ? last : Long.MAX_VALUE;
+  }
+
+  private static Object row(char table, ResultSet rs) throws SQLException
+  {
+    switch (table)
+    {
+      case 'r':
+        return new Reservation(rs.getInt("rid"), rs.getString("username"), rs.getInt("day"), rs.getInt("fid1"),
+                rs.getInt("fid2"), rs.getInt("price1"), rs.getInt("price2"), rs.getInt("paid"));
+      default:
+        return Integer.valueOf(rs.getString("k").trim());
+    }
+  }
+
+  private void apply(Change c)
+  {
+    changes++;
+    switch (c.table)
+    {
+      case 'r':
+      {
+        Reservation r = (Reservation) c.row;
+        removeReservation(r.rid);
+        reservations.put(r.rid, r);
+        TreeMap<Integer, Reservation> mine = byUser.computeIfAbsent(key(r.username), k -> new TreeMap<>());
+        synchronized (mine)
+        {
+          mine.put(r.rid, r);
+        }
+        break;
+      }
+      default:
+        removeReservation((Integer) c.row);
+        break;
+    }
+  }
+
+  private void removeReservation(int rid)
+  {
+    Reservation old = reservations.remove(rid);
+    if (old != null)
+    {
+      TreeMap<Integer, Reservation> mine = byUser.get(key(old.username));
+      if (mine != null)
+      {
+        synchronized (mine)
+        {
+          mine.remove(rid);
+        }
+      }
+    }
+  }
+
+  // user names compare case-insensitively, like the default collation of the database
+  private static String key(String username)
+  {
+    return username.toLowerCase();
+  }
+
+  // rowversion values are 8-byte big-endian counters
+  private static long version(byte[] ver)
+  {
+    long v = 0;
+    for (byte b : ver)
+      v = (v << 8) | (b & 0xff);
+    return v;
+  }
+
+  private static byte[] bytes(long version)
+  {
+    byte[] ver = new byte[8];
+    for (int i = 7; i >= 0; i--, version >>>= 8)
+      ver[i] = (byte) version;
+    return ver;
+  }
+
+  /**
+   * @return milliseconds since the start of the latest poll that caught up, or -1 if none has
+   */
+  long lagMillis()
+  {
+    return fresh ? TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - caughtUp) : -1;
+  }
+
+  /**
+   * @return the number of row changes applied so far
+   */
+  long changes()
+  {
+    return changes;
+  }
+
+  /**
+   * Whether the copy may answer a read for a session whose last write committed at
+   * {@code lastWrite} (a System.nanoTime() value, or 0 if it has not written): the copy must
+   * include that write and lag no more than {@code flightservice.changefeed.maxLagMillis}.
+   */
+  boolean freshFor(long lastWrite)
+  {
+    if (!fresh)
+      return false;
+    long at = caughtUp;
+    return (lastWrite == 0 || at - lastWrite > 0) && System.nanoTime() - at <= maxLagNanos;
+  }
+
+  /**
+   * @return the user's reservations in rid order
+   */
+  List<Reservation> reservations(String username)
+  {
+    TreeMap<Integer, Reservation> mine = byUser.get(key(username));
+    if (mine == null)
+      return Collections.emptyList();
+    synchronized (mine)
+    {
+      return new ArrayList<>(mine.values());
+    }
+  }
+}
@@ -0,0 +1,313 @@
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Process-wide log of errors, warnings and notices, and of audit records of bookings, payments
+ * and cancellations, written by one background thread so that sessions never wait for the disk
+ * or the console, for example while a SERIALIZABLE transaction still holds its locks.
+ *
+ * Sessions claim a slot in a preallocated ring of {@code flightservice.log.capacity} records
+ * with a compare-and-set on the next sequence number, fill it in and publish it. The
+ * "event-log" thread writes published records in order, formatting them itself, and flushes
+ * once per batch to stderr or to {@code flightservice.log.file}, which is rotated at
+ * {@code flightservice.log.maxBytes}. When the ring is full, records are dropped and counted
+ * in {@code log.dropped}, unless {@code flightservice.log.whenFull} is {@code block}, in which
+ * case the session waits for a free slot.
+ */
+class EventLog
+{
+  private static final int ERROR = 0;
+  private static final int AUDIT = 1;
+  private static final int WARN = 2;
+  private static final int INFO = 3;
+
+  private static final LongAdder DROPPED = Metrics.counter("log.dropped");
+
+  private static volatile EventLog shared;
+
+  // one preallocated record; fields are written by the session that claimed it and read by the writer
+  private static final class Slot
+  {
+    long time;
+    int kind;
+    String thread;
+    String command;
+    String user;
+    int itineraryId;
+    int fid1;
+    int fid2;
+    int reservationId;
+    String message;
+    Throwable error;
+
+    void clear()
+    {
+      thread = command = user = message = null;
+      error = null;
+    }
+  }
+
+  private final Slot[] slots;
+  private final int mask;
+  // sequence number last published in each slot, -1 if none
+  private final AtomicLongArray published;
+  // next sequence number to claim, and next to write
+  private final AtomicLong head = new AtomicLong();
+  private final AtomicLong tail = new AtomicLong();
+
+  private final boolean block;
+  private final boolean audit;
+  private final RollingFile file;
+  private volatile boolean stopping;
+  private final Thread writer;
+
+  private EventLog(Properties configProps) throws IOException
+  {
+    int capacity = Integer.highestOneBit(Math.max(2,
+            Integer.parseInt(configProps.getProperty("flightservice.log.capacity", "8192").trim())) * 2 - 1);
+    slots = new Slot[capacity];
+    for (int i = 0; i < capacity; i++)
+      slots[i] = new Slot();
+    mask = capacity - 1;
+    published = new AtomicLongArray(capacity);
+    for (int i = 0; i < capacity; i++)
+      published.set(i, -1);
+
+    block = configProps.getProperty("flightservice.log.whenFull", "drop").trim().equals("block");
+    audit = Boolean.parseBoolean(configProps.getProperty("flightservice.log.audit", "false").trim());
+    String name = configProps.getProperty("flightservice.log.file");
+    file = name == null ? null : new RollingFile(name,
+            Long.parseLong(configProps.getProperty("flightservice.log.maxBytes", "10485760").trim()),
+            Integer.parseInt(configProps.getProperty("flightservice.log.files", "5").trim()));
+
+    writer = new Thread(this::write, "event-log");
+    writer.setDaemon(true);
+    writer.start();
+    Runtime.getRuntime().addShutdownHook(new Thread(() ->
+    {
+      stopping = true;
+      LockSupport.unpark(writer);
+      try
+      {
+        writer.join(1000);
+      }
+      catch (InterruptedException e)
+      {
+        // exit without the rest
+      }
+    }));
+  }
+
+  /**
+   * Starts the log with the first configuration seen; later ones are ignored.
+   */
+  static synchronized void configure(Properties configProps) throws IOException
+  {
+    if (shared == null)
+      shared = new EventLog(configProps);
+  }
+
+  private static EventLog log()
+  {
+    EventLog log = shared;
+    if (log != null)
+      return log;
+    try
+    {
+      configure(new Properties());
+    }
+    catch (IOException e)
+    {
+      throw new IllegalStateException(e); // stderr only, cannot happen
+    }
+    return shared;
+  }
+
+  /**
+   * Logs {@code e} with its stack trace, in place of {@code e.printStackTrace()}.
+   */
+  static void error(Throwable e)
+  {
+    EventLog log = log();
+    long seq = log.claim();
+    if (seq < 0)
+      return;
+    Slot s = log.slots[(int) seq & log.mask];
+    s.kind = ERROR;
+    s.time = System.currentTimeMillis();
+    s.thread = Thread.currentThread().getName();
+    s.error = e;
+    log.publish(seq);
+  }
+
+  /**
+   * Logs a problem that was worked around, such as a damaged file that is ignored, in place of
+   * a line on {@code System.err}.
+   */
+  static void warn(String message)
+  {
+    message(WARN, message);
+  }
+
+  /**
+   * Logs a notice, such as a completed reload, in place of a line on {@code System.err}.
+   */
+  static void info(String message)
+  {
+    message(INFO, message);
+  }
+
+  private static void message(int kind, String message)
+  {
+    EventLog log = log();
+    long seq = log.claim();
+    if (seq < 0)
+      return;
+    Slot s = log.slots[(int) seq & log.mask];
+    s.kind = kind;
+    s.time = System.currentTimeMillis();
+    s.thread = Thread.currentThread().getName();
+    s.message = message;
+    log.publish(seq);
+  }
+
+  /**
+   * @return whether {@code command} is audited: {@code book}, {@code pay} and {@code cancel}
+   * are, if {@code flightservice.log.audit} is true
+   */
+  static boolean audits(String command)
+  {
+    EventLog log = shared;
+    return log != null && log.audit
+            && (command.equals("book") || command.equals("pay") || command.equals("cancel"));
+  }
+
+  /**
+   * Logs an audit record of a booking ({@code itineraryId} and its flights), payment or
+   * cancellation ({@code reservationId}) by {@code user} and the first line of its response.
+   */
+  static void audit(String command, String user, int itineraryId, int fid1, int fid2, int reservationId, String outcome)
+  {
+    EventLog log = log();
+    long seq = log.claim();
+    if (seq < 0)
+      return;
+    Slot s = log.slots[(int) seq & log.mask];
+    s.kind = AUDIT;
+    s.time = System.currentTimeMillis();
+    s.command = command;
+    s.user = user;
+    s.itineraryId = itineraryId;
+    s.fid1 = fid1;
+    s.fid2 = fid2;
+    s.reservationId = reservationId;
+    s.message = outcome;
+    log.publish(seq);
+  }
+
+  // the sequence number of a free slot, or -1 if the ring is full and records are dropped
+  private long claim()
+  {
+    while (true)
+    {
+      long h = head.get();
+      if (h - tail.get() >= slots.length)
+      {
+        if (!block)
+        {
+          DROPPED.increment();
+          return -1;
+        }
+        LockSupport.parkNanos(100000);
+        continue;
+      }
+      if (head.compareAndSet(h, h + 1))
+        return h;
+    }
+  }
+
+  private void publish(long seq)
+  {
+    published.lazySet((int) seq & mask, seq);
+  }
+
+  private void write()
+  {
+    StringBuilder sb = new StringBuilder();
+    long next = 0;
+    while (true)
+    {
+      boolean stop = stopping;
+      while (published.get((int) next & mask) == next)
+      {
+        Slot s = slots[(int) next & mask];
+        format(s, sb);
+        s.clear();
+        tail.lazySet(++next);
+        if (sb.length() >= 65536)
+          flush(sb);
+      }
+      if (sb.length() > 0)
+        flush(sb);
+      else if (stop)
+        return;
+      else
+        LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+    }
+  }
+
+  private static void format(Slot s, StringBuilder sb)
+  {
+    sb.append(String.format("%tF %<tT.%<tL ", s.time));
+    if (s.kind == ERROR)
+    {
+      StringWriter trace = new StringWriter();
+      s.error.printStackTrace(new PrintWriter(trace));
+      sb.append("ERROR [").append(s.thread).append("] ").append(trace);
+    }
+    else if (s.kind == WARN || s.kind == INFO)
+      sb.append(s.kind == WARN ? "WARN [" : "INFO [").append(s.thread).append("] ").append(s.message).append('\n');
+    else
+    {
+      sb.append("AUDIT ").append(s.command).append(" user=").append(s.user);
+      if (s.itineraryId >= 0)
+      {
+        sb.append(" itinerary=").append(s.itineraryId).append(" fids=").append(s.fid1);
+        if (s.fid2 != 0)
+          sb.append(',').append(s.fid2);
+      }
+      if (s.reservationId != 0)
+        sb.append(" reservation=").append(s.reservationId);
+      sb.append(" outcome=").append(s.message).append('\n');
+    }
+  }
+
+  private void flush(StringBuilder sb)
+  {
+    try
+    {
+      if (file == null)
+      {
+        System.err.print(sb);
+        System.err.flush();
+      }
+      else
+      {
+        file.write(sb);
+        file.flush();
+      }
+    }
+    catch (IOException e)
+    {
+      // nowhere left to report it
+    }
+    sb.setLength(0);
+  }
+}
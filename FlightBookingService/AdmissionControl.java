@@ -0,0 +1,305 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Scheduler in front of {@code FlightService.execute} that bounds how many commands run at once
+ * and decides which waiting command runs next.
+ *
+ * Commands fall into three classes: revenue ({@code book}, {@code pay}, {@code cancel}), search
+ * ({@code search}, {@code searchdays}, {@code searchroundtrip}), and everything else. All
+ * classes share one concurrency limit; search may only use
+ * {@code flightservice.admission.searchShare} of it, so some slots are always left for bookings
+ * and payments. When a slot frees up, a waiting revenue command is admitted before any other,
+ * then other commands, then searches. Each class has its own bounded wait queue; a command that
+ * finds its queue full, or that waits longer than {@code flightservice.admission.maxWaitMillis},
+ * is rejected at once instead of piling up.
+ *
+ * The limit adapts to the latency of admitted commands, which is dominated by the database:
+ * it grows while latency stays near the lowest seen and shrinks in proportion when latency rises
+ * (a gradient limit), between {@code minLimit} and {@code maxLimit}. Each command that reaches
+ * the database keeps its own lowest and average latency, so a fast login does not set the
+ * baseline a search is measured against; other commands, such as {@code quit}, do not move the
+ * limit.
+ */
+class AdmissionControl
+{
+  static final int REVENUE = 0;
+  static final int OTHER = 1;
+  static final int SEARCH = 2;
+
+  static final String BUSY = "Error: server busy, please try again\n";
+
+  // commands whose latency drives the limit
+  private static final List<String> MEASURED = Arrays.asList("create", "login", "search", "searchdays",
+          "searchroundtrip", "book", "pay", "reservations", "cancel");
+
+  private static volatile AdmissionControl shared;
+
+  private final ReentrantLock lock = new ReentrantLock();
+  // one wait queue per class, in admission priority order
+  private final List<ArrayDeque<Condition>> waiting = new ArrayList<>();
+  private final int[] queueLimit = new int[3];
+  private final int[] running = new int[3];
+  private int total;
+
+  private final double searchShare;
+  private final long maxWaitNanos;
+  private final int minLimit;
+  private final int maxLimit;
+  private double limit;
+
+  // latencies per measured command in nanoseconds: the lowest seen, decayed slowly so it can recover,
+  // and a moving average
+  private final double[] minLatency = new double[MEASURED.size()];
+  private final double[] avgLatency = new double[MEASURED.size()];
+
+  private long admitted;
+  private long shed;
+
+  AdmissionControl(Properties configProps)
+  {
+    limit = intProperty(configProps, "initialLimit", 20);
+    minLimit = intProperty(configProps, "minLimit", 2);
+    maxLimit = intProperty(configProps, "maxLimit", 200);
+    searchShare = Double.parseDouble(configProps.getProperty("flightservice.admission.searchShare", "0.5").trim());
+    maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(intProperty(configProps, "maxWaitMillis", 500));
+    queueLimit[REVENUE] = intProperty(configProps, "queue.revenue", 200);
+    queueLimit[OTHER] = intProperty(configProps, "queue.other", 100);
+    queueLimit[SEARCH] = intProperty(configProps, "queue.search", 50);
+    for (int c = 0; c < queueLimit.length; c++)
+      waiting.add(new ArrayDeque<Condition>());
+    Arrays.fill(minLatency, Double.MAX_VALUE);
+  }
+
+  private static int intProperty(Properties configProps, String name, int defaultValue)
+  {
+    return Integer.parseInt(configProps.getProperty("flightservice.admission." + name,
+            Integer.toString(defaultValue)).trim());
+  }
+
+  /**
+   * @return the scheduler of this process, created from the first configuration that enables
+   * it, or null unless {@code flightservice.admission} is true
+   */
+  static AdmissionControl get(Properties configProps)
+  {
+    AdmissionControl a = shared;
+    if (a != null)
+      return a;
+    if (configProps == null || !Boolean.parseBoolean(configProps.getProperty("flightservice.admission", "false").trim()))
+      return null;
+    synchronized (AdmissionControl.class)
+    {
+      if (shared == null)
+        shared = new AdmissionControl(configProps);
+      return shared;
+    }
+  }
+
+  /**
+   * @return the class of the command named by {@code verb}
+   */
+  static int classOf(String verb)
+  {
+    switch (verb)
+    {
+      case "book":
+      case "pay":
+      case "cancel":
+        return REVENUE;
+      case "search":
+      case "searchdays":
+      case "searchroundtrip":
+        return SEARCH;
+      default:
+        return OTHER;
+    }
+  }
+
+  // whether a command of class c may start now; caller holds the lock
+  private boolean fits(int c)
+  {
+    int max = (int) limit;
+    if (total >= max)
+      return false;
+    if (c == SEARCH && running[SEARCH] >= Math.max(1, (int) (max * searchShare)))
+      return false;
+    // commands of higher priority that are waiting go first
+    for (int p = 0; p < c; p++)
+    {
+      if (!waiting.get(p).isEmpty())
+        return false;
+    }
+    return true;
+  }
+
+  /**
+   * Waits for a slot for a command of class {@code c}.
+   *
+   * @return false if the command was shed and must not run
+   */
+  boolean acquire(int c) throws InterruptedException
+  {
+    lock.lock();
+    try
+    {
+      if (waiting.get(c).isEmpty() && fits(c))
+      {
+        start(c);
+        return true;
+      }
+      if (waiting.get(c).size() >= queueLimit[c])
+      {
+        shed++;
+        return false;
+      }
+
+      Condition turn = lock.newCondition();
+      waiting.get(c).addLast(turn);
+      long left = maxWaitNanos;
+      try
+      {
+        while (waiting.get(c).peekFirst() != turn || !fits(c))
+        {
+          if (left <= 0)
+          {
+            shed++;
+            return false;
+          }
+          left = turn.awaitNanos(left);
+        }
+        start(c);
+      }
+      finally
+      {
+        waiting.get(c).remove(turn);
+        signalNext();
+      }
+      return true;
+    }
+    finally
+    {
+      lock.unlock();
+    }
+  }
+
+  private void start(int c)
+  {
+    running[c]++;
+    total++;
+    admitted++;
+  }
+
+  /**
+   * Frees the slot of a command {@code verb} that took {@code nanos} to run.
+   */
+  void release(String verb, long nanos)
+  {
+    free(classOf(verb), MEASURED.indexOf(verb), nanos);
+  }
+
+  /**
+   * Frees the slot of a command {@code verb} that was admitted but never ran, e.g. because its
+   * deadline passed while it waited; its latency says nothing about the database, so the limit
+   * does not move.
+   */
+  void release(String verb)
+  {
+    free(classOf(verb), -1, 0);
+  }
+
+  private void free(int c, int m, long nanos)
+  {
+    lock.lock();
+    try
+    {
+      running[c]--;
+      total--;
+      if (m >= 0)
+        adapt(m, nanos);
+      signalNext();
+    }
+    finally
+    {
+      lock.unlock();
+    }
+  }
+
+  // wakes the first waiter of the highest priority class that can run
+  private void signalNext()
+  {
+    for (int c = 0; c < waiting.size(); c++)
+    {
+      Condition first = waiting.get(c).peekFirst();
+      if (first != null && fits(c))
+      {
+        first.signal();
+        return;
+      }
+    }
+  }
+
+  // moves the limit by how far the latency of measured command m is above its own lowest
+  private void adapt(int m, long nanos)
+  {
+    minLatency[m] = Math.min(minLatency[m] * 1.0001, nanos);
+    avgLatency[m] = avgLatency[m] == 0 ? nanos : avgLatency[m] * 0.9 + nanos * 0.1;
+    double gradient = Math.max(0.5, Math.min(1.0, minLatency[m] / avgLatency[m]));
+    double target = limit * gradient + Math.sqrt(limit);
+    limit = Math.max(minLimit, Math.min(maxLimit, limit * 0.8 + target * 0.2));
+  }
+
+  /**
+   * @return the current concurrency limit
+   */
+  int limit()
+  {
+    lock.lock();
+    try
+    {
+      return (int) limit;
+    }
+    finally
+    {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return the number of commands shed so far
+   */
+  long shed()
+  {
+    lock.lock();
+    try
+    {
+      return shed;
+    }
+    finally
+    {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return the number of commands admitted so far
+   */
+  long admitted()
+  {
+    lock.lock();
+    try
+    {
+      return admitted;
+    }
+    finally
+    {
+      lock.unlock();
+    }
+  }
+}
@@ -4,11 +4,37 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
 
 public class FlightService
 {
   public static final String DBCONFIG_FILENAME = "dbconn.properties";
 
+  @Name("flightservice.Command")
+  @Label("Command")
+  @Category({"Flight Service"})
+  @Description("One command run by FlightService.execute, including admission control")
+  @StackTrace(false)
+  static final class CommandEvent extends Event
+  {
+    @Label("Command")
+    String command;
+
+    @Label("Admission Wait")
+    @Description("Time spent queued in admission control before running")
+    @Timespan
+    long admissionWait;
+
+    @Label("Outcome")
+    String outcome;
+  }
+
   public static void usage()
   {
     /* prints the choices for commands and parameters */
@@ -17,6 +43,8 @@ public class FlightService
     System.out.println("> create <username> <password> <initial amount>");
     System.out.println("> login <username> <password>");
     System.out.println("> search <origin city> <destination city> <direct> <day of the month> <num itineraries>");
+    System.out.println("> searchdays <origin city> <destination city> <direct> <first day> <last day> <num itineraries>");
+    System.out.println("> searchroundtrip <origin city> <destination city> <direct> <outbound day> <return day> <num itineraries> [time|price]");
     System.out.println("> book <itinerary id>");
     System.out.println("> pay <reservation id>");
     System.out.println("> reservations");
@@ -39,11 +67,80 @@ public class FlightService
     return tokens.toArray(new String[0]);
   }
 
+  /**
+   * Runs one command, first waiting for a slot from the admission control if the query's
+   * configuration enables it; commands it sheds get {@code AdmissionControl.BUSY}. Time spent
+   * waiting counts against the command's configured timeout. Each command is recorded as a
+   * {@code flightservice.Command} flight recorder event.
+   */
   public static String execute (Query q, String command)
+  {
+    String[] tokens = tokenize(command.trim());
+    CommandEvent event = new CommandEvent();
+    event.begin();
+    String response = null;
+    try
+    {
+      return response = admit(q, tokens, event);
+    }
+    finally
+    {
+      event.end();
+      if (event.shouldCommit())
+      {
+        event.command = tokens.length == 0 ? "" : tokens[0];
+        int nl = response == null ? -1 : response.indexOf('\n');
+        event.outcome = response == null ? "exception" : nl < 0 ? response : response.substring(0, nl);
+        event.commit();
+      }
+    }
+  }
+
+  private static String admit (Query q, String[] tokens, CommandEvent event)
+  {
+    AdmissionControl admission = AdmissionControl.get(q.configProps());
+    if (admission == null)
+      return dispatch(q, tokens);
+
+    String verb = tokens.length == 0 ? "" : tokens[0];
+    int c = AdmissionControl.classOf(verb);
+    long arrived = System.nanoTime();
+    try
+    {
+      if (!admission.acquire(c))
+        return AdmissionControl.BUSY;
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      return AdmissionControl.BUSY;
+    }
+    long start = System.nanoTime();
+    event.admissionWait = start - arrived;
+    long timeout = q.timeoutNanos(verb);
+    if (timeout > 0 && start - arrived >= timeout)
+    {
+      // expired in the queue: free the slot without a latency sample
+      admission.release(verb);
+      return AdmissionControl.BUSY;
+    }
+    try
+    {
+      if (timeout > 0)
+        q.setDeadline(arrived + timeout);
+      return dispatch(q, tokens);
+    }
+    finally
+    {
+      q.setDeadline(0);
+      admission.release(verb, System.nanoTime() - start);
+    }
+  }
+
+  private static String dispatch (Query q, String[] tokens)
   {
     String response;
 
-    String[] tokens = tokenize(command.trim());
     if (tokens.length == 0)
       response = "Please enter a command";
 
@@ -98,14 +195,57 @@ public class FlightService
         response = "Error: Please provide all search parameters <origin_city> <destination_city> <direct> <date> <nb itineraries>";
     }
 
+    else if (tokens[0].equals("searchdays"))
+    {
+      /* search for flights on a range of days */
+      if (tokens.length == 7)
+      {
+        try
+        {
+          int firstDay = Integer.parseInt(tokens[4]);
+          int lastDay = Integer.parseInt(tokens[5]);
+          int count = Integer.parseInt(tokens[6]);
+          response = q.transaction_searchDays(tokens[1], tokens[2], tokens[3].equals("1"), firstDay, lastDay, count);
+        }
+        catch (NumberFormatException e) { response = "Failed to parse integer"; }
+      }
+      else
+        response = "Error: Please provide all search parameters <origin_city> <destination_city> <direct> <first day> <last day> <nb itineraries>";
+    }
+
+    else if (tokens[0].equals("searchroundtrip"))
+    {
+      /* search for round trips, ranked by total time or price */
+      if ((tokens.length == 7 || tokens.length == 8) && (tokens.length == 7 || tokens[7].matches("time|price")))
+      {
+        try
+        {
+          int outboundDay = Integer.parseInt(tokens[4]);
+          int returnDay = Integer.parseInt(tokens[5]);
+          int count = Integer.parseInt(tokens[6]);
+          boolean byPrice = tokens.length == 8 && tokens[7].equals("price");
+          response = q.transaction_searchRoundTrip(tokens[1], tokens[2], tokens[3].equals("1"), outboundDay, returnDay,
+                  count, byPrice);
+        }
+        catch (NumberFormatException e) { response = "Failed to parse integer"; }
+      }
+      else
+        response = "Error: Please provide all search parameters <origin_city> <destination_city> <direct> <outbound day> <return day> <nb itineraries> [time|price]";
+    }
+
     else if (tokens[0].equals("book"))
     {
 				/* book a flight ticket */
       if (tokens.length == 2)
       {
-        int itinerary_id = Integer.parseInt(tokens[1]);
-        //System.out.println("Booking itinerary.");
-        response = q.transaction_book(itinerary_id);
+        if (tokens[1].matches("-?\\d+"))
+        {
+          int itinerary_id = Integer.parseInt(tokens[1]);
+          //System.out.println("Booking itinerary.");
+          response = q.transaction_book(itinerary_id);
+        }
+        else // an itinerary token printed by a search, see ItineraryTokens
+          response = q.transaction_book(tokens[1]);
       }
       else
         response = "Error: Please provide an itinerary_id";
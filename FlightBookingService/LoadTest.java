@@ -0,0 +1,402 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Load generator that replays the command scripts of the {@code Grader} test cases across
+ * many concurrent simulated users.
+ *
+ * Every simulated user runs on its own thread and repeatedly picks a script, opens a fresh
+ * session, runs the script's commands through {@code FlightService.execute} and closes the
+ * session again, until the run's duration or request budget is used up. Expected results in
+ * the test case files are ignored.
+ *
+ * Usage: java LoadTest [-cases file or folder] [-config dbconn.properties] [-users n]
+ *                      [-duration seconds] [-requests n] [-unique] [-retries n] [-clear]
+ *
+ * With {@code -unique} every pass through a script gets its own usernames, so scripts that
+ * create users can be replayed indefinitely.
+ */
+public class LoadTest
+{
+  /**
+   * The commands of one user in a test case.
+   */
+  static class Script
+  {
+    final String name;
+    final List<String> cmds;
+    final Set<String> usernames = new HashSet<>();
+
+    Script (String name, List<String> cmds)
+    {
+      this.name = name;
+      this.cmds = cmds;
+      for (String c : cmds)
+      {
+        String[] tokens = FlightService.tokenize(c.trim());
+        if (tokens.length > 1 && (tokens[0].equals("create") || tokens[0].equals("login")))
+          usernames.add(tokens[1]);
+      }
+    }
+
+    /**
+     * Returns the commands with every username token replaced by a name ending in {@code suffix}.
+     */
+    List<String> rename (String suffix)
+    {
+      List<String> renamed = new ArrayList<>(cmds.size());
+      for (String c : cmds)
+      {
+        String[] words = c.split(" ", -1);
+        for (int i = 0; i < words.length; i++)
+        {
+          if (usernames.contains(words[i]))
+          {
+            String base = words[i];
+            if (base.length() + suffix.length() > MAX_USERNAME)
+              base = base.substring(0, MAX_USERNAME - suffix.length());
+            words[i] = base + suffix;
+          }
+        }
+        renamed.add(String.join(" ", words));
+      }
+      return renamed;
+    }
+  }
+
+  // usernames are varchar(20) in createTables.sql
+  static final int MAX_USERNAME = 20;
+
+  /**
+   * Parse the commands of every user in a test case, in the format read by {@code Grader.parse}.
+   */
+  static List<Script> parse (String filename) throws Exception
+  {
+    List<Script> scripts = new ArrayList<>();
+    List<String> cmds = new ArrayList<>();
+    boolean isCmd = true;
+
+    try (BufferedReader fr = new BufferedReader(new FileReader(filename)))
+    {
+      String l;
+      while ((l = fr.readLine()) != null)
+      {
+        if (l.startsWith(Grader.COMMENTS))
+          continue;
+
+        else if (l.startsWith(Grader.DELIMITER))
+        {
+          if (isCmd)
+          {
+            scripts.add(new Script(new File(filename).getName() + "#" + (scripts.size() + 1), cmds));
+            cmds = new ArrayList<>();
+          }
+          isCmd = !isCmd;
+        }
+
+        else if (isCmd && !l.startsWith(Grader.SEPARATOR))
+          cmds.add(l.split(Grader.COMMENTS, 2)[0]);
+      }
+    }
+    return scripts;
+  }
+
+  static String commandType (String cmd)
+  {
+    String[] tokens = FlightService.tokenize(cmd.trim());
+    return tokens.length == 0 ? "(empty)" : tokens[0];
+  }
+
+  /**
+   * Latencies of one command type, kept in full so that exact percentiles can be reported.
+   */
+  static class Latencies
+  {
+    private long[] nanos = new long[1024];
+    private int count;
+
+    synchronized void record (long value)
+    {
+      if (count == nanos.length)
+        nanos = Arrays.copyOf(nanos, count * 2);
+      nanos[count++] = value;
+    }
+
+    /**
+     * @return count, mean, p50, p99, p999 and max, all but count in nanoseconds
+     */
+    synchronized double[] summary ()
+    {
+      long[] sorted = Arrays.copyOf(nanos, count);
+      Arrays.sort(sorted);
+      double sum = 0;
+      for (long v : sorted)
+        sum += v;
+      return new double[] {count, count == 0 ? 0 : sum / count, percentile(sorted, 50), percentile(sorted, 99),
+              percentile(sorted, 99.9), count == 0 ? 0 : sorted[count - 1]};
+    }
+
+    private static long percentile (long[] sorted, double p)
+    {
+      if (sorted.length == 0)
+        return 0;
+      int rank = (int) Math.ceil(p / 100 * sorted.length);
+      return sorted[Math.max(0, rank - 1)];
+    }
+  }
+
+  /**
+   * Counters and latencies shared by all simulated users.
+   */
+  static class Stats
+  {
+    final Map<String, Latencies> latencies = new ConcurrentHashMap<>();
+    final LongAdder commands = new LongAdder();
+    final LongAdder sessions = new LongAdder();
+    final LongAdder sessionErrors = new LongAdder();
+    final LongAdder booked = new LongAdder();
+    final LongAdder bookFailed = new LongAdder();
+    final LongAdder deadlocks = new LongAdder();
+    final LongAdder shed = new LongAdder();
+    final LongAdder timeouts = new LongAdder();
+    final LongAdder retries = new LongAdder();
+
+    void record (String type, long nanos)
+    {
+      latencies.computeIfAbsent(type, t -> new Latencies()).record(nanos);
+    }
+  }
+
+  String config = FlightService.DBCONFIG_FILENAME;
+  int users = 100;
+  long durationMillis = 60_000;
+  long requests = 0; // 0 means no limit
+  boolean unique = false;
+  int maxRetries = 0;
+
+  // pause after a session fails to open, doubling while the database stays unreachable
+  static final long MIN_BACKOFF_MILLIS = 10;
+  static final long MAX_BACKOFF_MILLIS = 1000;
+
+  final Stats stats = new Stats();
+  final AtomicLong issued = new AtomicLong();
+  final AtomicLong passes = new AtomicLong();
+  volatile long deadline;
+
+  /**
+   * @return false once the duration or request budget of the run is used up
+   */
+  boolean acquire ()
+  {
+    if (System.currentTimeMillis() >= deadline)
+      return false;
+    return requests <= 0 || issued.incrementAndGet() <= requests;
+  }
+
+  class VirtualUser implements Runnable
+  {
+    final int id;
+    final List<Script> scripts;
+
+    VirtualUser (int id, List<Script> scripts)
+    {
+      this.id = id;
+      this.scripts = scripts;
+    }
+
+    @Override
+    public void run ()
+    {
+      int pass = 0;
+      long backoff = 0;
+      while (true)
+      {
+        Script script = scripts.get((id + pass++) % scripts.size());
+        List<String> cmds = unique ? script.rename("_" + Long.toString(passes.incrementAndGet(), 36)) : script.cmds;
+
+        Query q = null;
+        long t0 = System.nanoTime();
+        try
+        {
+          q = new Query(config);
+          q.openConnection();
+          q.prepareStatements();
+        }
+        catch (Exception e)
+        {
+          stats.sessionErrors.increment();
+          // the connection may have opened before preparing the statements failed
+          try { q.closeConnection(); } catch (Exception closeFailed) { /* never opened */ }
+          if (!acquire())
+            return;
+          backoff = Math.min(MAX_BACKOFF_MILLIS, Math.max(MIN_BACKOFF_MILLIS, backoff * 2));
+          try
+          {
+            Thread.sleep(Math.min(backoff, Math.max(0, deadline - System.currentTimeMillis())));
+          }
+          catch (InterruptedException interrupted)
+          {
+            return;
+          }
+          continue;
+        }
+        backoff = 0;
+        stats.record("(session)", System.nanoTime() - t0);
+        stats.sessions.increment();
+
+        try
+        {
+          for (String c : cmds)
+          {
+            if (!acquire())
+              return;
+            run(q, c);
+          }
+        }
+        finally
+        {
+          try { q.closeConnection(); } catch (Exception e) { stats.sessionErrors.increment(); }
+        }
+      }
+    }
+
+    void run (Query q, String cmd)
+    {
+      String type = commandType(cmd);
+      for (int attempt = 0; ; attempt++)
+      {
+        int deadlocks = q.deadlocks();
+        int timeouts = q.timeouts();
+        long t0 = System.nanoTime();
+        String response = FlightService.execute(q, cmd);
+        stats.record(type, System.nanoTime() - t0);
+        stats.commands.increment();
+
+        stats.timeouts.add(q.timeouts() - timeouts);
+        boolean deadlocked = q.deadlocks() != deadlocks;
+        if (deadlocked)
+          stats.deadlocks.increment();
+        if (deadlocked && attempt < maxRetries)
+        {
+          stats.retries.increment();
+          continue;
+        }
+
+        if (response.equals(AdmissionControl.BUSY))
+          stats.shed.increment();
+
+        if (type.equals("book"))
+        {
+          if (response.startsWith("Booked"))
+            stats.booked.increment();
+          else
+            stats.bookFailed.increment();
+        }
+        return;
+      }
+    }
+  }
+
+  void run (List<Script> scripts) throws InterruptedException
+  {
+    deadline = System.currentTimeMillis() + durationMillis;
+    long start = System.nanoTime();
+
+    Thread[] threads = new Thread[users];
+    for (int i = 0; i < users; i++)
+    {
+      threads[i] = new Thread(new VirtualUser(i, scripts), "vu-" + i);
+      threads[i].start();
+    }
+    for (Thread t : threads)
+      t.join();
+
+    report((System.nanoTime() - start) / 1e9);
+  }
+
+  void report (double seconds)
+  {
+    long commands = stats.commands.sum();
+    System.out.printf("%d users, %d sessions (%d failed to open), %d commands in %.1f s: %.1f commands/s%n",
+            users, stats.sessions.sum(), stats.sessionErrors.sum(), commands, seconds, commands / seconds);
+    System.out.println();
+    System.out.printf("%-14s %10s %10s %10s %10s %10s %10s%n", "command", "count", "mean ms", "p50 ms", "p99 ms", "p999 ms", "max ms");
+    for (Map.Entry<String, Latencies> e : new TreeMap<>(stats.latencies).entrySet())
+    {
+      double[] h = e.getValue().summary();
+      System.out.printf("%-14s %10d %10.2f %10.2f %10.2f %10.2f %10.2f%n", e.getKey(), (long) h[0], h[1] / 1e6,
+              h[2] / 1e6, h[3] / 1e6, h[4] / 1e6, h[5] / 1e6);
+    }
+    System.out.println();
+    System.out.printf("bookings: %d succeeded, %d failed%n", stats.booked.sum(), stats.bookFailed.sum());
+    System.out.printf("deadlocks: %d, retries: %d%n", stats.deadlocks.sum(), stats.retries.sum());
+    if (stats.timeouts.sum() > 0)
+      System.out.printf("cut off by their deadline: %d%n", stats.timeouts.sum());
+    if (stats.shed.sum() > 0)
+      System.out.printf("shed by admission control: %d%n", stats.shed.sum());
+  }
+
+  static List<Script> load (String path) throws Exception
+  {
+    File f = new File(path);
+    File[] files = f.isDirectory() ? f.listFiles(File::isFile) : new File[] { f };
+    if (files == null || files.length == 0)
+      throw new Exception("no test cases found in " + path);
+    Arrays.sort(files);
+
+    List<Script> scripts = new ArrayList<>();
+    for (File file : files)
+      scripts.addAll(parse(file.getPath()));
+    return scripts;
+  }
+
+  public static void main (String[] args) throws Exception
+  {
+    LoadTest t = new LoadTest();
+    String cases = "TestCases";
+    boolean clear = false;
+
+    for (int i = 0; i < args.length; i++)
+    {
+      switch (args[i])
+      {
+        case "-cases": cases = args[++i]; break;
+        case "-config": t.config = args[++i]; break;
+        case "-users": t.users = Integer.parseInt(args[++i]); break;
+        case "-duration": t.durationMillis = Long.parseLong(args[++i]) * 1000; break;
+        case "-requests": t.requests = Long.parseLong(args[++i]); t.durationMillis = Long.MAX_VALUE / 2; break;
+        case "-unique": t.unique = true; break;
+        case "-retries": t.maxRetries = Integer.parseInt(args[++i]); break;
+        case "-clear": clear = true; break;
+        default:
+          System.err.println("unknown option " + args[i]);
+          System.exit(1);
+      }
+    }
+
+    List<Script> scripts = load(cases);
+    System.out.println("replaying " + scripts.size() + " scripts from " + cases);
+
+    if (clear)
+    {
+      Query q = new Query(t.config);
+      q.openConnection();
+      q.prepareStatements();
+      q.clearTables();
+      q.closeConnection();
+    }
+
+    t.run(scripts);
+  }
+}
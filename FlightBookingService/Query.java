@@ -24,6 +24,9 @@ public class Query
   // Logged In User
   private String username; // customer username is unique
 
+  // System.nanoTime() by which the next transaction should finish, or 0
+  private long deadline;
+
   // Canned queries
 
   private static final String CHECK_FLIGHT_CAPACITY = "SELECT capacity FROM Flights WHERE fid = ?";
@@ -91,6 +94,14 @@ public class Query
     */
   }
 
+  /**
+   * @return the configuration read by {@code openConnection}
+   */
+  Properties configProps()
+  {
+    return configProps;
+  }
+
   public void closeConnection() throws Exception
   {
     conn.close();
@@ -240,6 +251,37 @@ public class Query
     return sb.toString();
   }
 
+  /**
+   * Searches every day from {@code firstDay} to {@code lastDay} as {@code transaction_search}
+   * searches one.
+   *
+   * @return up to {@code numberOfItineraries} itineraries of all days together, direct ones
+   * taking precedence, sorted by total flight time and then day, in the format of
+   * {@code transaction_search}. "Failed to search\n" if a day could not be searched.
+   */
+  public String transaction_searchDays(String originCity, String destinationCity, boolean directFlight, int firstDay,
+                                       int lastDay, int numberOfItineraries)
+  {
+    return "Failed to search\n";
+  }
+
+  /**
+   * Searches round trips: outbound itineraries from {@code originCity} on {@code outboundDay}
+   * paired with return itineraries to it on {@code returnDay}, best pairs first.
+   *
+   * @param byPrice rank the pairs by total price instead of total flight time
+   *
+   * @return "No flights match your selection\n" if there is no pair, "Failed to search\n" on
+   * errors, and otherwise up to {@code numberOfItineraries} pairs in the format of
+   * {@code transaction_search}, each listing the outbound flights and then the return flights
+   */
+  public String transaction_searchRoundTrip(String originCity, String destinationCity, boolean directFlight,
+                                            int outboundDay, int returnDay, int numberOfItineraries,
+                                            boolean byPrice)
+  {
+    return "Failed to search\n";
+  }
+
   /**
    * Implements the book itinerary function.
    *
@@ -260,6 +302,19 @@ public class Query
     return "Booking failed\n";
   }
 
+  /**
+   * Books the itinerary of a token printed by a search, possibly in another session.
+   *
+   * @param token the token printed under the itinerary
+   *
+   * @return as {@code transaction_book(int)}, with an invalid or expired token reported as
+   * "No such itinerary {@code token}\n"
+   */
+  public String transaction_book(String token)
+  {
+    return "No such itinerary " + token + "\n";
+  }
+
   /**
    * Implements the reservations function.
    *
@@ -326,6 +381,27 @@ public class Query
 
   /* some utility functions below */
 
+  /**
+   * Sets the deadline of the next transaction of this session, as a {@code System.nanoTime()}
+   * value, in place of the timeout configured for its command.
+   */
+  public void setDeadline(long deadlineNanos)
+  {
+    deadline = deadlineNanos;
+  }
+
+  /**
+   * @return the time a transaction of {@code command} may take, from
+   * {@code flightservice.timeout.<command>.millis} or else {@code flightservice.timeout.millis},
+   * in nanoseconds; 0 if it is not limited
+   */
+  long timeoutNanos(String command)
+  {
+    String millis = configProps.getProperty("flightservice.timeout." + command + ".millis",
+            configProps.getProperty("flightservice.timeout.millis", "0"));
+    return Long.parseLong(millis.trim()) * 1000000L;
+  }
+
   public void beginTransaction() throws SQLException
   {
     conn.setAutoCommit(false);
@@ -344,6 +420,22 @@ public class Query
     conn.setAutoCommit(true);
   }
 
+  /**
+   * @return the number of transactions of this session that were cut off by their deadline
+   */
+  public int timeouts()
+  {
+    return 0;
+  }
+
+  /**
+   * @return the number of transactions of this session that were aborted as a deadlock victim
+   */
+  public int deadlocks()
+  {
+    return 0;
+  }
+
   /**
    * Shows an example of using PreparedStatements after setting arguments. You don't need to
    * use this method if you don't want to.
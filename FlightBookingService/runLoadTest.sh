@@ -0,0 +1,23 @@
+#!/bin/bash
+
+if [[ "$#" -lt 3 ]]; then
+  echo "Usage: runLoadTest.sh <source folder> <output folder> <folder name containing test cases> [load test options]"
+  echo "Compiles java files in <source folder>, then replays the test case scripts as concurrent users"
+  echo "Options: -users <n> -duration <seconds> | -requests <n> -unique -retries <n> -clear -config <file>"
+  echo "WARNING: output folder is initially deleted and recreated!!!"
+  exit 1
+fi
+
+src=$1
+out=$2
+cases=$3
+shift 3
+
+rm -rf $out
+mkdir $out
+
+echo "compiling from " $src
+javac -cp lib/junit-4.12.jar:lib/hamcrest-core-1.3.jar:./lib/sqljdbc4.jar:$out -d $out $src/*.java
+
+java -cp lib/junit-4.12.jar:lib/hamcrest-core-1.3.jar:./lib/sqljdbc4.jar:$out \
+  LoadTest -cases $cases "$@"
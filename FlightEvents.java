@@ -0,0 +1,160 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Java Flight Recorder events of the flight service, for telling apart where a slow command
+ * spent its time: waiting for admission or a connection, executing statements (including lock
+ * waits inside the database, which show up as long statement executions), or rendering results.
+ *
+ * Events are nested: a {@code Command} of {@code FlightService.execute} (declared there, so
+ * the driver compiles on its own) contains the {@code Transaction} of its {@code Query} call,
+ * which contains the {@code Statement}s it executed and the {@code Render} of its response. All of them are enabled by default in a
+ * recording and cost little more than a clock read when no recording is running, e.g.
+ * {@code java -XX:StartFlightRecording=filename=flights.jfr ...}.
+ */
+final class FlightEvents
+{
+  private FlightEvents()
+  {
+  }
+
+  /**
+   * @return the first line of a response, to record as the outcome
+   */
+  static String outcome(String response)
+  {
+    if (response == null)
+      return "exception";
+    int nl = response.indexOf('\n');
+    return nl < 0 ? response : response.substring(0, nl);
+  }
+
+  /**
+   * @return a new connection from {@code DriverManager}, recorded as a {@code Connect} event
+   */
+  static Connection connect(String url, String user, String password) throws SQLException
+  {
+    Connect event = new Connect();
+    event.begin();
+    try
+    {
+      Connection conn = DriverManager.getConnection(url, user, password);
+      event.succeeded = true;
+      return conn;
+    }
+    finally
+    {
+      event.end();
+      if (event.shouldCommit())
+      {
+        event.url = url;
+        event.commit();
+      }
+    }
+  }
+
+  @Name("flightservice.Transaction")
+  @Label("Transaction")
+  @Category({"Flight Service"})
+  @Description("One Query.transaction_* call")
+  @StackTrace(false)
+  static final class Transaction extends Event
+  {
+    @Label("Command")
+    String command;
+
+    @Label("User")
+    String user;
+
+    @Label("Origin")
+    String origin;
+
+    @Label("Destination")
+    String destination;
+
+    @Label("Day Of Month")
+    int dayOfMonth;
+
+    @Label("Itinerary")
+    @Description("Itinerary booked, or -1")
+    int itineraryId = -1;
+
+    @Label("Itinerary Token")
+    @Description("Token of the itinerary booked, if booked by token")
+    String token;
+
+    @Label("First Flight")
+    @Description("Flight booked, or 0")
+    int fid1;
+
+    @Label("Second Flight")
+    @Description("Second flight of a two-hop itinerary booked, or 0")
+    int fid2;
+
+    @Label("Reservation")
+    @Description("Reservation paid or canceled, or 0")
+    int reservationId;
+
+    @Label("Outcome")
+    String outcome;
+  }
+
+  @Name("flightservice.Statement")
+  @Label("SQL Statement")
+  @Category({"Flight Service", "JDBC"})
+  @Description("One execution of a prepared statement")
+  @StackTrace(false)
+  static final class Statement extends Event
+  {
+    @Label("Statement")
+    String statement;
+
+    @Label("Parameters")
+    String parameters;
+
+    @Label("Rows Updated")
+    @Description("Update count, or -1 for a query")
+    int rows;
+
+    @Label("Outcome")
+    String outcome;
+  }
+
+  @Name("flightservice.Connect")
+  @Label("Connect")
+  @Category({"Flight Service", "JDBC"})
+  @Description("Opening a session's database connection")
+  @StackTrace(false)
+  static final class Connect extends Event
+  {
+    @Label("URL")
+    String url;
+
+    @Label("Succeeded")
+    boolean succeeded;
+  }
+
+  @Name("flightservice.Render")
+  @Label("Render Itineraries")
+  @Category({"Flight Service"})
+  @Description("Rendering search results in flightAssorter")
+  @StackTrace(false)
+  static final class Render extends Event
+  {
+    @Label("Itineraries")
+    int itineraries;
+
+    @Label("Flights")
+    int flights;
+
+    @Label("Characters")
+    int characters;
+  }
+}
@@ -0,0 +1,846 @@
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.zip.CRC32;
+
+/**
+ * Immutable in-memory index of the FLIGHTS table, used by the in-memory backend to answer
+ * searches.
+ *
+ * Flights are stored column-wise in int buffers and cities are numbered through a dictionary.
+ * Non-canceled flights are grouped by (day, origin, destination) into routes whose flights are
+ * sorted by duration and fid, the order of {@code DIRECT_FLIGHTS}; every (day, origin) also
+ * lists the destinations it has flights to, for one-stop searches.
+ *
+ * An index can be saved as a snapshot file and memory-mapped back (see {@link #save} and
+ * {@link #map}), in which case the columns and hash tables are read straight from the page
+ * cache instead of being rebuilt on the heap. A snapshot records a stamp of the data it was
+ * built from and is ignored once the source no longer matches it.
+ */
+class FlightIndex
+{
+  static final String SELECT_FLIGHTS = "SELECT fid, day_of_month, carrier_id, flight_num, origin_city, dest_city, "
+          + "actual_time, capacity, price, canceled FROM Flights";
+
+  // cheap fingerprint of FLIGHTS, compared with the one a snapshot was built from
+  static final String FLIGHTS_STAMP = "SELECT COUNT_BIG(*), MAX(fid), CHECKSUM_AGG(CHECKSUM(fid, day_of_month, "
+          + "carrier_id, flight_num, origin_city, dest_city, actual_time, capacity, price, canceled)) FROM Flights";
+
+  private static final int MAGIC = 0x464c4958; // "FLIX"
+  private static final int VERSION = 1;
+  // magic, version, stamp, body length, body CRC32
+  private static final int HEADER = 32;
+
+  private final int n;
+
+  // flight columns, by flight index; carrier and flightNum are indexes into names
+  private final IntBuffer fid;
+  private final IntBuffer day;
+  private final IntBuffer origin;
+  private final IntBuffer dest;
+  private final IntBuffer time;
+  private final IntBuffer capacity;
+  private final IntBuffer price;
+  private final IntBuffer carrier;
+  private final IntBuffer flightNum;
+  private final ByteBuffer canceled;
+
+  private final String[] names;
+  private final String[] cities;
+  private final Map<String, Integer> cityIds;
+
+  private final LongIntMap fidToIndex;
+
+  // flights of route r are routeFlights[routeStart[r] .. routeStart[r + 1])
+  private final LongIntMap routes;
+  private final IntBuffer routeStart;
+  private final IntBuffer routeFlights;
+
+  // destinations of (day, origin) o are outDests[outStart[o] .. outStart[o + 1])
+  private final LongIntMap outs;
+  private final IntBuffer outStart;
+  private final IntBuffer outDests;
+
+  static long routeKey(int day, int origin, int dest)
+  {
+    return ((long) day << 42) | ((long) origin << 21) | dest;
+  }
+
+  static long outKey(int day, int origin)
+  {
+    return ((long) day << 21) | origin;
+  }
+
+  /**
+   * Collects flights and builds the index from them.
+   */
+  static class Builder
+  {
+    private int n;
+    private int[] fid = new int[1024];
+    private int[] day = new int[1024];
+    private int[] origin = new int[1024];
+    private int[] dest = new int[1024];
+    private int[] time = new int[1024];
+    private int[] capacity = new int[1024];
+    private int[] price = new int[1024];
+    private int[] carrier = new int[1024];
+    private int[] flightNum = new int[1024];
+    private byte[] canceled = new byte[1024];
+
+    private final List<String> cities = new ArrayList<>();
+    private final Map<String, Integer> cityIds = new HashMap<>();
+    // carriers and flight numbers repeat a lot, so keep one copy of each
+    private final List<String> names = new ArrayList<>();
+    private final Map<String, Integer> nameIds = new HashMap<>();
+
+    private static int id(String s, List<String> values, Map<String, Integer> ids)
+    {
+      Integer id = ids.get(s);
+      if (id == null)
+      {
+        id = values.size();
+        values.add(s);
+        ids.put(s, id);
+      }
+      return id;
+    }
+
+    Builder add(int fid, int day, String carrier, String flightNum, String originCity, String destCity,
+                int time, int capacity, int price, boolean canceled)
+    {
+      if (n == this.fid.length)
+      {
+        int size = n << 1;
+        this.fid = Arrays.copyOf(this.fid, size);
+        this.day = Arrays.copyOf(this.day, size);
+        this.origin = Arrays.copyOf(this.origin, size);
+        this.dest = Arrays.copyOf(this.dest, size);
+        this.time = Arrays.copyOf(this.time, size);
+        this.capacity = Arrays.copyOf(this.capacity, size);
+        this.price = Arrays.copyOf(this.price, size);
+        this.carrier = Arrays.copyOf(this.carrier, size);
+        this.flightNum = Arrays.copyOf(this.flightNum, size);
+        this.canceled = Arrays.copyOf(this.canceled, size);
+      }
+      this.fid[n] = fid;
+      this.day[n] = day;
+      this.carrier[n] = id(carrier, names, nameIds);
+      this.flightNum[n] = id(flightNum, names, nameIds);
+      this.origin[n] = id(originCity, cities, cityIds);
+      this.dest[n] = id(destCity, cities, cityIds);
+      this.time[n] = time;
+      this.capacity[n] = capacity;
+      this.price[n] = price;
+      this.canceled[n] = (byte) (canceled ? 1 : 0);
+      n++;
+      return this;
+    }
+
+    FlightIndex build()
+    {
+      LongIntMap fidToIndex = new LongIntMap(n);
+      for (int i = 0; i < n; i++)
+        fidToIndex.put(fid[i], i);
+
+      // number the routes and count their flights
+      LongIntMap routes = new LongIntMap(1024);
+      int[] routeOf = new int[n];
+      int[] counts = new int[16];
+      for (int i = 0; i < n; i++)
+      {
+        if (canceled[i] != 0)
+        {
+          routeOf[i] = -1;
+          continue;
+        }
+        long key = routeKey(day[i], origin[i], dest[i]);
+        int r = routes.get(key);
+        if (r < 0)
+        {
+          r = routes.size();
+          routes.put(key, r);
+          if (r == counts.length)
+            counts = Arrays.copyOf(counts, r << 1);
+        }
+        routeOf[i] = r;
+        counts[r]++;
+      }
+
+      int nroutes = routes.size();
+      int[] routeStart = new int[nroutes + 1];
+      for (int r = 0; r < nroutes; r++)
+        routeStart[r + 1] = routeStart[r] + counts[r];
+
+      // fill each route with (time, fid) pairs so a plain sort gives the DIRECT_FLIGHTS order
+      long[] sorted = new long[routeStart[nroutes]];
+      int[] fill = Arrays.copyOf(routeStart, nroutes);
+      for (int i = 0; i < n; i++)
+      {
+        if (routeOf[i] >= 0)
+          sorted[fill[routeOf[i]]++] = ((long) time[i] << 32) | (fid[i] & 0xffffffffL);
+      }
+      int[] routeFlights = new int[sorted.length];
+      for (int r = 0; r < nroutes; r++)
+      {
+        Arrays.sort(sorted, routeStart[r], routeStart[r + 1]);
+        for (int k = routeStart[r]; k < routeStart[r + 1]; k++)
+          routeFlights[k] = fidToIndex.get((int) sorted[k]);
+      }
+
+      // destinations per (day, origin), one entry per route
+      LongIntMap outs = new LongIntMap(1024);
+      int[] outOf = new int[nroutes];
+      int[] outCounts = new int[16];
+      for (int r = 0; r < nroutes; r++)
+      {
+        int first = routeFlights[routeStart[r]];
+        long key = outKey(day[first], origin[first]);
+        int o = outs.get(key);
+        if (o < 0)
+        {
+          o = outs.size();
+          outs.put(key, o);
+          if (o == outCounts.length)
+            outCounts = Arrays.copyOf(outCounts, o << 1);
+        }
+        outOf[r] = o;
+        outCounts[o]++;
+      }
+      int nouts = outs.size();
+      int[] outStart = new int[nouts + 1];
+      for (int o = 0; o < nouts; o++)
+        outStart[o + 1] = outStart[o] + outCounts[o];
+      int[] outDests = new int[nroutes];
+      int[] outFill = Arrays.copyOf(outStart, nouts);
+      for (int r = 0; r < nroutes; r++)
+        outDests[outFill[outOf[r]]++] = dest[routeFlights[routeStart[r]]];
+      for (int o = 0; o < nouts; o++)
+        Arrays.sort(outDests, outStart[o], outStart[o + 1]);
+
+      return new FlightIndex(n, column(fid), column(day), column(origin), column(dest), column(time),
+              column(capacity), column(price), column(carrier), column(flightNum),
+              ByteBuffer.wrap(Arrays.copyOf(canceled, n)), names.toArray(new String[0]),
+              cities.toArray(new String[0]), fidToIndex, routes, IntBuffer.wrap(routeStart),
+              IntBuffer.wrap(routeFlights), outs, IntBuffer.wrap(outStart), IntBuffer.wrap(outDests));
+    }
+
+    private IntBuffer column(int[] values)
+    {
+      return IntBuffer.wrap(Arrays.copyOf(values, n));
+    }
+  }
+
+  private FlightIndex(int n, IntBuffer fid, IntBuffer day, IntBuffer origin, IntBuffer dest, IntBuffer time,
+                      IntBuffer capacity, IntBuffer price, IntBuffer carrier, IntBuffer flightNum,
+                      ByteBuffer canceled, String[] names, String[] cities, LongIntMap fidToIndex,
+                      LongIntMap routes, IntBuffer routeStart, IntBuffer routeFlights,
+                      LongIntMap outs, IntBuffer outStart, IntBuffer outDests)
+  {
+    this.n = n;
+    this.fid = fid;
+    this.day = day;
+    this.origin = origin;
+    this.dest = dest;
+    this.time = time;
+    this.capacity = capacity;
+    this.price = price;
+    this.carrier = carrier;
+    this.flightNum = flightNum;
+    this.canceled = canceled;
+    this.names = names;
+    this.cities = cities;
+    this.fidToIndex = fidToIndex;
+    this.routes = routes;
+    this.routeStart = routeStart;
+    this.routeFlights = routeFlights;
+    this.outs = outs;
+    this.outStart = outStart;
+    this.outDests = outDests;
+
+    cityIds = new HashMap<>();
+    for (int c = 0; c < cities.length; c++)
+      cityIds.put(cities[c], c);
+  }
+
+  int size()
+  {
+    return n;
+  }
+
+  /**
+   * @return the flight index of {@code fid}, or -1 if there is no such flight
+   */
+  int indexOf(int fid)
+  {
+    return fidToIndex.get(fid);
+  }
+
+  /**
+   * @return the id of the named city, or -1 if no flight touches it
+   */
+  int city(String name)
+  {
+    Integer id = cityIds.get(name);
+    return id == null ? -1 : id;
+  }
+
+  String cityName(int city)
+  {
+    return cities[city];
+  }
+
+  int cities()
+  {
+    return cities.length;
+  }
+
+  int fid(int i) { return fid.get(i); }
+  int day(int i) { return day.get(i); }
+  int origin(int i) { return origin.get(i); }
+  int dest(int i) { return dest.get(i); }
+  int time(int i) { return time.get(i); }
+  int capacity(int i) { return capacity.get(i); }
+  int price(int i) { return price.get(i); }
+  boolean canceled(int i) { return canceled.get(i) != 0; }
+  String carrier(int i) { return names[carrier.get(i)]; }
+  String flightNum(int i) { return names[flightNum.get(i)]; }
+
+  /**
+   * @return the id of route (day, origin, dest), or -1 if it has no non-canceled flights
+   */
+  int route(int day, int origin, int dest)
+  {
+    return routes.get(routeKey(day, origin, dest));
+  }
+
+  int routeSize(int route)
+  {
+    return route < 0 ? 0 : routeStart.get(route + 1) - routeStart.get(route);
+  }
+
+  /**
+   * @return the flight index of the k-th fastest non-canceled flight of {@code route}
+   */
+  int routeFlight(int route, int k)
+  {
+    return routeFlights.get(routeStart.get(route) + k);
+  }
+
+  /**
+   * @return the id of the destination list of (day, origin), or -1 if it has no non-canceled flights
+   */
+  int out(int day, int origin)
+  {
+    return outs.get(outKey(day, origin));
+  }
+
+  int outSize(int out)
+  {
+    return out < 0 ? 0 : outStart.get(out + 1) - outStart.get(out);
+  }
+
+  /**
+   * @return the k-th destination, in id order, of destination list {@code out}
+   */
+  int outDest(int out, int k)
+  {
+    return outDests.get(outStart.get(out) + k);
+  }
+
+  /**
+   * @return the destinations with non-canceled flights from {@code origin} on {@code day}, in id order
+   */
+  int[] destinations(int day, int origin)
+  {
+    int o = outs.get(outKey(day, origin));
+    if (o < 0)
+      return new int[0];
+    int start = outStart.get(o);
+    int[] dests = new int[outStart.get(o + 1) - start];
+    for (int k = 0; k < dests.length; k++)
+      dests[k] = outDests.get(start + k);
+    return dests;
+  }
+
+  /**
+   * @return the flight as printed by searches and reservations
+   */
+  Query.Flight flight(int i)
+  {
+    Query.Flight f = new Query.Flight();
+    f.fid = fid(i);
+    f.dayOfMonth = day(i);
+    f.carrierId = carrier(i);
+    f.flightNum = flightNum(i);
+    f.originCity = cities[origin(i)];
+    f.destCity = cities[dest(i)];
+    f.time = time(i);
+    f.capacity = capacity(i);
+    f.price = price(i);
+    return f;
+  }
+
+  /**
+   * Loads the index from the CSV file named by {@code flightservice.memory.flights} or, if
+   * that is not set, from the FLIGHTS table of the configured database.
+   *
+   * If {@code flightservice.memory.snapshot} names a file, the index is mapped from that
+   * snapshot when it was taken from the same data, and otherwise built from the source and
+   * saved there for the next start.
+   */
+  static FlightIndex load(Properties configProps) throws Exception
+  {
+    String csv = configProps.getProperty("flightservice.memory.flights", "").trim();
+    String snapshot = configProps.getProperty("flightservice.memory.snapshot", "").trim();
+    Path file = snapshot.isEmpty() ? null : Paths.get(snapshot);
+
+    if (!csv.isEmpty())
+    {
+      if (file == null)
+        return fromCsv(csv);
+      long stamp = csvStamp(Paths.get(csv));
+      FlightIndex index = map(file, stamp);
+      return index != null ? index : saved(fromCsv(csv), file, stamp);
+    }
+
+    try (Connection conn = FlightsLoader.connect(configProps, false))
+    {
+      if (file == null)
+        return fromDatabase(conn);
+      long stamp = databaseStamp(conn);
+      FlightIndex index = map(file, stamp);
+      return index != null ? index : saved(fromDatabase(conn), file, stamp);
+    }
+  }
+
+  /**
+   * @return the stamp of the configured flights source, which changes whenever its flights do
+   */
+  static long stamp(Properties configProps) throws Exception
+  {
+    String csv = configProps.getProperty("flightservice.memory.flights", "").trim();
+    if (!csv.isEmpty())
+      return csvStamp(Paths.get(csv));
+    try (Connection conn = FlightsLoader.connect(configProps, false))
+    {
+      return databaseStamp(conn);
+    }
+  }
+
+  // a snapshot that cannot be written only costs the next start a rebuild
+  private static FlightIndex saved(FlightIndex index, Path file, long stamp)
+  {
+    try
+    {
+      index.save(file, stamp);
+    }
+    catch (IOException e)
+    {
+      EventLog.warn("Cannot write flights snapshot " + file + ": " + e);
+    }
+    return index;
+  }
+
+  static long csvStamp(Path csv) throws IOException
+  {
+    return Files.size(csv) * 1000003 + Files.getLastModifiedTime(csv).toMillis();
+  }
+
+  static long databaseStamp(Connection conn) throws SQLException
+  {
+    try (Statement s = conn.createStatement(); ResultSet rs = s.executeQuery(FLIGHTS_STAMP))
+    {
+      rs.next();
+      return (rs.getLong(1) * 1000003 + rs.getLong(2)) * 1000003 + rs.getLong(3);
+    }
+  }
+
+  static FlightIndex fromDatabase(Connection conn) throws SQLException
+  {
+    Builder b = new Builder();
+    try (Statement s = conn.createStatement())
+    {
+      s.setFetchSize(10000);
+      try (ResultSet rs = s.executeQuery(SELECT_FLIGHTS))
+      {
+        while (rs.next())
+        {
+          b.add(rs.getInt("fid"), rs.getInt("day_of_month"), rs.getString("carrier_id"),
+                  rs.getString("flight_num"), rs.getString("origin_city"), rs.getString("dest_city"),
+                  rs.getInt("actual_time"), rs.getInt("capacity"), rs.getInt("price"), rs.getInt("canceled") == 1);
+        }
+      }
+    }
+    return b.build();
+  }
+
+  /**
+   * Reads a CSV with a header line naming the FLIGHTS columns, as written by {@code FlightsGenerator}.
+   */
+  static FlightIndex fromCsv(String filename) throws IOException
+  {
+    Builder b = new Builder();
+    try (FlightsLoader.CsvSource in = new FlightsLoader.CsvSource(filename))
+    {
+      List<String> header = Arrays.asList(in.header());
+      int cFid = column(header, "fid"), cDay = column(header, "day_of_month"),
+              cCarrier = column(header, "carrier_id"), cNum = column(header, "flight_num"),
+              cOrigin = column(header, "origin_city"), cDest = column(header, "dest_city"),
+              cTime = column(header, "actual_time"), cCapacity = column(header, "capacity"),
+              cPrice = column(header, "price"), cCanceled = column(header, "canceled");
+      for (String[] r = in.next(); r != null; r = in.next())
+      {
+        b.add(number(r[cFid]), number(r[cDay]), r[cCarrier], r[cNum], r[cOrigin], r[cDest],
+                number(r[cTime]), number(r[cCapacity]), number(r[cPrice]), number(r[cCanceled]) == 1);
+      }
+    }
+    return b.build();
+  }
+
+  private static int column(List<String> header, String name) throws IOException
+  {
+    int i = header.indexOf(name);
+    if (i < 0)
+      throw new IOException("flights file has no " + name + " column");
+    return i;
+  }
+
+  // missing numbers (NULL in the database) read as 0, like ResultSet.getInt
+  private static int number(String s)
+  {
+    s = s.trim();
+    return s.isEmpty() ? 0 : Integer.parseInt(s);
+  }
+
+  /**
+   * Writes the index to {@code file} as a snapshot taken from data with the given stamp.
+   *
+   * After the header every section starts on an 8-byte boundary with its element count; the
+   * columns and hash tables follow in native byte order so that {@link #map} can view them in
+   * place. The file is written next to its destination and renamed over it once complete.
+   */
+  void save(Path file, long stamp) throws IOException
+  {
+    Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+    try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING))
+    {
+      SnapshotWriter out = new SnapshotWriter(channel);
+      out.strings(cities);
+      out.strings(names);
+      for (IntBuffer column : new IntBuffer[] {fid, day, origin, dest, time, capacity, price, carrier, flightNum})
+        out.ints(column);
+      out.bytes(canceled);
+      out.map(fidToIndex);
+      out.map(routes);
+      out.ints(routeStart);
+      out.ints(routeFlights);
+      out.map(outs);
+      out.ints(outStart);
+      out.ints(outDests);
+      out.flush();
+
+      ByteBuffer header = ByteBuffer.allocate(HEADER).order(ByteOrder.nativeOrder());
+      header.putInt(MAGIC).putInt(VERSION).putLong(stamp).putLong(out.length).putLong(out.crc.getValue());
+      header.flip();
+      channel.write(header, 0);
+      channel.force(true);
+    }
+    Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Maps a snapshot written by {@link #save}.
+   *
+   * @return the index, or null if the file is missing, damaged, from another version or byte
+   * order, or was taken from data with a different stamp
+   */
+  static FlightIndex map(Path file, long stamp) throws IOException
+  {
+    if (!Files.exists(file))
+      return null;
+    MappedByteBuffer m;
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+    {
+      if (channel.size() < HEADER || channel.size() > Integer.MAX_VALUE)
+        return stale(file, "unusable size " + channel.size());
+      // the mapping stays valid after the channel is closed
+      m = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+    m.order(ByteOrder.nativeOrder());
+
+    if (m.getInt(0) != MAGIC || m.getInt(4) != VERSION)
+      return stale(file, "not a version " + VERSION + " snapshot in " + ByteOrder.nativeOrder() + " order");
+    if (m.getLong(8) != stamp)
+      return stale(file, "flights have changed since it was taken");
+    if (m.getLong(16) != m.capacity() - HEADER)
+      return stale(file, "truncated");
+    CRC32 crc = new CRC32();
+    ByteBuffer body = m.duplicate();
+    body.position(HEADER);
+    crc.update(body);
+    if (crc.getValue() != m.getLong(24))
+      return stale(file, "checksum mismatch");
+
+    SnapshotReader in = new SnapshotReader(m);
+    String[] cities = in.strings();
+    String[] names = in.strings();
+    IntBuffer fid = in.ints(), day = in.ints(), origin = in.ints(), dest = in.ints(), time = in.ints(),
+            capacity = in.ints(), price = in.ints(), carrier = in.ints(), flightNum = in.ints();
+    ByteBuffer canceled = in.bytes();
+    LongIntMap fidToIndex = in.map();
+    LongIntMap routes = in.map();
+    IntBuffer routeStart = in.ints(), routeFlights = in.ints();
+    LongIntMap outs = in.map();
+    IntBuffer outStart = in.ints(), outDests = in.ints();
+    return new FlightIndex(fid.capacity(), fid, day, origin, dest, time, capacity, price, carrier, flightNum,
+            canceled, names, cities, fidToIndex, routes, routeStart, routeFlights, outs, outStart, outDests);
+  }
+
+  private static FlightIndex stale(Path file, String why)
+  {
+    EventLog.warn("Ignoring flights snapshot " + file + ": " + why);
+    return null;
+  }
+
+  /**
+   * Buffers snapshot sections and keeps the running length and CRC of everything after the header.
+   */
+  private static final class SnapshotWriter
+  {
+    final FileChannel channel;
+    final ByteBuffer buf = ByteBuffer.allocateDirect(1 << 20).order(ByteOrder.nativeOrder());
+    final CRC32 crc = new CRC32();
+    long length;
+
+    SnapshotWriter(FileChannel channel) throws IOException
+    {
+      this.channel = channel;
+      channel.position(HEADER);
+    }
+
+    private ByteBuffer room(int bytes) throws IOException
+    {
+      if (buf.remaining() < bytes)
+        flush();
+      return buf;
+    }
+
+    void flush() throws IOException
+    {
+      buf.flip();
+      ByteBuffer written = buf.duplicate();
+      while (buf.hasRemaining())
+        channel.write(buf);
+      crc.update(written);
+      buf.clear();
+    }
+
+    // every section starts on an 8-byte boundary with its count, padded to 8 bytes
+    private void count(int count) throws IOException
+    {
+      while (length % 8 != 0)
+      {
+        room(1).put((byte) 0);
+        length++;
+      }
+      room(8).putInt(count).putInt(0);
+      length += 8;
+    }
+
+    void strings(String[] values) throws IOException
+    {
+      count(values.length);
+      for (String s : values)
+      {
+        byte[] utf = s == null ? null : s.getBytes(StandardCharsets.UTF_8);
+        room(4).putInt(utf == null ? -1 : utf.length);
+        length += 4;
+        if (utf != null)
+        {
+          for (byte b : utf)
+            room(1).put(b);
+          length += utf.length;
+        }
+      }
+    }
+
+    void ints(IntBuffer values) throws IOException
+    {
+      count(values.capacity());
+      for (int i = 0; i < values.capacity(); i++)
+        room(4).putInt(values.get(i));
+      length += 4L * values.capacity();
+    }
+
+    void bytes(ByteBuffer values) throws IOException
+    {
+      count(values.capacity());
+      for (int i = 0; i < values.capacity(); i++)
+        room(1).put(values.get(i));
+      length += values.capacity();
+    }
+
+    void map(LongIntMap map) throws IOException
+    {
+      LongBuffer keys = map.keys();
+      IntBuffer values = map.values();
+      count(map.size());
+      count(keys.capacity());
+      for (int i = 0; i < keys.capacity(); i++)
+        room(8).putLong(keys.get(i));
+      length += 8L * keys.capacity();
+      for (int i = 0; i < values.capacity(); i++)
+        room(4).putInt(values.get(i));
+      length += 4L * values.capacity();
+    }
+  }
+
+  /**
+   * Walks the sections of a mapped snapshot in the order {@code SnapshotWriter} wrote them,
+   * returning views of the mapping rather than copies.
+   */
+  private static final class SnapshotReader
+  {
+    final ByteBuffer m;
+    int position = HEADER;
+
+    SnapshotReader(ByteBuffer m)
+    {
+      this.m = m;
+    }
+
+    private int count()
+    {
+      position = (position + 7) & ~7;
+      int count = m.getInt(position);
+      position += 8;
+      return count;
+    }
+
+    private ByteBuffer slice(int bytes)
+    {
+      ByteBuffer b = m.duplicate();
+      b.position(position).limit(position + bytes);
+      position += bytes;
+      return b.slice().order(ByteOrder.nativeOrder());
+    }
+
+    String[] strings()
+    {
+      String[] values = new String[count()];
+      for (int i = 0; i < values.length; i++)
+      {
+        int len = m.getInt(position);
+        position += 4;
+        if (len >= 0)
+        {
+          byte[] utf = new byte[len];
+          slice(len).get(utf);
+          values[i] = new String(utf, StandardCharsets.UTF_8);
+        }
+      }
+      return values;
+    }
+
+    IntBuffer ints()
+    {
+      int count = count();
+      return slice(4 * count).asIntBuffer();
+    }
+
+    ByteBuffer bytes()
+    {
+      int count = count();
+      return slice(count);
+    }
+
+    LongIntMap map()
+    {
+      int size = count();
+      int capacity = count();
+      LongBuffer keys = slice(8 * capacity).asLongBuffer();
+      IntBuffer values = slice(4 * capacity).asIntBuffer();
+      return new LongIntMap(keys, values, size);
+    }
+  }
+
+  /**
+   * Builds the index from the configured source and writes it to a snapshot file, so that
+   * services started with {@code flightservice.memory.snapshot} pointing at it map it at once.
+   */
+  public static void main (String[] args) throws Exception
+  {
+    String config = FlightsLoader.DEFAULT_CONFIG;
+    String snapshot = null;
+    for (int i = 0; i < args.length; i++)
+    {
+      switch (args[i])
+      {
+        case "-config": config = args[++i]; break;
+        case "-snapshot": snapshot = args[++i]; break;
+        default:
+          System.err.println("unknown option " + args[i]);
+          System.exit(1);
+      }
+    }
+    if (snapshot == null)
+    {
+      System.err.println("Usage: java FlightIndex [-config dbconn.properties] -snapshot flights.idx");
+      System.exit(1);
+    }
+
+    Properties configProps = new Properties();
+    try (FileInputStream in = new FileInputStream(config))
+    {
+      configProps.load(in);
+    }
+
+    long start = System.nanoTime();
+    String csv = configProps.getProperty("flightservice.memory.flights", "").trim();
+    FlightIndex index;
+    long stamp;
+    if (!csv.isEmpty())
+    {
+      stamp = csvStamp(Paths.get(csv));
+      index = fromCsv(csv);
+    }
+    else
+    {
+      try (Connection conn = FlightsLoader.connect(configProps, false))
+      {
+        stamp = databaseStamp(conn);
+        index = fromDatabase(conn);
+      }
+    }
+    index.save(Paths.get(snapshot), stamp);
+    System.out.printf("wrote %d flights to %s in %.1f s%n", index.size(), snapshot,
+            (System.nanoTime() - start) / 1e9);
+
+    start = System.nanoTime();
+    map(Paths.get(snapshot), stamp);
+    System.out.printf("mapped it back in %.1f ms%n", (System.nanoTime() - start) / 1e6);
+  }
+}
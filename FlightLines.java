@@ -0,0 +1,129 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Process-wide cache of the encoded text of a flight line, keyed by fid.
+ *
+ * Everything printed for a flight except its capacity is cached per fid, so the
+ * line is stored as a pre-encoded prefix (up to and including " Capacity: ") and suffix
+ * (" Price: [price]\n"). Rendering a flight is then two array copies and one integer.
+ * The table is shared by all sessions and never locks; a lost race just encodes the
+ * same line twice. A cached line is only reused for a flight that prints the same in
+ * every field, so a search still rendering from flights that were since reloaded cannot
+ * leave its text behind for searches of the new ones.
+ */
+public class FlightLines
+{
+  private static final int BUCKETS = 1 << 16;
+
+  private static final AtomicReferenceArray<Line> table = new AtomicReferenceArray<Line>(BUCKETS);
+
+  private static final LongAdder MISSES = Metrics.counter("cache.flightLines.misses");
+
+  static final class Line
+  {
+    final int fid;
+    final int dayOfMonth;
+    final String carrierId;
+    final String flightNum;
+    final String originCity;
+    final String destCity;
+    final int time;
+    final int price;
+    final byte[] prefix;
+    final byte[] suffix;
+    final Line next;
+
+    Line(Query.Flight f, Line next)
+    {
+      this.fid = f.fid;
+      this.dayOfMonth = f.dayOfMonth;
+      this.carrierId = f.carrierId;
+      this.flightNum = f.flightNum;
+      this.originCity = f.originCity;
+      this.destCity = f.destCity;
+      this.time = f.time;
+      this.price = f.price;
+      this.prefix = ("ID: " + f.fid + " Day: " + f.dayOfMonth + " Carrier: " + f.carrierId +
+              " Number: " + f.flightNum + " Origin: " + f.originCity + " Dest: " + f.destCity +
+              " Duration: " + f.time + " Capacity: ").getBytes(StandardCharsets.UTF_8);
+      this.suffix = (" Price: " + f.price + "\n").getBytes(StandardCharsets.UTF_8);
+      this.next = next;
+    }
+
+    Line(Line l, Line next)
+    {
+      this.fid = l.fid;
+      this.dayOfMonth = l.dayOfMonth;
+      this.carrierId = l.carrierId;
+      this.flightNum = l.flightNum;
+      this.originCity = l.originCity;
+      this.destCity = l.destCity;
+      this.time = l.time;
+      this.price = l.price;
+      this.prefix = l.prefix;
+      this.suffix = l.suffix;
+      this.next = next;
+    }
+
+    boolean matches(Query.Flight f)
+    {
+      return fid == f.fid && dayOfMonth == f.dayOfMonth && time == f.time && price == f.price
+              && Objects.equals(carrierId, f.carrierId) && Objects.equals(flightNum, f.flightNum)
+              && Objects.equals(originCity, f.originCity) && Objects.equals(destCity, f.destCity);
+    }
+  }
+
+  private FlightLines() {}
+
+  /**
+   * Writes {@code f} in the {@code Flight.toString()} format followed by a newline.
+   */
+  public static void write(ResponseWriter out, Query.Flight f)
+  {
+    Line line = lookup(f);
+    out.append(line.prefix).append(f.capacity).append(line.suffix);
+  }
+
+  static Line lookup(Query.Flight f)
+  {
+    int i = f.fid & (BUCKETS - 1);
+    Line head = table.get(i);
+    for (Line l = head; l != null; l = l.next)
+    {
+      if (l.matches(f))
+        return l;
+    }
+
+    // drop any stale entry for this fid (e.g. a price change or a reload) while prepending the new one
+    MISSES.increment();
+    Line line = new Line(f, without(head, f.fid));
+    table.compareAndSet(i, head, line);
+    return line;
+  }
+
+  private static Line without(Line head, int fid)
+  {
+    if (head == null)
+      return null;
+    Line rest = without(head.next, fid);
+    if (head.fid == fid)
+      return rest;
+    if (rest == head.next)
+      return head;
+    return new Line(head, rest);
+  }
+
+  /**
+   * Forgets every cached line, e.g. after flight data has been reloaded, so lines of flights
+   * that are gone do not stay in the table. Lines stale only in their text would be replaced
+   * on first use anyway.
+   */
+  public static void clear()
+  {
+    for (int i = 0; i < BUCKETS; i++)
+      table.set(i, null);
+  }
+}
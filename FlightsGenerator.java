@@ -0,0 +1,347 @@
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.Random;
+
+/**
+ * Generates a synthetic FLIGHTS table with the columns described in {@code createTables.sql}.
+ *
+ * The output is fully determined by the seed and the options, so two runs with the same
+ * arguments produce the same rows. Scale factor 1 is sized like the course dataset (one
+ * month, about 1.1 million flights between 300 cities); flights and cities both grow with
+ * the scale factor. A configurable share of flights touches one of a few hub cities, picked
+ * with a Zipf skew, and capacities can be skewed towards nearly full flights to create
+ * booking contention.
+ *
+ * Usage: java FlightsGenerator [-scale f] [-cities n] [-seed n] [-hubs n] [-hubShare p]
+ *                              [-hubSkew s] [-capacitySkew k] [-out flights.csv]
+ *                              [-load dbconn.properties] [-createTable] [-batch n] [-writers n]
+ */
+public class FlightsGenerator
+{
+  static final int BASE_FLIGHTS = 1_150_000;
+  static final int BASE_CITIES = 300;
+
+  static final String CREATE_FLIGHTS = "CREATE TABLE FLIGHTS (fid int, month_id int, day_of_month int, "
+          + "day_of_week_id int, carrier_id varchar(7), flight_num int, origin_city varchar(34), "
+          + "origin_state varchar(47), dest_city varchar(34), dest_state varchar(46), departure_delay int, "
+          + "taxi_out int, arrival_delay int, canceled int, actual_time int, distance int, capacity int, "
+          + "price int, PRIMARY KEY (fid))";
+
+  static final String[] HEADER = { "fid", "month_id", "day_of_month", "day_of_week_id", "carrier_id",
+          "flight_num", "origin_city", "origin_state", "dest_city", "dest_state", "departure_delay",
+          "taxi_out", "arrival_delay", "canceled", "actual_time", "distance", "capacity", "price" };
+
+  // real cities come first, so they are the hubs and the test case searches find flights
+  static final String[][] KNOWN_CITIES = {
+          { "Chicago IL", "Illinois" }, { "Atlanta GA", "Georgia" },
+          { "Dallas/Fort Worth TX", "Texas" }, { "Denver CO", "Colorado" },
+          { "Los Angeles CA", "California" }, { "New York NY", "New York" },
+          { "San Francisco CA", "California" }, { "Seattle WA", "Washington" },
+          { "Boston MA", "Massachusetts" }, { "Kahului HI", "Hawaii" },
+  };
+
+  static final String[][] STATES = {
+          { "AL", "Alabama" }, { "AZ", "Arizona" }, { "CA", "California" }, { "CO", "Colorado" },
+          { "FL", "Florida" }, { "GA", "Georgia" }, { "IL", "Illinois" }, { "MA", "Massachusetts" },
+          { "MI", "Michigan" }, { "MN", "Minnesota" }, { "NC", "North Carolina" }, { "NY", "New York" },
+          { "OH", "Ohio" }, { "OR", "Oregon" }, { "PA", "Pennsylvania" }, { "TX", "Texas" },
+          { "UT", "Utah" }, { "VA", "Virginia" }, { "WA", "Washington" }, { "WI", "Wisconsin" },
+  };
+
+  static final String[] CARRIERS = { "AA", "AS", "B6", "DL", "EV", "F9", "HA", "MQ", "NK", "OO", "UA", "US", "VX", "WN" };
+
+  // July 2015, the month of the course dataset; the 1st was a Wednesday
+  static final int MONTH = 7;
+  static final int DAYS = 31;
+  static final int FIRST_DAY_OF_WEEK = 3;
+
+  double scale = 1.0;
+  int cityCount = 0; // 0 derives the number of cities from the scale factor
+  long seed = 344;
+  int hubs = 8;
+  double hubShare = 0.6;
+  double hubSkew = 1.0;
+  double capacitySkew = 1.0;
+  int maxCapacity = 20;
+
+  private String[] cities;
+  private String[] states;
+  private double[] hubWeights;
+  private Random rnd;
+  private int fid;
+
+  /**
+   * One generated FLIGHTS row, in column order.
+   */
+  static class Row
+  {
+    int fid, month, day, dayOfWeek;
+    String carrier;
+    int flightNum;
+    String originCity, originState, destCity, destState;
+    int departureDelay, taxiOut, arrivalDelay, canceled, time, distance, capacity, price;
+
+    Object[] values ()
+    {
+      return new Object[] { fid, month, day, dayOfWeek, carrier, flightNum, originCity, originState,
+              destCity, destState, departureDelay, taxiOut, arrivalDelay, canceled, time, distance, capacity, price };
+    }
+  }
+
+  public long flights ()
+  {
+    return Math.max(1, Math.round(BASE_FLIGHTS * scale));
+  }
+
+  public int cities ()
+  {
+    if (cityCount > 0)
+      return Math.max(2, cityCount);
+    return Math.max(KNOWN_CITIES.length, (int) Math.round(BASE_CITIES * Math.sqrt(Math.max(scale, 0))));
+  }
+
+  /**
+   * Resets the generator to the first row.
+   */
+  public void reset ()
+  {
+    rnd = new Random(seed);
+    fid = 0;
+
+    int n = cities();
+    cities = new String[n];
+    states = new String[n];
+    for (int i = 0; i < n; i++)
+    {
+      if (i < KNOWN_CITIES.length)
+      {
+        cities[i] = KNOWN_CITIES[i][0];
+        states[i] = KNOWN_CITIES[i][1];
+      }
+      else
+      {
+        String[] state = STATES[i % STATES.length];
+        cities[i] = "City" + i + " " + state[0];
+        states[i] = state[1];
+      }
+    }
+
+    int h = Math.min(hubs, n);
+    hubWeights = new double[h];
+    double total = 0;
+    for (int i = 0; i < h; i++)
+      total += hubWeights[i] = 1.0 / Math.pow(i + 1, hubSkew);
+    for (int i = 0; i < h; i++)
+      hubWeights[i] /= total;
+  }
+
+  private int hub ()
+  {
+    double u = rnd.nextDouble();
+    for (int i = 0; i < hubWeights.length; i++)
+    {
+      u -= hubWeights[i];
+      if (u <= 0)
+        return i;
+    }
+    return hubWeights.length - 1;
+  }
+
+  private int spoke ()
+  {
+    int h = hubWeights.length;
+    return h == cities.length ? rnd.nextInt(h) : h + rnd.nextInt(cities.length - h);
+  }
+
+  /**
+   * Distance between two cities; fixed per pair so every flight on a route has the same length.
+   */
+  private static int distance (int a, int b)
+  {
+    long x = Math.min(a, b) * 1_000_003L + Math.max(a, b);
+    x ^= x >>> 33;
+    x *= 0xff51afd7ed558ccdL;
+    x ^= x >>> 33;
+    return 100 + (int) Math.floorMod(x, 2700L);
+  }
+
+  /**
+   * @return the next row, or null after {@link #flights()} rows
+   */
+  public Row next ()
+  {
+    if (rnd == null)
+      reset();
+    if (fid >= flights())
+      return null;
+
+    int origin, dest;
+    if (hubWeights.length > 0 && rnd.nextDouble() < hubShare)
+    {
+      // hub-and-spoke: one end at a hub, the other a spoke or (rarely) another hub
+      int a = hub();
+      int b = rnd.nextDouble() < 0.2 ? hub() : spoke();
+      if (a == b)
+        b = spoke();
+      boolean outbound = rnd.nextBoolean();
+      origin = outbound ? a : b;
+      dest = outbound ? b : a;
+    }
+    else
+    {
+      origin = rnd.nextInt(cities.length);
+      do
+        dest = rnd.nextInt(cities.length);
+      while (dest == origin && cities.length > 1);
+    }
+
+    Row r = new Row();
+    r.fid = ++fid;
+    r.month = MONTH;
+    r.day = 1 + rnd.nextInt(DAYS);
+    r.dayOfWeek = (r.day - 1 + FIRST_DAY_OF_WEEK - 1) % 7 + 1;
+    r.carrier = CARRIERS[rnd.nextInt(CARRIERS.length)];
+    r.flightNum = 1 + rnd.nextInt(7000);
+    r.originCity = cities[origin];
+    r.originState = states[origin];
+    r.destCity = cities[dest];
+    r.destState = states[dest];
+    r.distance = distance(origin, dest);
+    r.departureDelay = (int) Math.round(Math.max(-15, rnd.nextGaussian() * 30));
+    r.taxiOut = 5 + rnd.nextInt(30);
+    r.arrivalDelay = r.departureDelay + rnd.nextInt(21) - 10;
+    r.canceled = rnd.nextInt(1000) < 15 ? 1 : 0;
+    r.time = r.canceled == 1 ? 0 : r.distance / 8 + 25 + rnd.nextInt(30);
+    // capacitySkew > 1 pushes flights towards being nearly full
+    r.capacity = (int) Math.floor((maxCapacity + 1) * Math.pow(rnd.nextDouble(), capacitySkew));
+    r.price = 100 + rnd.nextInt(900);
+    return r;
+  }
+
+  static String csv (Object v)
+  {
+    String s = String.valueOf(v);
+    if (s.indexOf(',') < 0 && s.indexOf('"') < 0)
+      return s;
+    return "\"" + s.replace("\"", "\"\"") + "\"";
+  }
+
+  public long writeCsv (Writer w) throws IOException
+  {
+    reset();
+    w.write(String.join(",", HEADER));
+    w.write('\n');
+    long n = 0;
+    StringBuilder sb = new StringBuilder();
+    for (Row r = next(); r != null; r = next())
+    {
+      sb.setLength(0);
+      Object[] values = r.values();
+      for (int i = 0; i < values.length; i++)
+      {
+        if (i > 0)
+          sb.append(',');
+        sb.append(csv(values[i]));
+      }
+      sb.append('\n');
+      w.write(sb.toString());
+      n++;
+    }
+    return n;
+  }
+
+  /**
+   * The generated rows as a {@code FlightsLoader} source, for loading without a CSV file.
+   */
+  public FlightsLoader.Source source ()
+  {
+    reset();
+    return new FlightsLoader.Source()
+    {
+      public String[] header ()
+      {
+        return HEADER;
+      }
+
+      public String[] next ()
+      {
+        Row r = FlightsGenerator.this.next();
+        if (r == null)
+          return null;
+        Object[] values = r.values();
+        String[] fields = new String[values.length];
+        for (int i = 0; i < values.length; i++)
+          fields[i] = String.valueOf(values[i]);
+        return fields;
+      }
+
+      public void close () {}
+    };
+  }
+
+  public static void main (String[] args) throws Exception
+  {
+    FlightsGenerator g = new FlightsGenerator();
+    String out = null;
+    String config = null;
+    boolean createTable = false;
+    FlightsLoader loader = new FlightsLoader();
+
+    for (int i = 0; i < args.length; i++)
+    {
+      switch (args[i])
+      {
+        case "-scale": g.scale = Double.parseDouble(args[++i]); break;
+        case "-cities": g.cityCount = Integer.parseInt(args[++i]); break;
+        case "-seed": g.seed = Long.parseLong(args[++i]); break;
+        case "-hubs": g.hubs = Integer.parseInt(args[++i]); break;
+        case "-hubShare": g.hubShare = Double.parseDouble(args[++i]); break;
+        case "-hubSkew": g.hubSkew = Double.parseDouble(args[++i]); break;
+        case "-capacitySkew": g.capacitySkew = Double.parseDouble(args[++i]); break;
+        case "-out": out = args[++i]; break;
+        case "-load": config = args[++i]; break;
+        case "-createTable": createTable = true; break;
+        case "-batch": loader.batchSize = Integer.parseInt(args[++i]); break;
+        case "-writers": loader.writers = Integer.parseInt(args[++i]); break;
+        default:
+          System.err.println("unknown option " + args[i]);
+          System.exit(1);
+      }
+    }
+    if (out == null && config == null)
+      out = "flights.csv";
+
+    System.out.println("generating " + g.flights() + " flights between " + g.cities() + " cities (seed " + g.seed + ")");
+
+    if (out != null)
+    {
+      long t0 = System.nanoTime();
+      try (Writer w = new BufferedWriter(new FileWriter(out), 1 << 16))
+      {
+        long n = g.writeCsv(w);
+        System.out.printf("wrote %d rows to %s in %.1f s%n", n, out, (System.nanoTime() - t0) / 1e9);
+      }
+    }
+
+    if (config != null)
+    {
+      if (createTable)
+      {
+        try (Connection conn = FlightsLoader.connect(config, false);
+             Statement s = conn.createStatement())
+        {
+          s.executeUpdate(CREATE_FLIGHTS);
+        }
+      }
+      loader.config = config;
+      try (FlightsLoader.Source source = g.source())
+      {
+        loader.load(source);
+      }
+    }
+  }
+}
@@ -0,0 +1,552 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Bulk loads a CSV file into FLIGHTS or any other table.
+ *
+ * The file is read and split into batches on the calling thread and handed through a bounded
+ * queue to a number of writer threads, each with its own connection, that insert their batch
+ * with {@code addBatch}/{@code executeBatch} and commit it as one transaction. The first line
+ * of the file names the columns. Committed batches are recorded in a checkpoint file next to
+ * the input, so a failed load can be restarted with {@code -resume} and picks up after the
+ * last committed batches instead of inserting everything again. A batch can commit without
+ * reaching the checkpoint, if the loader dies in between; on resume, a batch whose first row's
+ * primary key is already in the table is taken as committed instead of being inserted again.
+ *
+ * Usage: java FlightsLoader -config dbconn.properties [-table FLIGHTS] [-batch n] [-writers n]
+ *                           [-resume] [-bulkCopy] file.csv
+ *
+ * {@code -bulkCopy} asks the Microsoft driver (mssql-jdbc 9.2 or newer) to turn the batched
+ * inserts into a bulk copy; older drivers ignore it.
+ */
+public class FlightsLoader
+{
+  /**
+   * Rows to load, as strings in the order of {@link #header()}.
+   */
+  interface Source extends AutoCloseable
+  {
+    String[] header ();
+
+    /**
+     * @return the next row, or null at the end
+     */
+    String[] next () throws IOException;
+
+    @Override
+    void close () throws IOException;
+  }
+
+  /**
+   * Reads a CSV file with a header line; fields may be quoted with double quotes.
+   */
+  static class CsvSource implements Source
+  {
+    private final BufferedReader in;
+    private final String[] header;
+
+    CsvSource (String filename) throws IOException
+    {
+      in = new BufferedReader(new FileReader(filename), 1 << 16);
+      String l = in.readLine();
+      if (l == null)
+        throw new IOException(filename + " is empty");
+      header = parse(l);
+    }
+
+    public String[] header ()
+    {
+      return header;
+    }
+
+    public String[] next () throws IOException
+    {
+      String l;
+      do
+      {
+        l = in.readLine();
+        if (l == null)
+          return null;
+      } while (l.isEmpty());
+      return parse(l);
+    }
+
+    public void close () throws IOException
+    {
+      in.close();
+    }
+
+    static String[] parse (String line)
+    {
+      List<String> fields = new ArrayList<>();
+      StringBuilder sb = new StringBuilder();
+      boolean quoted = false;
+      for (int i = 0; i < line.length(); i++)
+      {
+        char c = line.charAt(i);
+        if (quoted)
+        {
+          if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"')
+          {
+            sb.append('"');
+            i++;
+          }
+          else if (c == '"')
+            quoted = false;
+          else
+            sb.append(c);
+        }
+        else if (c == '"')
+          quoted = true;
+        else if (c == ',')
+        {
+          fields.add(sb.toString());
+          sb.setLength(0);
+        }
+        else
+          sb.append(c);
+      }
+      fields.add(sb.toString());
+      return fields.toArray(new String[0]);
+    }
+  }
+
+  /**
+   * Batches that have been committed. Batches finish out of order with several writers, so
+   * the checkpoint keeps a watermark below which everything is committed plus the batches
+   * committed above it.
+   */
+  static class Checkpoint
+  {
+    final File file; // null keeps the checkpoint in memory only
+    long watermark; // every batch with seq < watermark is committed
+    final TreeSet<Long> done = new TreeSet<>();
+
+    Checkpoint (File file)
+    {
+      this.file = file;
+    }
+
+    void read (int batchSize) throws IOException
+    {
+      if (file == null || !file.exists())
+        return;
+      try (BufferedReader r = new BufferedReader(new FileReader(file)))
+      {
+        String l;
+        while ((l = r.readLine()) != null)
+        {
+          String[] kv = l.split("=", 2);
+          if (kv.length < 2)
+            continue;
+          if (kv[0].equals("batch") && Integer.parseInt(kv[1]) != batchSize)
+            throw new IOException("checkpoint " + file + " was written with batch size " + kv[1]);
+          else if (kv[0].equals("watermark"))
+            watermark = Long.parseLong(kv[1]);
+          else if (kv[0].equals("done") && !kv[1].isEmpty())
+          {
+            for (String s : kv[1].split(","))
+              done.add(Long.parseLong(s));
+          }
+        }
+      }
+    }
+
+    synchronized boolean isDone (long seq)
+    {
+      return seq < watermark || done.contains(seq);
+    }
+
+    synchronized void commit (long seq, int batchSize) throws IOException
+    {
+      done.add(seq);
+      while (done.remove(watermark))
+        watermark++;
+      if (file == null)
+        return;
+
+      // write then rename, so a crash never leaves a half written checkpoint behind
+      File tmp = new File(file.getPath() + ".tmp");
+      try (PrintWriter w = new PrintWriter(new FileWriter(tmp)))
+      {
+        w.println("batch=" + batchSize);
+        w.println("watermark=" + watermark);
+        StringBuilder sb = new StringBuilder();
+        for (long s : done)
+          sb.append(sb.length() == 0 ? "" : ",").append(s);
+        w.println("done=" + sb);
+      }
+      if (!tmp.renameTo(file))
+      {
+        file.delete();
+        if (!tmp.renameTo(file))
+          throw new IOException("cannot write checkpoint " + file);
+      }
+    }
+  }
+
+  static final class Batch
+  {
+    final long seq;
+    final List<String[]> rows;
+
+    Batch (long seq, List<String[]> rows)
+    {
+      this.seq = seq;
+      this.rows = rows;
+    }
+  }
+
+  // tells a writer that there is nothing more to load
+  private static final Batch END = new Batch(-1, null);
+
+  String config = DEFAULT_CONFIG;
+  String table = "FLIGHTS";
+  int batchSize = 5000;
+  int writers = 4;
+  int queueDepth = 16;
+  boolean bulkCopy = false;
+  boolean resume = false; // look for batches that committed without reaching the checkpoint
+  Checkpoint checkpoint = new Checkpoint(null);
+
+  // same default as FlightService.DBCONFIG_FILENAME
+  static final String DEFAULT_CONFIG = "dbconn.properties";
+
+  private final AtomicLong loaded = new AtomicLong();
+  private final AtomicLong recovered = new AtomicLong();
+  private final AtomicReference<Exception> failure = new AtomicReference<>();
+
+  static Connection connect (String configFilename, boolean bulkCopy) throws Exception
+  {
+    Properties props = new Properties();
+    try (FileInputStream in = new FileInputStream(configFilename))
+    {
+      props.load(in);
+    }
+    return connect(props, bulkCopy);
+  }
+
+  static Connection connect (Properties props, boolean bulkCopy) throws Exception
+  {
+    Class.forName(props.getProperty("flightservice.jdbc_driver"));
+    String url = props.getProperty("flightservice.url");
+    if (bulkCopy)
+      url = url + (url.endsWith(";") ? "" : ";") + "useBulkCopyForBatchInsert=true;";
+    return DriverManager.getConnection(url,
+            props.getProperty("flightservice.sqlazure_username"),
+            props.getProperty("flightservice.sqlazure_password"));
+  }
+
+  /**
+   * @return the JDBC types of the given columns of the target table
+   */
+  private int[] columnTypes (Connection conn, String[] columns) throws SQLException
+  {
+    int[] types = new int[columns.length];
+    try (Statement s = conn.createStatement();
+         ResultSet rs = s.executeQuery("SELECT " + String.join(",", columns) + " FROM " + table + " WHERE 1 = 0"))
+    {
+      ResultSetMetaData md = rs.getMetaData();
+      for (int i = 0; i < columns.length; i++)
+        types[i] = md.getColumnType(i + 1);
+    }
+    return types;
+  }
+
+  private static boolean isInteger (int type)
+  {
+    return type == Types.INTEGER || type == Types.SMALLINT || type == Types.TINYINT || type == Types.BIGINT;
+  }
+
+  /**
+   * @return the indexes in {@code columns} of the primary key of the target table, or null if
+   * it has none or not all of its columns are loaded
+   */
+  private int[] keyColumns (Connection conn, String[] columns) throws SQLException
+  {
+    List<Integer> key = new ArrayList<>();
+    try (ResultSet rs = conn.getMetaData().getPrimaryKeys(null, null, table))
+    {
+      while (rs.next())
+      {
+        String name = rs.getString("COLUMN_NAME");
+        int i = 0;
+        while (i < columns.length && !columns[i].trim().equalsIgnoreCase(name))
+          i++;
+        if (i == columns.length)
+          return null;
+        key.add(i);
+      }
+    }
+    return key.isEmpty() ? null : key.stream().mapToInt(Integer::intValue).toArray();
+  }
+
+  private static void set (PreparedStatement ps, int parameter, String v, int type) throws SQLException
+  {
+    if (v.isEmpty())
+      ps.setNull(parameter, type);
+    else if (isInteger(type))
+      ps.setLong(parameter, Long.parseLong(v.trim()));
+    else
+      ps.setString(parameter, v);
+  }
+
+  class Writer implements Runnable
+  {
+    final BlockingQueue<Batch> queue;
+    final String insertSql;
+    final int[] types;
+    final String existsSql; // null unless committed batches missing from the checkpoint are looked for
+    final int[] key;
+
+    Writer (BlockingQueue<Batch> queue, String insertSql, int[] types, String existsSql, int[] key)
+    {
+      this.queue = queue;
+      this.insertSql = insertSql;
+      this.types = types;
+      this.existsSql = existsSql;
+      this.key = key;
+    }
+
+    // whether the batch, which commits as a whole, is already in the table
+    private boolean committed (PreparedStatement exists, Batch b) throws SQLException
+    {
+      String[] first = b.rows.get(0);
+      for (int k = 0; k < key.length; k++)
+        set(exists, k + 1, key[k] < first.length ? first[key[k]] : "", types[key[k]]);
+      try (ResultSet rs = exists.executeQuery())
+      {
+        return rs.next();
+      }
+    }
+
+    @Override
+    public void run ()
+    {
+      try (Connection conn = connect(config, bulkCopy))
+      {
+        conn.setAutoCommit(false);
+        try (PreparedStatement insert = conn.prepareStatement(insertSql);
+             PreparedStatement exists = existsSql == null ? null : conn.prepareStatement(existsSql))
+        {
+          for (Batch b = queue.take(); b != END; b = queue.take())
+          {
+            if (failure.get() != null)
+              continue; // keep draining so the reader is never blocked on a full queue
+            if (exists != null && committed(exists, b))
+            {
+              conn.commit();
+              checkpoint.commit(b.seq, batchSize);
+              recovered.addAndGet(b.rows.size());
+              continue;
+            }
+            for (String[] row : b.rows)
+            {
+              for (int i = 0; i < types.length; i++)
+                set(insert, i + 1, i < row.length ? row[i] : "", types[i]);
+              insert.addBatch();
+            }
+            try
+            {
+              insert.executeBatch();
+              conn.commit();
+            }
+            catch (SQLException e)
+            {
+              conn.rollback();
+              throw e;
+            }
+            checkpoint.commit(b.seq, batchSize);
+            loaded.addAndGet(b.rows.size());
+          }
+        }
+      }
+      catch (Exception e)
+      {
+        failure.compareAndSet(null, e);
+        // the reader stops on failure, but other writers may still be waiting for END
+        drain();
+      }
+    }
+
+    private void drain ()
+    {
+      try
+      {
+        for (Batch b = queue.take(); b != END; b = queue.take())
+          ;
+      }
+      catch (InterruptedException e)
+      {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Loads every row of {@code source} that is not already in the checkpoint.
+   *
+   * @return the number of rows inserted by this run
+   */
+  public long load (Source source) throws Exception
+  {
+    String[] columns = source.header();
+    int[] types;
+    int[] key = null;
+    try (Connection conn = connect(config, bulkCopy))
+    {
+      types = columnTypes(conn, columns);
+      if (resume)
+        key = keyColumns(conn, columns);
+    }
+
+    StringBuilder sql = new StringBuilder("INSERT INTO ").append(table).append(" (")
+            .append(String.join(",", columns)).append(") VALUES (");
+    for (int i = 0; i < columns.length; i++)
+      sql.append(i == 0 ? "?" : ",?");
+    sql.append(")");
+
+    String existsSql = null;
+    if (key != null)
+    {
+      StringBuilder exists = new StringBuilder("SELECT 1 FROM ").append(table).append(" WHERE ");
+      for (int k = 0; k < key.length; k++)
+        exists.append(k == 0 ? "" : " AND ").append(columns[key[k]]).append(" = ?");
+      existsSql = exists.toString();
+    }
+
+    BlockingQueue<Batch> queue = new ArrayBlockingQueue<>(queueDepth);
+    Thread[] threads = new Thread[writers];
+    for (int i = 0; i < writers; i++)
+    {
+      threads[i] = new Thread(new Writer(queue, sql.toString(), types, existsSql, key), "loader-" + i);
+      threads[i].start();
+    }
+
+    long start = System.nanoTime();
+    long lastReport = start;
+    long skipped = 0;
+    long seq = 0;
+    try
+    {
+      List<String[]> rows = new ArrayList<>(batchSize);
+      for (String[] row = source.next(); failure.get() == null; row = source.next())
+      {
+        if (row != null)
+          rows.add(row);
+        if (rows.size() == batchSize || (row == null && !rows.isEmpty()))
+        {
+          if (checkpoint.isDone(seq))
+            skipped += rows.size();
+          else
+          {
+            while (!queue.offer(new Batch(seq, rows), 1, TimeUnit.SECONDS) && failure.get() == null)
+              ;
+          }
+          seq++;
+          rows = new ArrayList<>(batchSize);
+        }
+        if (row == null)
+          break;
+
+        long now = System.nanoTime();
+        if (now - lastReport > 5_000_000_000L)
+        {
+          report(loaded.get(), now - start, "loading");
+          lastReport = now;
+        }
+      }
+    }
+    finally
+    {
+      for (int i = 0; i < writers; i++)
+        queue.put(END);
+      for (Thread t : threads)
+        t.join();
+    }
+
+    if (skipped > 0)
+      System.out.println("skipped " + skipped + " rows committed by an earlier run");
+    if (recovered.get() > 0)
+      System.out.println("found " + recovered.get() + " more rows committed by an earlier run but not checkpointed");
+    report(loaded.get(), System.nanoTime() - start, "loaded");
+
+    Exception e = failure.get();
+    if (e != null)
+      throw new Exception("load failed, rerun with -resume to continue after the last committed batch", e);
+    return loaded.get();
+  }
+
+  private static void report (long rows, long nanos, String what)
+  {
+    double seconds = nanos / 1e9;
+    System.out.printf("%s %d rows in %.1f s (%.0f rows/s)%n", what, rows, seconds, rows / Math.max(seconds, 1e-9));
+  }
+
+  public static void main (String[] args) throws Exception
+  {
+    FlightsLoader loader = new FlightsLoader();
+    String file = null;
+    boolean resume = false;
+
+    for (int i = 0; i < args.length; i++)
+    {
+      switch (args[i])
+      {
+        case "-config": loader.config = args[++i]; break;
+        case "-table": loader.table = args[++i]; break;
+        case "-batch": loader.batchSize = Integer.parseInt(args[++i]); break;
+        case "-writers": loader.writers = Integer.parseInt(args[++i]); break;
+        case "-resume": resume = true; break;
+        case "-bulkCopy": loader.bulkCopy = true; break;
+        default:
+          if (args[i].startsWith("-"))
+          {
+            System.err.println("unknown option " + args[i]);
+            System.exit(1);
+          }
+          file = args[i];
+      }
+    }
+    if (file == null)
+    {
+      System.err.println("Usage: java FlightsLoader -config dbconn.properties [-table FLIGHTS] [-batch n] "
+              + "[-writers n] [-resume] [-bulkCopy] file.csv");
+      System.exit(1);
+    }
+
+    loader.checkpoint = new Checkpoint(new File(file + ".checkpoint"));
+    loader.resume = resume;
+    if (resume)
+      loader.checkpoint.read(loader.batchSize);
+    else
+      loader.checkpoint.file.delete();
+
+    try (Source source = new CsvSource(file))
+    {
+      loader.load(source);
+    }
+  }
+}
@@ -0,0 +1,131 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Properties;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Signs and checks itinerary tokens: compact, tamper-evident descriptions of an itinerary that
+ * a search hands out next to each itinerary number, so that any session of any process sharing
+ * {@code flightservice.tokens.secret} can book it without the search's session state.
+ *
+ * A token is the URL-safe Base64 of a version byte, an unsigned expiry in epoch seconds
+ * ({@code flightservice.tokens.ttlSeconds} after the search), the day, and fid, price and
+ * capacity of each flight, followed by the first 16 bytes of their HMAC-SHA256 under the
+ * secret. A direct itinerary takes 47 characters, a one-stop one 63.
+ */
+class ItineraryTokens
+{
+  private static final byte VERSION = 1;
+  private static final int MAC_BYTES = 16;
+
+  private final SecretKeySpec key;
+  private final long ttlSeconds;
+  private final ThreadLocal<Mac> macs;
+
+  private ItineraryTokens(byte[] secret, long ttlSeconds)
+  {
+    this.key = new SecretKeySpec(secret, "HmacSHA256");
+    this.ttlSeconds = ttlSeconds;
+    this.macs = ThreadLocal.withInitial(() ->
+    {
+      try
+      {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(key);
+        return mac;
+      }
+      catch (GeneralSecurityException e)
+      {
+        throw new IllegalStateException(e); // every JVM has HmacSHA256
+      }
+    });
+  }
+
+  /**
+   * @return the signer for {@code flightservice.tokens.secret}, or null if it is not set
+   */
+  static ItineraryTokens open(Properties configProps)
+  {
+    String secret = configProps.getProperty("flightservice.tokens.secret");
+    if (secret == null || secret.trim().isEmpty())
+      return null;
+    return new ItineraryTokens(secret.trim().getBytes(StandardCharsets.UTF_8),
+            Long.parseLong(configProps.getProperty("flightservice.tokens.ttlSeconds", "3600").trim()));
+  }
+
+  /**
+   * @return a token for {@code itinerary}, one or more flights on the same day
+   */
+  String issue(List<Query.Flight> itinerary)
+  {
+    ByteBuffer b = ByteBuffer.allocate(7 + 12 * itinerary.size() + MAC_BYTES);
+    b.put(VERSION);
+    b.putInt((int) (System.currentTimeMillis() / 1000 + ttlSeconds));
+    b.put((byte) itinerary.get(0).dayOfMonth);
+    b.put((byte) itinerary.size());
+    for (Query.Flight f : itinerary)
+    {
+      b.putInt(f.fid);
+      b.putInt(f.price);
+      b.putInt(f.capacity);
+    }
+    b.put(sign(b.array(), b.position()), 0, MAC_BYTES);
+    return Base64.getUrlEncoder().withoutPadding().encodeToString(b.array());
+  }
+
+  /**
+   * @return the flights of {@code token}, with fid, day, price and capacity set, or null if it
+   * is malformed, was not signed with this secret, or has expired
+   */
+  ArrayList<Query.Flight> verify(String token)
+  {
+    byte[] bytes;
+    try
+    {
+      bytes = Base64.getUrlDecoder().decode(token);
+    }
+    catch (IllegalArgumentException e)
+    {
+      return null;
+    }
+    int length = bytes.length - MAC_BYTES;
+    if (length < 7 + 12 || (length - 7) % 12 != 0 || bytes[0] != VERSION)
+      return null;
+    byte[] mac = sign(bytes, length);
+    if (!MessageDigest.isEqual(Arrays.copyOf(mac, MAC_BYTES), Arrays.copyOfRange(bytes, length, bytes.length)))
+      return null;
+
+    ByteBuffer b = ByteBuffer.wrap(bytes, 1, length - 1);
+    if (Integer.toUnsignedLong(b.getInt()) < System.currentTimeMillis() / 1000)
+      return null;
+    int day = b.get();
+    int n = b.get();
+    if (n != (length - 7) / 12)
+      return null;
+    ArrayList<Query.Flight> itinerary = new ArrayList<>(n);
+    for (int i = 0; i < n; i++)
+    {
+      Query.Flight f = new Query.Flight();
+      f.fid = b.getInt();
+      f.dayOfMonth = day;
+      f.price = b.getInt();
+      f.capacity = b.getInt();
+      itinerary.add(f);
+    }
+    return itinerary;
+  }
+
+  private byte[] sign(byte[] data, int length)
+  {
+    Mac mac = macs.get();
+    mac.update(data, 0, length);
+    return mac.doFinal();
+  }
+}
@@ -0,0 +1,1350 @@
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Backend that runs every transaction against the database named in dbconn.properties.
+ */
+class JdbcBackend extends Backend
+{
+  private String jSQLDriver;
+  private String jSQLUrl;
+  private String jSQLUser;
+  private String jSQLPassword;
+
+  // DB Connection; the global database when sharded
+  Connection conn;
+  // conn and its statement cache if flightservice.pool.maxIdle is set, or null
+  private PooledConnection pooled;
+  // idle connections kept for the days of date-range searches; see searchDay
+  private int dayConnections;
+
+  // credentials of known users and names known not to exist, or null; see UserCache
+  UserCache users;
+
+  // multi-stop search beyond one stop and the flights it runs on, or null; see RoutingEngine
+  private RoutingEngine routing;
+  private RoutingEngine.Flights routingFlights;
+
+  // local copy of users, reservations and capacity, or null; see ChangeFeed
+  private ChangeFeed feed;
+  // System.nanoTime() when this session last committed a change, 0 if it has not
+  long lastWrite;
+  // read replica for searches, or null; see ReadReplica
+  private ReadReplica replica;
+  private Connection replicaConn;
+  private PreparedStatement replicaDirectFlightsStatement;
+  private PreparedStatement replicaIndirectFlightsStatement;
+  private PreparedStatement replicaCheckReservationsStatement;
+  private PreparedStatement replicaBookedFlightsStatement;
+
+  // statements of this session that the deadline of a transaction applies to
+  private final List<Statement> statements = new CopyOnWriteArrayList<>();
+  // cancels the statements of transactions that run past their deadline; shared by all sessions
+  private static final ScheduledExecutorService deadlines = Executors.newSingleThreadScheduledExecutor(r ->
+  {
+    Thread t = new Thread(r, "statement-deadline");
+    t.setDaemon(true);
+    return t;
+  });
+  // System.nanoTime() by which the current transaction must finish, or 0
+  private volatile long deadline;
+  private ScheduledFuture<?> canceler;
+  private int transaction; // counts deadlines, so that a late canceler leaves the next one alone
+  private boolean expired;
+
+  private static final LongAdder FLIGHT_HITS = Metrics.counter("cache.flightDetails.hits");
+  private static final LongAdder FLIGHT_MISSES = Metrics.counter("cache.flightDetails.misses");
+  private static final LongAdder FEED_READS = Metrics.counter("cache.changeFeed.reads");
+  private static final LongAdder REPLICA_READS = Metrics.counter("replica.reads");
+  private static final LongAdder REPLICA_FAILURES = Metrics.counter("replica.failures");
+
+  // details of FLIGHTS rows read for reservations, kept until flights are reloaded; emptied when full
+  private static final int FLIGHT_DETAILS_SIZE = 100000;
+  private static final ConcurrentHashMap<Integer, Query.Flight> flightDetails = new ConcurrentHashMap<>();
+
+  // Canned queries
+
+  private static final String CHECK_FLIGHT_CAPACITY = "SELECT capacity FROM Flights WHERE fid = ?";
+  private PreparedStatement checkFlightCapacityStatement;
+
+  // 1 if the password matches, 0 if not, no row if there is no such user
+  private static final String CHECK_USERNAME_PASSWORD= "SELECT CASE WHEN password = ? THEN 1 ELSE 0 END FROM USERS where username = ?";
+  private PreparedStatement checkUsernamePasswordStatement;
+
+  private static final String CREATE_CUSTOMER="INSERT INTO USERS (username, password, balance) values (?,?,?);";
+  private PreparedStatement createCustomerStatement;
+
+  private static final String DIRECT_FLIGHTS="SELECT * FROM Flights where origin_city = ? and dest_city= ? and day_of_month=? and canceled!=1 order by actual_time,fid;";
+  private PreparedStatement directFlightsStatement;
+
+  private static final String INDIRECT_FLIGHTS= "SELECT F1.fid as fid1, F2.fid as fid2, F1.actual_time as time1, F2.actual_time as time2, F1.day_of_month as day_of_month, F1.carrier_id as cid1, F2.carrier_id as cid2, F1.flight_num as fnum1, F2.flight_num as fnum2, F1.origin_city as origin_city1, F2.origin_city as origin_city2, F1.dest_city as dest_city1, F2.dest_city as dest_city2, F1.capacity as capacity1, F2.capacity as capacity2, F1.price as price1, F2.price as price2 from Flights as F1, Flights as F2 where F1.origin_city = ? and F1.dest_city = F2.origin_city and F2.dest_city = ? and F1.day_of_month = F2.day_of_month and F1.day_of_month = ? and F1.canceled != 1 and F2.canceled != 1 order by (F1.actual_time + F2.actual_time)";
+  private PreparedStatement indirectFlightsStatement;
+
+  // the same itineraries, cheapest first, for round trips ranked by price
+  private static final String CHEAPEST_DIRECT_FLIGHTS = DIRECT_FLIGHTS.replace("order by actual_time,fid",
+          "order by price,actual_time,fid");
+  private static final String CHEAPEST_INDIRECT_FLIGHTS = INDIRECT_FLIGHTS.replace(
+          "order by (F1.actual_time + F2.actual_time)",
+          "order by (F1.price + F2.price), (F1.actual_time + F2.actual_time), F1.fid, F2.fid");
+
+  private static final String CLEAR_USERS = "DELETE FROM users;";
+  private PreparedStatement clearUsersStatement;
+
+  private static final String CLEAR_RESERVATIONS = "DELETE FROM reservations;";
+  private PreparedStatement clearReservationStatement;
+
+  private static final String CLEAR_CAPACITY="DELETE FROM capacity;";
+  private PreparedStatement clearCapacityStatement;
+
+  private static final String CHECK_DAY="Select day from reservations where username = ?;";
+  private PreparedStatement checkDayStatement;
+
+  private static final String MAX_RESERVATIONID="Select top 1 rid from reservations order by rid desc ;";
+  private PreparedStatement maxReservationIdStatement;
+
+  private static final String FLIGHT_BOOKING="INSERT INTO RESERVATIONS (rid, username, day, fid1, fid2, price1, price2, paid) values (?,?,?,?,?,?,?,?);";
+  private PreparedStatement flightBookingStatement;
+
+  private static final String CREATE_CAPACITY="INSERT INTO Capacity (fid, capacity) Select Flights.fid,Flights.capacity from Flights where Flights.fid = ? and NOT EXISTS (Select * from capacity where Capacity.fid=Flights.fid);";
+  private PreparedStatement createCapacityStatement;
+
+  private static final String UPDATE_CAPACITY="UPDATE Capacity set capacity=(capacity-1) where fid=? ;";
+  private PreparedStatement updateCapacityStatement;
+
+  private static final String CHECK_CAPACITY="SELECT * from capacity where fid =?;";
+  private PreparedStatement checkCapacityStatement;
+
+  private static final String CHECK_RESERVATIONS="SELECT * from reservations where username = ? order by rid;";
+  private PreparedStatement checkReservationsStatement;
+
+  static final String BOOKED_FLIGHTS="select * from Flights where fid=?;";
+  private PreparedStatement bookedFlightsStatement;
+
+  private static final String CHECK_MONEY="Select balance from users where username = ?;";
+  private PreparedStatement checkMoneyStatement;
+
+  private static final String UPDATE_MONEY="Update Users set balance = ? where username = ?;";
+  private PreparedStatement updateMoneyStatement;
+
+  private static final String UPDATE_PAYMENT="Update reservations set paid = ? where rid = ?;";
+  private PreparedStatement updatePaymentStatement;
+
+  private static final String REFUND_MONEY="Update users set balance=(balance +?) where username = ?;";
+  private PreparedStatement refundMoneyStatement;
+
+  private static final String INCREASE_CAPACITY="Update capacity set capacity = (capacity+1) where fid =?;";
+  private PreparedStatement increaseCapacityStatement;
+
+  private static final String CANCEL_RESERVATION="DELETE from reservations where rid =?;";
+  private PreparedStatement cancelReservationStatement;
+
+
+
+
+  // transactions
+  private static final String BEGIN_TRANSACTION_SQL = "SET TRANSACTION ISOLATION LEVEL SERIALIZABLE; BEGIN TRANSACTION;";
+  private PreparedStatement beginTransactionStatement;
+
+  private static final String COMMIT_SQL = "COMMIT TRANSACTION";
+  private PreparedStatement commitTransactionStatement;
+
+  private static final String ROLLBACK_SQL = "ROLLBACK TRANSACTION";
+  private PreparedStatement rollbackTransactionStatement;
+
+  /* Connection code to SQL Azure.  */
+  void openConnection(Properties configProps) throws Exception
+  {
+    jSQLDriver = configProps.getProperty("flightservice.jdbc_driver");
+    jSQLUrl = configProps.getProperty("flightservice.url");
+    jSQLUser = configProps.getProperty("flightservice.sqlazure_username");
+    jSQLPassword = configProps.getProperty("flightservice.sqlazure_password");
+
+    /* load jdbc drivers */
+    Class.forName(jSQLDriver).newInstance();
+
+    /* let the driver reuse server-side prepared statement handles */
+    int cacheSize = Integer.parseInt(configProps.getProperty("flightservice.pool.statementCacheSize", "0").trim());
+    if (cacheSize > 0)
+      jSQLUrl += (jSQLUrl.endsWith(";") ? "" : ";") + "disableStatementPooling=false;statementPoolingCacheSize=" + cacheSize + ";";
+
+    /* open connections to the flights database, or reuse an idle one */
+    int maxIdle = Integer.parseInt(configProps.getProperty("flightservice.pool.maxIdle", "0").trim());
+    dayConnections = Math.max(maxIdle,
+            Integer.parseInt(configProps.getProperty("flightservice.search.parallelism", "4").trim()) + 1);
+    if (maxIdle > 0)
+    {
+      pooled = PooledConnection.take(jSQLUrl, jSQLUser, jSQLPassword, maxIdle);
+      conn = pooled.conn;
+    }
+    else
+    {
+      conn = FlightEvents.connect(jSQLUrl, // database
+              jSQLUser, // user
+              jSQLPassword); // password
+    }
+
+    conn.setAutoCommit(true); //by default automatically commit after each statement
+    SlowLog.enableStatistics(conn);
+
+    feed = ChangeFeed.open(configProps);
+    users = UserCache.open(configProps);
+    replica = ReadReplica.open(configProps);
+    routing = RoutingEngine.open(configProps);
+    if (routing != null)
+      routingFlights = RoutingEngine.flights(configProps);
+
+    /* You will also want to appropriately set the transaction's isolation level through:
+       conn.setTransactionIsolation(...)
+       See Connection class' JavaDoc for details.
+    */
+  }
+
+  void closeConnection() throws Exception
+  {
+    // closing writes out slow log entries still waiting for their statistics
+    for (Statement s : statements)
+      s.close();
+    if (replicaConn != null)
+      replicaConn.close();
+    if (pooled != null)
+      pooled.release();
+    else
+      conn.close();
+  }
+
+  void clearTables ()
+  {
+    try{
+      //clearReservationStatement.clearParameters();
+      clearReservationStatement.executeUpdate();
+
+      //clearUsersStatement.clearParameters();
+      clearUsersStatement.executeUpdate();
+
+      clearCapacityStatement.executeUpdate();
+      lastWrite = System.nanoTime();
+      if(users != null)
+        users.clear();
+
+    }catch(SQLException e){
+     //EventLog.error(e);
+    }
+
+  }
+
+  /**
+   * prepare all the SQL statements in this method.
+   * "preparing" a statement is almost like compiling it.
+   * Note that the parameters (with ?) are still not filled in
+   */
+  void prepareStatements() throws Exception
+  {
+    beginTransactionStatement = prepare("BEGIN_TRANSACTION_SQL", BEGIN_TRANSACTION_SQL);
+    commitTransactionStatement = prepare("COMMIT_SQL", COMMIT_SQL);
+    rollbackTransactionStatement = prepare("ROLLBACK_SQL", ROLLBACK_SQL);
+
+    checkFlightCapacityStatement = prepare("CHECK_FLIGHT_CAPACITY", CHECK_FLIGHT_CAPACITY);
+    checkUsernamePasswordStatement=prepare("CHECK_USERNAME_PASSWORD", CHECK_USERNAME_PASSWORD, 1);
+    createCustomerStatement=prepare("CREATE_CUSTOMER", CREATE_CUSTOMER, 2);
+    directFlightsStatement=prepare("DIRECT_FLIGHTS", DIRECT_FLIGHTS);
+    indirectFlightsStatement=prepare("INDIRECT_FLIGHTS", INDIRECT_FLIGHTS);
+    clearUsersStatement=prepare("CLEAR_RESERVATIONS", CLEAR_RESERVATIONS);
+    clearReservationStatement=prepare("CLEAR_USERS", CLEAR_USERS);
+    checkDayStatement = prepare("CHECK_DAY", CHECK_DAY);
+    maxReservationIdStatement=prepare("MAX_RESERVATIONID", MAX_RESERVATIONID);
+    flightBookingStatement=prepare("FLIGHT_BOOKING", FLIGHT_BOOKING);
+    createCapacityStatement=prepare("CREATE_CAPACITY", CREATE_CAPACITY);
+    updateCapacityStatement=prepare("UPDATE_CAPACITY", UPDATE_CAPACITY);
+    checkCapacityStatement=prepare("CHECK_CAPACITY", CHECK_CAPACITY);
+    checkReservationsStatement=prepare("CHECK_RESERVATIONS", CHECK_RESERVATIONS);
+    bookedFlightsStatement=prepare("BOOKED_FLIGHTS", BOOKED_FLIGHTS);
+    checkMoneyStatement=prepare("CHECK_MONEY", CHECK_MONEY);
+    updateMoneyStatement=prepare("UPDATE_MONEY", UPDATE_MONEY);
+    updatePaymentStatement=prepare("UPDATE_PAYMENT", UPDATE_PAYMENT);
+    clearCapacityStatement=prepare("CLEAR_CAPACITY", CLEAR_CAPACITY);
+    increaseCapacityStatement=prepare("INCREASE_CAPACITY", INCREASE_CAPACITY);
+    refundMoneyStatement=prepare("REFUND_MONEY", REFUND_MONEY);
+    cancelReservationStatement=prepare("CANCEL_RESERVATION", CANCEL_RESERVATION);
+ 
+
+    if (replica != null)
+      connectReplica();
+
+    /* add here more prepare statements for all the other queries you need */
+    /* . . . . . . */
+  }
+
+  String transaction_login(String username, String password)
+  {
+    
+    if(this.username!=null){
+      return "User already logged in"+"\n";
+    }
+    Boolean known = users == null ? null : users.login(username, password);
+    if(known != null){
+      if(!known){
+        return "Login failed"+"\n";
+      }
+      this.username=username;
+      return "Logged in as "+ username + "\n";
+    }
+    try{
+      checkUsernamePasswordStatement.clearParameters();
+      checkUsernamePasswordStatement.setString(1,password);
+      checkUsernamePasswordStatement.setString(2,username);
+      ResultSet rs=checkUsernamePasswordStatement.executeQuery();
+            if(!rs.next()){
+              if(users != null)
+                users.missing(username);
+            }else if(rs.getInt(1)==1){
+              if(users != null)
+                users.found(username, password);
+              this.username=username;
+              return "Logged in as "+ username + "\n";
+            }
+    }
+    catch (SQLException e) {
+      countDeadlock(e);
+      EventLog.error(e); 
+    return "Login failed"+"\n";
+  }
+  return "Login failed"+"\n";
+}
+  
+  String transaction_createCustomer (String username, String password, int initAmount)
+  {
+    username=username.toLowerCase();
+    password=password.toLowerCase();
+   if(users != null && users.exists(username)){
+    return "Failed to create user"+"\n";
+   }
+   if(initAmount >=0 && username.length()<=20 && password.length()<=20){
+    try{
+      beginTransaction();
+      createCustomerStatement.clearParameters();
+      createCustomerStatement.setString(1,username);
+      createCustomerStatement.setString(2,password);
+      createCustomerStatement.setInt(3,initAmount);
+      createCustomerStatement.executeUpdate();
+      commitTransaction();
+      if(users != null)
+        users.found(username, password);
+      return "Created user " + username + "\n";
+    }catch(SQLException e){
+      countDeadlock(e);
+      return "Failed to create user"+"\n";
+    }
+   }else{
+    return "Failed to create user"+"\n" ;
+   }
+
+  }
+
+  String transaction_search(String originCity, String destinationCity, boolean directFlight, int dayOfMonth,
+                                   int numberOfItineraries)
+  {
+    // itineraries and numbers of an earlier search, including round trips, must not stay bookable
+    iternaries.clear();
+    searchFlights.clear();
+    if(onReplica(false)){
+      try{
+        REPLICA_READS.increment();
+        return search(replicaDirectFlightsStatement, replicaIndirectFlightsStatement, replicaBookedFlightsStatement,
+                originCity, destinationCity, directFlight, dayOfMonth, numberOfItineraries);
+      }catch(SQLException e){
+        replicaFailed(e);
+        iternaries.clear();
+      }
+    }
+    try{
+      return search(directFlightsStatement, indirectFlightsStatement, bookedFlightsStatement,
+              originCity, destinationCity, directFlight, dayOfMonth, numberOfItineraries);
+    }catch (SQLException e) { EventLog.error(e);
+    countDeadlock(e);
+    return "Failed to Search";
+     }
+  }
+
+  private String search(PreparedStatement directFlightsStatement, PreparedStatement indirectFlightsStatement,
+                        PreparedStatement bookedFlightsStatement, String originCity, String destinationCity,
+                        boolean directFlight, int dayOfMonth, int numberOfItineraries) throws SQLException
+  {
+
+    directFlightsStatement.clearParameters();
+    directFlightsStatement.setString(1,originCity);
+    directFlightsStatement.setString(2,destinationCity);
+    directFlightsStatement.setInt(3,dayOfMonth);
+    ResultSet rs= directFlightsStatement.executeQuery();
+    int num=numberOfItineraries;
+
+    while(rs.next() && numberOfItineraries>0){
+        numberOfItineraries--;
+        int fid=rs.getInt("fid");
+        Query.Flight direct = flightText(bookedFlightsStatement, fid);
+
+        if(iternaries.containsKey(direct.time)){
+          iternaries.get(direct.time).add(direct);
+        }else{
+          ArrayList<Query.Flight>flights= new ArrayList<Query.Flight>();
+          flights.add(direct);
+          iternaries.put(direct.time,flights);
+        }
+      }
+      if(num==numberOfItineraries){
+        return "No flights match your selection"+"\n";
+      }
+
+       if(!directFlight && numberOfItineraries>0 && routing != null){
+      FlightIndex index = routingFlights.current();
+      int origin = index.city(originCity);
+      int dest = index.city(destinationCity);
+      if (origin >= 0 && dest >= 0)
+      {
+        for (int[] path : routing.find(index, dayOfMonth, origin, dest, numberOfItineraries))
+        {
+          numberOfItineraries--;
+          ArrayList<Query.Flight> flights = iternaries.computeIfAbsent(path[0], t -> new ArrayList<Query.Flight>());
+          for (int i = 1; i < path.length; i++)
+            flights.add(index.flight(path[i]));
+        }
+      }
+    }
+       else if(!directFlight && numberOfItineraries>0){
+    
+      indirectFlightsStatement.clearParameters();
+      indirectFlightsStatement.setString(1,originCity);
+      indirectFlightsStatement.setString(2,destinationCity);
+      indirectFlightsStatement.setInt(3,dayOfMonth);
+      ResultSet urs=indirectFlightsStatement.executeQuery();
+
+      while(urs.next() && numberOfItineraries >0){
+        numberOfItineraries--;
+        ArrayList<Query.Flight> hop = oneStop(urs);
+        int totalTime=hop.get(0).time+hop.get(1).time;
+
+        if(iternaries.containsKey(totalTime)){
+          iternaries.get(totalTime).addAll(hop);
+        }else{
+          iternaries.put(totalTime,hop);
+        }
+      }
+      if(num==numberOfItineraries){
+        return "No flights match your selection"+"\n";
+      }
+
+    }
+        
+
+  return flightAssorter(iternaries,destinationCity);
+  } 
+
+
+
+  // a row of INDIRECT_FLIGHTS as its two flights
+  private static ArrayList<Query.Flight> oneStop(ResultSet urs) throws SQLException
+  {
+    Query.Flight f1 = new Query.Flight();
+    Query.Flight f2 = new Query.Flight();
+
+    f1.fid = urs.getInt("fid1");
+    f1.dayOfMonth=urs.getInt("day_of_month");
+    f1.flightNum=urs.getString("fnum1");
+    f1.carrierId=urs.getString("cid1");
+    f1.time=urs.getInt("time1");
+    f1.originCity=urs.getString("origin_city1");
+    f1.destCity=urs.getString("dest_city1");
+    f1.capacity=urs.getInt("capacity1");
+    f1.price=urs.getInt("price1");
+
+    f2.fid=urs.getInt("fid2");
+    f2.dayOfMonth=f1.dayOfMonth;
+    f2.flightNum=urs.getString("fnum2");
+    f2.carrierId=urs.getString("cid2");
+    f2.time=urs.getInt("time2");
+    f2.originCity=urs.getString("origin_city2");
+    f2.destCity=urs.getString("dest_city2");
+    f2.capacity=urs.getInt("capacity2");
+    f2.price=urs.getInt("price2");
+
+    ArrayList<Query.Flight> hop = new ArrayList<Query.Flight>(2);
+    hop.add(f1);
+    hop.add(f2);
+    return hop;
+  }
+
+  /**
+   * Runs the day's queries on a connection of its own, taken from the idle connections of
+   * {@code PooledConnection} and returned there afterwards, under the session's deadline.
+   */
+  List<ArrayList<Query.Flight>> searchDay(String originCity, String destinationCity, boolean directFlight,
+                                          int dayOfMonth, int numberOfItineraries, boolean byPrice) throws SQLException
+  {
+    ArrayList<ArrayList<Query.Flight>> found = new ArrayList<ArrayList<Query.Flight>>();
+    PooledConnection day = PooledConnection.take(jSQLUrl, jSQLUser, jSQLPassword, dayConnections);
+    try
+    {
+      if (byPrice)
+        return cheapest(day, originCity, destinationCity, directFlight, dayOfMonth, numberOfItineraries);
+      PreparedStatement direct = timed(Metrics.timed("DIRECT_FLIGHTS", DIRECT_FLIGHTS, day.prepare(DIRECT_FLIGHTS)));
+      direct.setString(1, originCity);
+      direct.setString(2, destinationCity);
+      direct.setInt(3, dayOfMonth);
+      try (ResultSet rs = direct.executeQuery())
+      {
+        while (found.size() < numberOfItineraries && rs.next())
+        {
+          ArrayList<Query.Flight> itinerary = new ArrayList<Query.Flight>(1);
+          itinerary.add(flight(rs));
+          found.add(itinerary);
+        }
+      }
+
+      int left = numberOfItineraries - found.size();
+      if (directFlight || left <= 0)
+        return found;
+      if (routing != null)
+      {
+        FlightIndex index = routingFlights.current();
+        int origin = index.city(originCity);
+        int dest = index.city(destinationCity);
+        if (origin >= 0 && dest >= 0)
+        {
+          for (int[] path : routing.find(index, dayOfMonth, origin, dest, left))
+          {
+            ArrayList<Query.Flight> itinerary = new ArrayList<Query.Flight>(path.length - 1);
+            for (int i = 1; i < path.length; i++)
+              itinerary.add(index.flight(path[i]));
+            found.add(itinerary);
+          }
+        }
+        return found;
+      }
+
+      PreparedStatement indirect = timed(Metrics.timed("INDIRECT_FLIGHTS", INDIRECT_FLIGHTS, day.prepare(INDIRECT_FLIGHTS)));
+      indirect.setString(1, originCity);
+      indirect.setString(2, destinationCity);
+      indirect.setInt(3, dayOfMonth);
+      try (ResultSet rs = indirect.executeQuery())
+      {
+        for (; left > 0 && rs.next(); left--)
+          found.add(oneStop(rs));
+      }
+      return found;
+    }
+    finally
+    {
+      day.release();
+    }
+  }
+
+  // the cheapest direct and one-stop itineraries of the day, merged cheapest first
+  private List<ArrayList<Query.Flight>> cheapest(PooledConnection day, String originCity, String destinationCity,
+                                                 boolean directFlight, int dayOfMonth, int numberOfItineraries)
+          throws SQLException
+  {
+    ArrayList<ArrayList<Query.Flight>> found = new ArrayList<ArrayList<Query.Flight>>();
+    PreparedStatement direct = timed(Metrics.timed("CHEAPEST_DIRECT_FLIGHTS", CHEAPEST_DIRECT_FLIGHTS,
+            day.prepare(CHEAPEST_DIRECT_FLIGHTS)));
+    direct.setString(1, originCity);
+    direct.setString(2, destinationCity);
+    direct.setInt(3, dayOfMonth);
+    try (ResultSet rs = direct.executeQuery())
+    {
+      while (found.size() < numberOfItineraries && rs.next())
+      {
+        ArrayList<Query.Flight> itinerary = new ArrayList<Query.Flight>(1);
+        itinerary.add(flight(rs));
+        found.add(itinerary);
+      }
+    }
+    if (!directFlight)
+    {
+      PreparedStatement indirect = timed(Metrics.timed("CHEAPEST_INDIRECT_FLIGHTS", CHEAPEST_INDIRECT_FLIGHTS,
+              day.prepare(CHEAPEST_INDIRECT_FLIGHTS)));
+      indirect.setString(1, originCity);
+      indirect.setString(2, destinationCity);
+      indirect.setInt(3, dayOfMonth);
+      try (ResultSet rs = indirect.executeQuery())
+      {
+        for (int left = numberOfItineraries; left > 0 && rs.next(); left--)
+          found.add(oneStop(rs));
+      }
+    }
+    found.sort(Comparator.<ArrayList<Query.Flight>>comparingInt(Backend::price).thenComparingInt(Backend::time));
+    return new ArrayList<ArrayList<Query.Flight>>(found.subList(0, Math.min(numberOfItineraries, found.size())));
+  }
+
+  /**
+   * Same as {@code transaction_search} except that it only performs single hop search and
+   * do it in an unsafe manner.
+   *
+   * @param originCity
+   * @param destinationCity
+   * @param directFlight
+   * @param dayOfMonth
+   * @param numberOfItineraries
+   *
+   * @return The search results. Note that this implementation *does not conform* to the format required by
+   * {@code transaction_search}.
+   */
+  private String transaction_search_unsafe(String originCity, String destinationCity, boolean directFlight,
+                                          int dayOfMonth, int numberOfItineraries)
+  {
+    StringBuffer sb = new StringBuffer();
+
+    try
+    {
+      // one hop itineraries
+      String unsafeSearchSQL =
+              "SELECT TOP (" + numberOfItineraries + ") day_of_month,carrier_id,flight_num,origin_city,dest_city,actual_time,capacity,price "
+                      + "FROM Flights "
+                      + "WHERE origin_city = \'" + originCity + "\' AND dest_city = \'" + destinationCity + "\' AND day_of_month =  " + dayOfMonth + " "
+                      + "ORDER BY actual_time ASC";
+             
+
+      Statement searchStatement = conn.createStatement();
+      ResultSet oneHopResults = searchStatement.executeQuery(unsafeSearchSQL);
+
+      while (oneHopResults.next())
+      {
+        int result_dayOfMonth = oneHopResults.getInt("day_of_month");
+        String result_carrierId = oneHopResults.getString("carrier_id");
+        String result_flightNum = oneHopResults.getString("flight_num");
+        String result_originCity = oneHopResults.getString("origin_city");
+        String result_destCity = oneHopResults.getString("dest_city");
+        int result_time = oneHopResults.getInt("actual_time");
+        int result_capacity = oneHopResults.getInt("capacity");
+        int result_price = oneHopResults.getInt("price");
+
+        sb.append("Day: " + result_dayOfMonth + " Carrier: " + result_carrierId + " Number: " + result_flightNum + " Origin: " + result_originCity + " Destination: " + result_destCity + " Duration: " + result_time + " Capacity: " + result_capacity + " Price: " + result_price + "\n");
+      }
+      oneHopResults.close();
+    } catch (SQLException e) { EventLog.error(e); }
+
+    return sb.toString();
+  }
+
+  String transaction_book(int itineraryId)
+  {
+    if(this.username == null){
+      return "Cannot book reservations, not logged in"+"\n";
+    }
+    if(!searchFlights.containsKey(itineraryId)){
+      return "No such itinerary " + itineraryId + "\n";
+    }
+    return bookSearched(searchFlights.get(itineraryId));
+  }
+
+  String book(ArrayList<Query.Flight> bookingFlights)
+  {
+    if (bookingFlights.size() > MAX_BOOKED_FLIGHTS)
+      return TOO_MANY_FLIGHTS;
+    try {
+      beginTransaction();
+      checkDayStatement.clearParameters();
+      checkDayStatement.setString(1,this.username);
+      ResultSet rs=checkDayStatement.executeQuery();
+      Query.Flight flight= bookingFlights.get(0);
+      int bookingday=flight.dayOfMonth;
+      if(rs.next()){
+        int day=rs.getInt("day");
+        if(bookingday == day){
+          //rollbackTransaction();
+          return "You cannot book two flights on the same day";
+        }
+      }
+
+      maxReservationIdStatement.clearParameters();
+      ResultSet max = maxReservationIdStatement.executeQuery();
+      int reserveId=1;
+      if(max.next()){
+        int maximum=max.getInt("rid");
+        reserveId=maximum + 1;
+      }
+
+        if(bookingFlights.size()==1){
+          Query.Flight direct = bookingFlights.get(0);
+
+          createCapacityStatement.clearParameters();
+          createCapacityStatement.setInt(1,direct.fid);
+          createCapacityStatement.executeUpdate();
+
+          checkCapacityStatement.clearParameters();
+          checkCapacityStatement.setInt(1,direct.fid);
+          ResultSet cap=checkCapacityStatement.executeQuery();
+
+            if(cap.next()){
+            int flightCapacity =cap.getInt("capacity");
+            if(flightCapacity<1){
+              Metrics.NO_SEAT.increment();
+              rollbackTransaction();
+              return "Booking failed"+"\n";
+            }else{
+            flightBookingStatement.clearParameters();
+            flightBookingStatement.setInt(1,reserveId);
+            flightBookingStatement.setString(2,this.username);
+            flightBookingStatement.setInt(3,direct.dayOfMonth);
+            flightBookingStatement.setInt(4,direct.fid);
+            flightBookingStatement.setInt(5,0);
+            flightBookingStatement.setInt(6,direct.price);
+            flightBookingStatement.setInt(7,0);
+            flightBookingStatement.setInt(8,0);
+            flightBookingStatement.executeUpdate();
+            updateCapacityStatement.clearParameters();
+            updateCapacityStatement.setInt(1,direct.fid);
+            updateCapacityStatement.executeUpdate();
+            commitTransaction();
+             return "Booked flight(s), reservation ID: "+reserveId +"\n";
+
+            }
+
+          }
+          rollbackTransaction();
+          return "booking failed"+"\n";
+          }else{
+            Query.Flight indirect1=bookingFlights.get(0);
+            Query.Flight indirect2=bookingFlights.get(1);
+
+            createCapacityStatement.clearParameters();
+            createCapacityStatement.setInt(1,indirect1.fid);
+            createCapacityStatement.executeUpdate();
+
+            createCapacityStatement.clearParameters();
+            createCapacityStatement.setInt(1,indirect2.fid);
+            createCapacityStatement.executeUpdate();
+
+            checkCapacityStatement.clearParameters();
+            checkCapacityStatement.setInt(1,indirect1.fid);
+            ResultSet cap1=checkCapacityStatement.executeQuery();
+            int capacity1=0;
+            if(cap1.next()){
+              capacity1 = cap1.getInt("capacity");
+            }
+
+            checkCapacityStatement.clearParameters();
+            checkCapacityStatement.setInt(1,indirect2.fid);
+            ResultSet cap2=checkCapacityStatement.executeQuery();
+            int capacity2=0;
+            if(cap2.next()){
+              capacity2 = cap2.getInt("capacity");
+            }
+
+                      if(capacity1 <1 || capacity2 <1){
+                        Metrics.NO_SEAT.increment();
+                        rollbackTransaction();
+                        return "booking failed"+"\n";
+                      }else{
+                        flightBookingStatement.clearParameters();
+                        flightBookingStatement.setInt(1,reserveId);
+                        flightBookingStatement.setString(2,this.username);
+                        flightBookingStatement.setInt(3,indirect1.dayOfMonth);
+                        flightBookingStatement.setInt(4,indirect1.fid);
+                        flightBookingStatement.setInt(5,indirect2.fid);
+                        flightBookingStatement.setInt(6,indirect1.price);
+                        flightBookingStatement.setInt(7,indirect2.price);
+                        flightBookingStatement.setInt(8,0);
+                        flightBookingStatement.executeUpdate();
+
+                        updateCapacityStatement.clearParameters();
+                        updateCapacityStatement.setInt(1,indirect1.fid);
+                        updateCapacityStatement.executeUpdate();
+
+                        updateCapacityStatement.clearParameters();
+                        updateCapacityStatement.setInt(1,indirect2.fid);
+                        updateCapacityStatement.executeUpdate();
+                        commitTransaction();
+                       return "Booked flight(s),reservartion ID: "+reserveId +"\n";
+                      }
+
+          }
+
+      } catch (SQLException e) {
+        countDeadlock(e);
+        return "Booking failed" +"\n";
+      }
+
+    }
+  /**
+   * Books both legs in one serializable transaction, so that the day check, the seat counts and
+   * both reservations commit together or not at all.
+   */
+  String bookRoundTrip(ArrayList<Query.Flight> outbound, ArrayList<Query.Flight> inbound)
+  {
+    if (outbound.size() > MAX_BOOKED_FLIGHTS || inbound.size() > MAX_BOOKED_FLIGHTS)
+      return TOO_MANY_FLIGHTS;
+    try
+    {
+      beginTransaction();
+      try
+      {
+        checkDayStatement.clearParameters();
+        checkDayStatement.setString(1, username);
+        try (ResultSet rs = checkDayStatement.executeQuery())
+        {
+          while (rs.next())
+          {
+            int day = rs.getInt("day");
+            if (day == outbound.get(0).dayOfMonth || day == inbound.get(0).dayOfMonth)
+            {
+              rollbackTransaction();
+              return "You cannot book two flights in the same day\n";
+            }
+          }
+        }
+
+        int rid = 1;
+        try (ResultSet rs = maxReservationIdStatement.executeQuery())
+        {
+          if (rs.next())
+            rid = rs.getInt("rid") + 1;
+        }
+
+        ArrayList<Query.Flight> legs = new ArrayList<Query.Flight>(outbound);
+        legs.addAll(inbound);
+        for (Query.Flight f : legs)
+        {
+          createCapacityStatement.clearParameters();
+          createCapacityStatement.setInt(1, f.fid);
+          createCapacityStatement.executeUpdate();
+          checkCapacityStatement.clearParameters();
+          checkCapacityStatement.setInt(1, f.fid);
+          try (ResultSet rs = checkCapacityStatement.executeQuery())
+          {
+            if (!rs.next() || rs.getInt("capacity") < 1)
+            {
+              Metrics.NO_SEAT.increment();
+              rollbackTransaction();
+              return "Booking failed\n";
+            }
+          }
+        }
+
+        insertReservation(rid, outbound);
+        insertReservation(rid + 1, inbound);
+        for (Query.Flight f : legs)
+        {
+          updateCapacityStatement.clearParameters();
+          updateCapacityStatement.setInt(1, f.fid);
+          updateCapacityStatement.executeUpdate();
+        }
+        commitTransaction();
+        return "Booked round trip, reservation IDs: " + rid + ", " + (rid + 1) + "\n";
+      }
+      catch (SQLException e)
+      {
+        rollbackTransaction();
+        throw e;
+      }
+    }
+    catch (SQLException e)
+    {
+      countDeadlock(e);
+      EventLog.error(e);
+      return "Booking failed\n";
+    }
+  }
+
+  private void insertReservation(int rid, ArrayList<Query.Flight> itinerary) throws SQLException
+  {
+    Query.Flight first = itinerary.get(0);
+    Query.Flight second = itinerary.size() > 1 ? itinerary.get(1) : null;
+    flightBookingStatement.clearParameters();
+    flightBookingStatement.setInt(1, rid);
+    flightBookingStatement.setString(2, username);
+    flightBookingStatement.setInt(3, first.dayOfMonth);
+    flightBookingStatement.setInt(4, first.fid);
+    flightBookingStatement.setInt(5, second == null ? 0 : second.fid);
+    flightBookingStatement.setInt(6, first.price);
+    flightBookingStatement.setInt(7, second == null ? 0 : second.price);
+    flightBookingStatement.setInt(8, 0);
+    flightBookingStatement.executeUpdate();
+  }
+
+  String transaction_reservations()
+  {
+    if(this.username==null){
+      return "Cannot veiw reservations, not logged in"+"\n";
+    }
+    if(feed != null && feed.freshFor(lastWrite)){
+      FEED_READS.increment();
+      return cachedReservations();
+    }
+    if(onReplica(true)){
+      try{
+        REPLICA_READS.increment();
+        return reservations(replicaCheckReservationsStatement, replicaBookedFlightsStatement);
+      }catch(SQLException e){
+        replicaFailed(e);
+      }
+    }
+    try{
+      return reservations(checkReservationsStatement, bookedFlightsStatement);
+  }catch(SQLException e){
+    countDeadlock(e);
+    EventLog.error(e);
+  }
+    return "Failed to retrieve reservations"+"\n";
+  }
+
+  private String reservations(PreparedStatement checkReservationsStatement, PreparedStatement bookedFlightsStatement)
+          throws SQLException
+  {
+    ResponseWriter sb = out.reset();
+    checkReservationsStatement.clearParameters();
+    checkReservationsStatement.setString(1,this.username);
+    ResultSet rs=checkReservationsStatement.executeQuery();
+    
+    int reservedFlights=0;
+    while(rs.next()){ 
+      reservedFlights++;
+      int rid=rs.getInt("rid");
+      int flightid1=rs.getInt("fid1");
+      int flightid2=rs.getInt("fid2");
+      int paid = rs.getInt("paid");
+      sb.append(ResponseWriter.RESERVATION).append(rid).append(ResponseWriter.PAID);
+      if(paid==0){
+        sb.append(ResponseWriter.FALSE);
+      }
+      if(paid==1){
+        sb.append(ResponseWriter.TRUE);
+      }
+      sb.append(ResponseWriter.COLON_NEWLINE);
+      FlightLines.write(sb, flightText(bookedFlightsStatement, flightid1));
+      if(flightid2 != 0){
+        FlightLines.write(sb, flightText(bookedFlightsStatement, flightid2));
+      }
+    }
+    if(reservedFlights==0){
+      return "No reservations found\n";
+    }else{
+    return sb.toString();
+    }
+  }
+
+  /**
+   * transaction_reservations answered from the change feed, in the same format.
+   */
+  private String cachedReservations()
+  {
+    List<ChangeFeed.Reservation> reservations = feed.reservations(this.username);
+    if(reservations.isEmpty()){
+      return "No reservations found\n";
+    }
+    ResponseWriter sb = out.reset();
+    try{
+      for(ChangeFeed.Reservation r : reservations){
+        sb.append(ResponseWriter.RESERVATION).append(r.rid).append(ResponseWriter.PAID);
+        if(r.paid==0){
+          sb.append(ResponseWriter.FALSE);
+        }
+        if(r.paid==1){
+          sb.append(ResponseWriter.TRUE);
+        }
+        sb.append(ResponseWriter.COLON_NEWLINE);
+        FlightLines.write(sb, cachedFlight(r.fid1));
+        if(r.fid2 != 0){
+          FlightLines.write(sb, cachedFlight(r.fid2));
+        }
+      }
+    }catch(SQLException e){
+      countDeadlock(e);
+      EventLog.error(e);
+      return "Failed to retrieve reservations"+"\n";
+    }
+    return sb.toString();
+  }
+
+  private Query.Flight cachedFlight(int fid) throws SQLException
+  {
+    Query.Flight f = flightDetails.get(fid);
+    if(f != null){
+      FLIGHT_HITS.increment();
+    }else{
+      FLIGHT_MISSES.increment();
+      f = flightText(bookedFlightsStatement, fid);
+      // a fid with no row is not remembered, it may be loaded later
+      if(f.fid == fid){
+        if(flightDetails.size() >= FLIGHT_DETAILS_SIZE)
+          flightDetails.clear();
+        flightDetails.put(fid, f);
+      }
+    }
+    return f;
+  }
+
+  /**
+   * Forgets the flight details cached for reservations, after flights were reloaded.
+   */
+  static void forgetFlights()
+  {
+    flightDetails.clear();
+  }
+
+  String transaction_cancel(int reservationId)
+  {
+
+    if(this.username==null){
+      return "Cannot cancel reservations, not logged in"+"\n";
+    }
+    try{
+      //beginTransaction();
+    checkReservationsStatement.clearParameters();
+    checkReservationsStatement.setString(1,this.username);
+    ResultSet rs=checkReservationsStatement.executeQuery();
+    while(rs.next()){
+      int rid=rs.getInt("rid");
+      int paid=rs.getInt("paid");
+      int totalPrice=rs.getInt("price1")+rs.getInt("price2");
+      int fid1=rs.getInt("fid1");
+      int fid2=rs.getInt("fid2");
+
+      if(rid !=reservationId){
+        //rollbackTransaction();
+        return "Failed to cancel reservation "+reservationId;
+      }else{
+          cancelReservationStatement.setInt(1,reservationId);
+          cancelReservationStatement.executeUpdate();
+              increaseCapacityStatement.setInt(1,fid1);
+              increaseCapacityStatement.executeUpdate();          
+              if(fid2!=0){
+              increaseCapacityStatement.setInt(1,fid2);
+              increaseCapacityStatement.executeUpdate();
+              }
+        if(paid==1){
+          refundMoneyStatement.clearParameters();
+          refundMoneyStatement.setInt(1,totalPrice);
+          refundMoneyStatement.setString(2,this.username);
+          refundMoneyStatement.executeUpdate();
+        }
+        lastWrite = System.nanoTime();
+        return "Canceled reservation "+reservationId+"\n";
+      }
+    }
+  }catch(SQLException e){
+     countDeadlock(e);
+     return "Failed to cancel reservation "+reservationId+"\n";
+  }
+  return "Failed to cancel reservation "+reservationId+"\n";
+}
+
+
+
+
+
+  String transaction_pay (int reservationId)
+  {
+    
+    if(this.username==null){
+      return "Cannot pay, not logged in"+"\n";
+    }
+    try{
+    beginTransaction();
+    checkReservationsStatement.clearParameters();
+    checkReservationsStatement.setString(1,this.username);
+    ResultSet rs=checkReservationsStatement.executeQuery();
+
+    checkMoneyStatement.clearParameters();
+    checkMoneyStatement.setString(1,this.username);
+    ResultSet mrs=checkMoneyStatement.executeQuery();
+    int money=0;
+    int cost=0;
+    if(mrs.next()){
+      money=mrs.getInt("balance");
+    }
+
+    if(!rs.next()){
+      rollbackTransaction();
+     return "Cannot find unpaid reservation "+reservationId+" under user: " +username+ "\n";
+    }else{
+    int rid= rs.getInt("rid");
+    int totalPrice=rs.getInt("price1")+rs.getInt("price2");
+    cost=totalPrice;
+    int paid=rs.getInt("paid");
+
+      if(paid==1 || rid != reservationId){
+        rollbackTransaction();
+        return "Cannot find unpaid reservation "+reservationId+" under user: " +username+ "\n";
+      }
+      
+
+      if(money >= totalPrice){
+        int moneyLeft = money-totalPrice;
+        updateMoneyStatement.setInt(1,moneyLeft);
+        updateMoneyStatement.setString(2,this.username);
+        updateMoneyStatement.executeUpdate();
+        updatePaymentStatement.setInt(1,1);
+        updatePaymentStatement.setInt(2,rid);
+        updatePaymentStatement.executeUpdate();
+        commitTransaction();
+        return "Paid reservation: "+reservationId +" remaining balance: "+moneyLeft+"\n";
+      }else{
+        return "User has only "+ money+ " in account but itinerary costs " +cost+"\n";
+      }
+
+
+
+    }
+  }catch(SQLException e){
+    countDeadlock(e);
+    EventLog.error(e);
+  }
+  return "Failed to pay for reservation"+reservationId+"\n";
+
+    }
+
+
+  /* some utility functions below */
+
+  /**
+   * Opens this session's connection to the read replica and prepares the statements that run
+   * there. Failures are not fatal: reads stay on the primary until a later attempt succeeds.
+   */
+  private void connectReplica()
+  {
+    try{
+      replicaConn = replica.connect();
+      SlowLog.enableStatistics(replicaConn);
+      replicaDirectFlightsStatement = prepare(replicaConn, "replica.DIRECT_FLIGHTS", DIRECT_FLIGHTS);
+      replicaIndirectFlightsStatement = prepare(replicaConn, "replica.INDIRECT_FLIGHTS", INDIRECT_FLIGHTS);
+      replicaCheckReservationsStatement = prepare(replicaConn, "replica.CHECK_RESERVATIONS", CHECK_RESERVATIONS);
+      replicaBookedFlightsStatement = prepare(replicaConn, "replica.BOOKED_FLIGHTS", BOOKED_FLIGHTS);
+    }catch(Exception e){
+      replica.failed();
+      closeReplica();
+    }
+  }
+
+  private void closeReplica()
+  {
+    statements.remove(replicaDirectFlightsStatement);
+    statements.remove(replicaIndirectFlightsStatement);
+    statements.remove(replicaCheckReservationsStatement);
+    statements.remove(replicaBookedFlightsStatement);
+    try{
+      if (replicaConn != null)
+        replicaConn.close();
+    }catch(SQLException e){
+      // already broken
+    }
+    replicaConn = null;
+  }
+
+  /**
+   * Whether the next read should go to the replica: it must be configured for this kind of
+   * read, up, within the allowed lag, and caught up with this session's last write.
+   */
+  private boolean onReplica(boolean reservations)
+  {
+    if (replica == null || (reservations && !replica.reservations) || !replica.freshFor(lastWrite))
+      return false;
+    if (replicaConn == null)
+      connectReplica();
+    return replicaConn != null;
+  }
+
+  // the replica failed a query; fail over to the primary and reconnect once it is back
+  private void replicaFailed(SQLException e)
+  {
+    EventLog.error(e);
+    REPLICA_FAILURES.increment();
+    replica.failed();
+    closeReplica();
+  }
+
+  PreparedStatement prepare(String name, String sql, int... secret) throws SQLException
+  {
+    return prepare(conn, name, sql, secret);
+  }
+
+  // a statement that is prepared on first use, that transaction deadlines apply to and whose
+  // executions are timed as name; on a pooled connection it comes from the connection's cache.
+  // The parameters at the secret indexes are kept out of the logs.
+  PreparedStatement prepare(Connection c, String name, String sql, int... secret) throws SQLException
+  {
+    PooledConnection cache = c == conn ? pooled : null;
+    PreparedStatement ps = Metrics.timed(name, sql, cache != null
+            ? LazyStatement.of(() -> cache.prepare(sql), false)
+            : LazyStatement.of(() -> c.prepareStatement(sql), true), secret);
+    statements.add(ps);
+    return ps;
+  }
+
+  /**
+   * Gives every statement a query timeout of the time left until {@code deadline}, rounded up
+   * to whole seconds as JDBC requires, and schedules a cancel of whatever statement is still
+   * running when the deadline passes.
+   */
+  void startDeadline(long deadline)
+  {
+    if (deadline == 0)
+      return;
+    this.deadline = deadline;
+    long left = deadline - System.nanoTime();
+    try{
+      int seconds = secondsLeft();
+      for (Statement s : statements)
+        s.setQueryTimeout(seconds);
+    }catch(SQLException e){
+      EventLog.error(e);
+    }
+    synchronized (statements)
+    {
+      int current = ++transaction;
+      expired = false;
+      canceler = deadlines.schedule(() -> expire(current), Math.max(0, left), TimeUnit.NANOSECONDS);
+    }
+  }
+
+  private void expire(int expiring)
+  {
+    synchronized (statements)
+    {
+      if (expiring != transaction || canceler == null)
+        return;
+      expired = true;
+      for (Statement s : statements)
+      {
+        try{
+          s.cancel();
+        }catch(SQLException e){
+          // closed or not running
+        }
+      }
+    }
+  }
+
+  /**
+   * Clears the query timeouts again and, if the deadline cut the transaction off, rolls back
+   * whatever it left open.
+   */
+  void endDeadline()
+  {
+    if (deadline == 0)
+      return;
+    deadline = 0;
+    boolean cutOff;
+    synchronized (statements)
+    {
+      canceler.cancel(false);
+      canceler = null;
+      cutOff = expired;
+    }
+    try{
+      for (Statement s : statements)
+        s.setQueryTimeout(0);
+      if (cutOff){
+        timeouts++;
+        Metrics.TIMEOUTS.increment();
+        if (!conn.getAutoCommit())
+          rollbackTransaction();
+      }
+    }catch(SQLException e){
+      EventLog.error(e);
+    }
+  }
+
+  // time left until the deadline of the current transaction in whole seconds, at least 1
+  private int secondsLeft()
+  {
+    long left = deadline - System.nanoTime();
+    return (int) Math.max(1, (left + 999999999L) / 1000000000L);
+  }
+
+  /**
+   * Applies the time left in the current transaction, if it has a deadline, as the query
+   * timeout of a statement prepared for a single use.
+   */
+  <T extends Statement> T timed(T statement) throws SQLException
+  {
+    if (deadline != 0)
+      statement.setQueryTimeout(secondsLeft());
+    return statement;
+  }
+
+  public void beginTransaction() throws SQLException
+  {
+    conn.setAutoCommit(false);
+    beginTransactionStatement.executeUpdate();
+  }
+
+  public void commitTransaction() throws SQLException
+  {
+    commitTransactionStatement.executeUpdate();
+    Metrics.COMMITS.increment();
+    conn.setAutoCommit(true);
+    lastWrite = System.nanoTime();
+  }
+
+  public void rollbackTransaction() throws SQLException
+  {
+    rollbackTransactionStatement.executeUpdate();
+    Metrics.ROLLBACKS.increment();
+    conn.setAutoCommit(true);
+  }
+
+  private static final int SQLSERVER_DEADLOCK = 1205;
+
+  void countDeadlock(SQLException e)
+  {
+    if (e.getErrorCode() == SQLSERVER_DEADLOCK || "40001".equals(e.getSQLState()))
+    {
+      deadlocks++;
+      Metrics.DEADLOCKS.increment();
+    }
+  }
+
+  static Query.Flight flightText(PreparedStatement bookedFlightsStatement, int fid) throws SQLException{
+    Query.Flight booked= new Query.Flight();
+    bookedFlightsStatement.clearParameters();
+    bookedFlightsStatement.setInt(1,fid);
+    ResultSet rs=bookedFlightsStatement.executeQuery();    
+      while (rs.next())
+        booked = flight(rs);
+      //oneHopResults.close();
+    return booked;
+  }
+
+  // the current row of a FLIGHTS query
+  private static Query.Flight flight(ResultSet rs) throws SQLException
+  {
+    Query.Flight f = new Query.Flight();
+    f.fid = rs.getInt("fid");
+    f.dayOfMonth = rs.getInt("day_of_month");
+    f.carrierId = rs.getString("carrier_id");
+    f.flightNum = rs.getString("flight_num");
+    f.originCity = rs.getString("origin_city");
+    f.destCity = rs.getString("dest_city");
+    f.time = rs.getInt("actual_time");
+    f.capacity = rs.getInt("capacity");
+    f.price = rs.getInt("price");
+    return f;
+  }
+
+  /**
+   * Shows an example of using PreparedStatements after setting arguments. You don't need to
+   * use this method if you don't want to.
+   */
+  private int checkFlightCapacity(int fid) throws SQLException
+  {
+    checkFlightCapacityStatement.clearParameters();
+    checkFlightCapacityStatement.setInt(1, fid);
+    ResultSet results = checkFlightCapacityStatement.executeQuery();
+    results.next();
+    int capacity = results.getInt("capacity");
+    results.close();
+
+    return capacity;
+  }
+
+
+}
@@ -0,0 +1,509 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only write-ahead log of the changes made to a {@code MemoryStore}.
+ *
+ * Each record is written as its payload length, the CRC32 of the payload, and the payload.
+ * Appending only copies the record into a pending buffer; {@link #sync} makes everything up to
+ * a record durable. Concurrent callers of {@code sync} share one write and one fsync: the first
+ * becomes the leader and flushes whatever has been appended by then, and the others wait for it
+ * and return without touching the file if their record was covered (group commit).
+ *
+ * On open the journal is replayed up to the last complete record with a valid checksum; a torn
+ * record left by a crash is cut off.
+ *
+ * Positions are logical: they keep growing when records older than a checkpoint are dropped
+ * with {@link #truncate}. The file starts with a header holding the position of its first
+ * record.
+ */
+class Journal implements Closeable
+{
+  static final byte CREATE = 1;
+  static final byte BOOK = 2;
+  static final byte PAY = 3;
+  static final byte CANCEL = 4;
+  static final byte CLEAR = 5;
+  // both reservations of a round trip in one record, so that a crash keeps both or neither
+  static final byte ROUND_TRIP = 6;
+
+  private static final int HEADER = 8;
+  // magic, version and the position of the first record in the file
+  private static final int FILE_MAGIC = 0x464a524e; // "FJRN"
+  private static final int FILE_VERSION = 1;
+  private static final int FILE_HEADER = 16;
+  private static final int MAX_RECORD = 1 << 20;
+
+  /**
+   * One logged change. Only the fields of its type are meaningful.
+   */
+  static final class Record
+  {
+    byte type;
+    String user = "";
+    String password = "";
+    int amount;
+    int rid;
+    int day;
+    int fid1;
+    int fid2;
+    int price1;
+    int price2;
+    // the return reservation of a round trip, a BOOK record
+    Record inbound;
+
+    static Record create(String user, String password, int amount)
+    {
+      Record r = new Record(CREATE, user);
+      r.password = password;
+      r.amount = amount;
+      return r;
+    }
+
+    static Record book(String user, int rid, int day, int fid1, int fid2, int price1, int price2)
+    {
+      Record r = new Record(BOOK, user);
+      r.rid = rid;
+      r.day = day;
+      r.fid1 = fid1;
+      r.fid2 = fid2;
+      r.price1 = price1;
+      r.price2 = price2;
+      return r;
+    }
+
+    static Record roundTrip(Record outbound, Record inbound)
+    {
+      outbound.type = ROUND_TRIP;
+      outbound.inbound = inbound;
+      return outbound;
+    }
+
+    static Record pay(String user, int rid)
+    {
+      Record r = new Record(PAY, user);
+      r.rid = rid;
+      return r;
+    }
+
+    static Record cancel(String user, int rid)
+    {
+      Record r = new Record(CANCEL, user);
+      r.rid = rid;
+      return r;
+    }
+
+    static Record clear()
+    {
+      return new Record(CLEAR, "");
+    }
+
+    Record(byte type, String user)
+    {
+      this.type = type;
+      this.user = user;
+    }
+
+    byte[] encode()
+    {
+      try
+      {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(type);
+        out.writeUTF(user);
+        switch (type)
+        {
+          case CREATE:
+            out.writeUTF(password);
+            out.writeInt(amount);
+            break;
+          case BOOK:
+            writeBooking(out, this);
+            break;
+          case ROUND_TRIP:
+            writeBooking(out, this);
+            writeBooking(out, inbound);
+            break;
+          case PAY:
+          case CANCEL:
+            out.writeInt(rid);
+            break;
+          default:
+            break;
+        }
+        return bytes.toByteArray();
+      }
+      catch (IOException e)
+      {
+        throw new AssertionError(e); // cannot happen writing to memory
+      }
+    }
+
+    static Record decode(byte[] payload) throws IOException
+    {
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+      Record r = new Record(in.readByte(), in.readUTF());
+      switch (r.type)
+      {
+        case CREATE:
+          r.password = in.readUTF();
+          r.amount = in.readInt();
+          break;
+        case BOOK:
+          readBooking(in, r);
+          break;
+        case ROUND_TRIP:
+          readBooking(in, r);
+          r.inbound = readBooking(in, new Record(BOOK, r.user));
+          break;
+        case PAY:
+        case CANCEL:
+          r.rid = in.readInt();
+          break;
+        case CLEAR:
+          break;
+        default:
+          throw new IOException("unknown journal record type " + r.type);
+      }
+      return r;
+    }
+
+    private static void writeBooking(DataOutputStream out, Record r) throws IOException
+    {
+      out.writeInt(r.rid);
+      out.writeInt(r.day);
+      out.writeInt(r.fid1);
+      out.writeInt(r.fid2);
+      out.writeInt(r.price1);
+      out.writeInt(r.price2);
+    }
+
+    private static Record readBooking(DataInputStream in, Record r) throws IOException
+    {
+      r.rid = in.readInt();
+      r.day = in.readInt();
+      r.fid1 = in.readInt();
+      r.fid2 = in.readInt();
+      r.price1 = in.readInt();
+      r.price2 = in.readInt();
+      return r;
+    }
+  }
+
+  /**
+   * Receives the records of a journal in order while it is replayed.
+   */
+  interface Replayer
+  {
+    /**
+     * @param position the position of the record, as {@link #position} returned before it was appended
+     */
+    void redo(Record r, long position);
+  }
+
+  private final Path file;
+  private FileChannel channel;
+  private final boolean fsync;
+  private long base; // position of the first record in the file
+
+  // records appended but not yet written; swapped with spare by the flushing leader
+  private ByteBuffer pending = ByteBuffer.allocate(64 * 1024);
+  private ByteBuffer spare = ByteBuffer.allocate(64 * 1024);
+  private long appended; // position just past the last appended record
+  private long durable;  // position up to which the file has been written and synced
+  private boolean flushing;
+  private IOException failure;
+
+  private long syncs;
+  private long records;
+
+  private Journal(Path file, FileChannel channel, long base, long end, boolean fsync)
+  {
+    this.file = file;
+    this.channel = channel;
+    this.fsync = fsync;
+    this.base = base;
+    this.appended = end;
+    this.durable = end;
+  }
+
+  /**
+   * Opens the journal at {@code file}, creating it if needed, and replays its records.
+   *
+   * @param fsync whether {@link #sync} forces the file to disk, or only hands it to the OS
+   */
+  static Journal open(Path file, boolean fsync, Replayer replayer) throws IOException
+  {
+    FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+            StandardOpenOption.WRITE);
+    try
+    {
+      if (channel.size() == 0)
+      {
+        writeHeader(channel, 0);
+        channel.force(true);
+      }
+      ByteBuffer header = ByteBuffer.allocate(FILE_HEADER);
+      channel.read(header, 0);
+      header.flip();
+      if (header.remaining() < FILE_HEADER || header.getInt() != FILE_MAGIC || header.getInt() != FILE_VERSION)
+        throw new IOException(file + " is not a version " + FILE_VERSION + " journal");
+      long base = header.getLong();
+
+      long end = replay(channel, base, replayer);
+      long size = FILE_HEADER + end - base;
+      if (size < channel.size())
+      {
+        EventLog.warn("Journal " + file + ": discarding " + (channel.size() - size)
+                + " bytes after the last complete record");
+        channel.truncate(size);
+        channel.force(true);
+      }
+      channel.position(size);
+      return new Journal(file, channel, base, end, fsync);
+    }
+    catch (IOException | RuntimeException e)
+    {
+      channel.close();
+      throw e;
+    }
+  }
+
+  private static void writeHeader(FileChannel channel, long base) throws IOException
+  {
+    ByteBuffer header = ByteBuffer.allocate(FILE_HEADER);
+    header.putInt(FILE_MAGIC).putInt(FILE_VERSION).putLong(base);
+    header.flip();
+    while (header.hasRemaining())
+      channel.write(header, FILE_HEADER - header.remaining());
+  }
+
+  // returns the position just past the last valid record
+  private static long replay(FileChannel channel, long base, Replayer replayer) throws IOException
+  {
+    channel.position(FILE_HEADER);
+    DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), 1 << 16));
+    CRC32 crc = new CRC32();
+    long end = base;
+    while (true)
+    {
+      int length;
+      int checksum;
+      byte[] payload;
+      try
+      {
+        length = in.readInt();
+        checksum = in.readInt();
+        if (length <= 0 || length > MAX_RECORD)
+          return end;
+        payload = new byte[length];
+        in.readFully(payload);
+      }
+      catch (EOFException e)
+      {
+        return end;
+      }
+      crc.reset();
+      crc.update(payload, 0, length);
+      if ((int) crc.getValue() != checksum)
+        return end;
+      replayer.redo(Record.decode(payload), end);
+      end += HEADER + length;
+    }
+  }
+
+  /**
+   * Adds a record after all previously appended ones. It is not durable until {@link #sync}
+   * has been called with the returned position.
+   *
+   * @return the position just past the record
+   */
+  synchronized long append(Record r) throws IOException
+  {
+    if (failure != null)
+      throw new IOException("journal " + file + " failed", failure);
+    byte[] payload = r.encode();
+    CRC32 crc = new CRC32();
+    crc.update(payload, 0, payload.length);
+
+    int size = HEADER + payload.length;
+    if (pending.remaining() < size)
+    {
+      ByteBuffer bigger = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + size));
+      pending.flip();
+      bigger.put(pending);
+      pending = bigger;
+    }
+    pending.putInt(payload.length).putInt((int) crc.getValue()).put(payload);
+    appended += size;
+    records++;
+    return appended;
+  }
+
+  /**
+   * @return the position the next record will be appended at
+   */
+  synchronized long position()
+  {
+    return appended;
+  }
+
+  /**
+   * Waits until everything up to {@code position} is written and synced, flushing it in a group
+   * with the records of other callers when no flush is already on the way.
+   */
+  void sync(long position) throws IOException
+  {
+    ByteBuffer batch;
+    long end;
+    FileChannel channel;
+    synchronized (this)
+    {
+      while (true)
+      {
+        if (durable >= position)
+          return;
+        if (failure != null)
+          throw new IOException("journal " + file + " failed", failure);
+        if (!flushing)
+          break;
+        try
+        {
+          wait();
+        }
+        catch (InterruptedException e)
+        {
+          Thread.currentThread().interrupt();
+          throw new IOException("interrupted waiting for journal sync", e);
+        }
+      }
+      flushing = true;
+      batch = pending;
+      pending = spare;
+      spare = null;
+      end = appended;
+      channel = this.channel;
+    }
+
+    try
+    {
+      batch.flip();
+      while (batch.hasRemaining())
+        channel.write(batch);
+      if (fsync)
+        channel.force(false);
+    }
+    catch (IOException e)
+    {
+      synchronized (this)
+      {
+        failure = e;
+        flushing = false;
+        notifyAll();
+      }
+      throw e;
+    }
+
+    synchronized (this)
+    {
+      batch.clear();
+      spare = batch;
+      durable = end;
+      syncs++;
+      flushing = false;
+      notifyAll();
+    }
+  }
+
+  /**
+   * Drops the records before {@code position}, which must be durable, once a checkpoint has
+   * made them redundant. The remaining records are copied to a new file that replaces the
+   * journal; appends wait meanwhile, and syncs until the copy is done.
+   */
+  synchronized void truncate(long position) throws IOException
+  {
+    while (flushing)
+    {
+      try
+      {
+        wait();
+      }
+      catch (InterruptedException e)
+      {
+        Thread.currentThread().interrupt();
+        throw new IOException("interrupted waiting for journal sync", e);
+      }
+    }
+    if (position > durable)
+      throw new IllegalArgumentException("journal position " + position + " is not durable yet");
+    if (position <= base)
+      return;
+
+    Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+    try (FileChannel copy = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING))
+    {
+      writeHeader(copy, position);
+      long from = FILE_HEADER + position - base;
+      long to = FILE_HEADER + durable - base;
+      copy.position(FILE_HEADER);
+      while (from < to)
+        from += channel.transferTo(from, to - from, copy);
+      copy.force(true);
+    }
+    Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+    channel.close();
+    channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    channel.position(channel.size());
+    base = position;
+  }
+
+  /**
+   * Appends a record and waits until it is durable.
+   */
+  void log(Record r) throws IOException
+  {
+    sync(append(r));
+  }
+
+  /**
+   * @return how many records were appended per sync so far, the size of the average group
+   */
+  synchronized double recordsPerSync()
+  {
+    return syncs == 0 ? 0 : (double) records / syncs;
+  }
+
+  public void close() throws IOException
+  {
+    long end;
+    synchronized (this)
+    {
+      end = appended;
+    }
+    try
+    {
+      sync(end);
+    }
+    finally
+    {
+      channel.close();
+    }
+  }
+}
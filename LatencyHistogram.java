@@ -0,0 +1,145 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Concurrent latency histogram with log-linear buckets, in the style of HdrHistogram.
+ *
+ * Values below 128 get a bucket each; above that every power of two is split into 64
+ * buckets, so any recorded value is reported within 1/64 (about 1.6%) of its true value.
+ * Recording is a single atomic increment and never allocates, so it can sit on the hot path
+ * of every transaction. Values are in whatever unit the caller records, normally nanoseconds.
+ */
+public class LatencyHistogram
+{
+  private static final int SUB_BITS = 7;
+  private static final int SUB_COUNT = 1 << SUB_BITS;  // 128 exact buckets
+  private static final int HALF = SUB_COUNT >> 1;      // 64 buckets per power of two above that
+  private static final int BUCKETS = SUB_COUNT + (63 - SUB_BITS) * HALF;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+  public void record(long value)
+  {
+    counts.incrementAndGet(index(value < 0 ? 0 : value));
+  }
+
+  static int index(long v)
+  {
+    if (v < SUB_COUNT)
+      return (int) v;
+    int shift = (63 - Long.numberOfLeadingZeros(v)) - (SUB_BITS - 1);
+    return SUB_COUNT + (shift - 1) * HALF + (int) ((v >>> shift) - HALF);
+  }
+
+  /**
+   * Lowest value that falls into bucket {@code i}.
+   */
+  static long lowest(int i)
+  {
+    if (i < SUB_COUNT)
+      return i;
+    int shift = (i - SUB_COUNT) / HALF + 1;
+    long sub = (i - SUB_COUNT) % HALF + HALF;
+    return sub << shift;
+  }
+
+  /**
+   * Midpoint of bucket {@code i}, used as the reported value of everything recorded in it.
+   */
+  static long median(int i)
+  {
+    if (i < SUB_COUNT)
+      return i;
+    int shift = (i - SUB_COUNT) / HALF + 1;
+    return lowest(i) + ((1L << shift) >> 1);
+  }
+
+  public long count()
+  {
+    long n = 0;
+    for (int i = 0; i < BUCKETS; i++)
+      n += counts.get(i);
+    return n;
+  }
+
+  /**
+   * Value at the given percentile (0-100), or 0 if nothing has been recorded.
+   */
+  public long percentile(double p)
+  {
+    long[] snapshot = snapshot();
+    long total = 0;
+    for (long c : snapshot)
+      total += c;
+    if (total == 0)
+      return 0;
+
+    long rank = Math.max(1, (long) Math.ceil(p / 100.0 * total));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++)
+    {
+      seen += snapshot[i];
+      if (seen >= rank)
+        return median(i);
+    }
+    return max();
+  }
+
+  public long max()
+  {
+    for (int i = BUCKETS - 1; i >= 0; i--)
+    {
+      if (counts.get(i) != 0)
+        return median(i);
+    }
+    return 0;
+  }
+
+  public double mean()
+  {
+    long n = 0;
+    double sum = 0;
+    for (int i = 0; i < BUCKETS; i++)
+    {
+      long c = counts.get(i);
+      n += c;
+      sum += (double) c * median(i);
+    }
+    return n == 0 ? 0 : sum / n;
+  }
+
+  /**
+   * Adds everything recorded in {@code other} to this histogram.
+   */
+  public void add(LatencyHistogram other)
+  {
+    for (int i = 0; i < BUCKETS; i++)
+    {
+      long c = other.counts.get(i);
+      if (c != 0)
+        counts.addAndGet(i, c);
+    }
+  }
+
+  /**
+   * Returns a copy of the current counts and clears them, for interval reporting.
+   */
+  public LatencyHistogram drain()
+  {
+    LatencyHistogram copy = new LatencyHistogram();
+    for (int i = 0; i < BUCKETS; i++)
+    {
+      long c = counts.getAndSet(i, 0);
+      if (c != 0)
+        copy.counts.set(i, c);
+    }
+    return copy;
+  }
+
+  private long[] snapshot()
+  {
+    long[] s = new long[BUCKETS];
+    for (int i = 0; i < BUCKETS; i++)
+      s[i] = counts.get(i);
+    return s;
+  }
+}
@@ -0,0 +1,87 @@
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+/**
+ * Prepared statement that is only prepared when it is first used, so that a session that runs
+ * a few commands does not pay for preparing every statement it might need.
+ *
+ * Until then, query timeouts are remembered and applied on preparation, and cancelling,
+ * clearing and closing do nothing. A statement that is not {@code owned}, such as one cached
+ * by a {@code PooledConnection}, stays open when the session closes it.
+ */
+class LazyStatement implements InvocationHandler
+{
+  /**
+   * Prepares the statement on first use.
+   */
+  interface Preparer
+  {
+    PreparedStatement prepare() throws SQLException;
+  }
+
+  private final Preparer preparer;
+  private final boolean owned;
+  // read by the deadline timer when it cancels statements
+  private volatile PreparedStatement target;
+  private int timeout = -1;
+
+  private LazyStatement(Preparer preparer, boolean owned)
+  {
+    this.preparer = preparer;
+    this.owned = owned;
+  }
+
+  static PreparedStatement of(Preparer preparer, boolean owned)
+  {
+    return (PreparedStatement) Proxy.newProxyInstance(LazyStatement.class.getClassLoader(),
+            new Class<?>[] {PreparedStatement.class}, new LazyStatement(preparer, owned));
+  }
+
+  public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+  {
+    String m = method.getName();
+    // identity, so that the proxy can be found in collections
+    if (m.equals("equals") && args != null && args.length == 1)
+      return proxy == args[0];
+    if (m.equals("hashCode") && args == null)
+      return System.identityHashCode(proxy);
+
+    PreparedStatement s = target;
+    if (s == null)
+    {
+      switch (m)
+      {
+        case "setQueryTimeout":
+          timeout = (Integer) args[0];
+          return null;
+        case "cancel":
+        case "close":
+        case "clearParameters":
+        case "clearWarnings":
+        case "getWarnings":
+          return null;
+        case "isClosed":
+          return false;
+        default:
+          s = preparer.prepare();
+          if (timeout >= 0)
+            s.setQueryTimeout(timeout);
+          target = s;
+      }
+    }
+    if (m.equals("close") && !owned)
+      return null;
+    try
+    {
+      return method.invoke(s, args);
+    }
+    catch (InvocationTargetException e)
+    {
+      throw e.getCause();
+    }
+  }
+}
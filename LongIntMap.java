@@ -0,0 +1,127 @@
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+
+/**
+ * Open-addressing map from long keys to non-negative int values, without boxing.
+ *
+ * Meant for indexes that are built once and then only read, so it is not thread safe for
+ * writers; any number of threads may call {@link #get} once the map is published.
+ *
+ * The table lives in buffers rather than arrays so that a map saved with {@link #keys} and
+ * {@link #values} can be used straight from a memory-mapped file.
+ */
+class LongIntMap
+{
+  private static final int MISSING = -1;
+
+  private LongBuffer keys;
+  private IntBuffer values;
+  private int size;
+  private int mask;
+
+  LongIntMap(int expected)
+  {
+    allocate(Integer.highestOneBit(Math.max(4, expected * 2 - 1)) << 1);
+  }
+
+  /**
+   * Wraps a table saved from another map; {@code put} fails if the buffers are read-only.
+   */
+  LongIntMap(LongBuffer keys, IntBuffer values, int size)
+  {
+    if (Integer.bitCount(keys.capacity()) != 1 || values.capacity() != keys.capacity())
+      throw new IllegalArgumentException("bad table capacity " + keys.capacity());
+    this.keys = keys;
+    this.values = values;
+    this.size = size;
+    this.mask = keys.capacity() - 1;
+  }
+
+  private void allocate(int capacity)
+  {
+    int[] empty = new int[capacity];
+    Arrays.fill(empty, MISSING);
+    keys = LongBuffer.wrap(new long[capacity]);
+    values = IntBuffer.wrap(empty);
+    mask = capacity - 1;
+  }
+
+  private static int hash(long key)
+  {
+    key ^= key >>> 33;
+    key *= 0xff51afd7ed558ccdL;
+    key ^= key >>> 33;
+    return (int) key;
+  }
+
+  /**
+   * @return the value for {@code key}, or -1 if there is none
+   */
+  int get(long key)
+  {
+    for (int i = hash(key) & mask; ; i = (i + 1) & mask)
+    {
+      int value = values.get(i);
+      if (value == MISSING || keys.get(i) == key)
+        return value;
+    }
+  }
+
+  void put(long key, int value)
+  {
+    if (value < 0)
+      throw new IllegalArgumentException("negative value " + value);
+    if ((size + 1) * 2 > keys.capacity())
+      grow();
+    for (int i = hash(key) & mask; ; i = (i + 1) & mask)
+    {
+      if (values.get(i) == MISSING)
+      {
+        keys.put(i, key);
+        values.put(i, value);
+        size++;
+        return;
+      }
+      if (keys.get(i) == key)
+      {
+        values.put(i, value);
+        return;
+      }
+    }
+  }
+
+  int size()
+  {
+    return size;
+  }
+
+  /**
+   * @return the key slots of the table, for saving it; a power of two of them
+   */
+  LongBuffer keys()
+  {
+    return keys.duplicate();
+  }
+
+  /**
+   * @return the value slots of the table, -1 where a slot is empty
+   */
+  IntBuffer values()
+  {
+    return values.duplicate();
+  }
+
+  private void grow()
+  {
+    LongBuffer oldKeys = keys;
+    IntBuffer oldValues = values;
+    allocate(oldKeys.capacity() << 1);
+    size = 0;
+    for (int i = 0; i < oldKeys.capacity(); i++)
+    {
+      if (oldValues.get(i) != MISSING)
+        put(oldKeys.get(i), oldValues.get(i));
+    }
+  }
+}
@@ -0,0 +1,414 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Properties;
+import java.util.TreeMap;
+
+/**
+ * Backend that keeps flights, users and reservations in process memory; see {@code MemoryStore}.
+ *
+ * Selected with {@code flightservice.backend=memory}. Flights are read once per process from the
+ * CSV named by {@code flightservice.memory.flights}, or from the FLIGHTS table when that is not
+ * set. Users and reservations are kept only in memory unless {@code flightservice.memory.journal}
+ * names a journal file to log them to. A change that cannot be logged fails like a transaction
+ * that cannot commit.
+ */
+class MemoryBackend extends Backend
+{
+  private MemoryStore store;
+
+  // multi-stop search beyond one stop, or null; see RoutingEngine
+  private RoutingEngine routing;
+
+  // orders one-stop itineraries worst first: longest, then highest fids
+  private static final Comparator<int[]> WORST_FIRST = new Comparator<int[]>()
+  {
+    @Override
+    public int compare(int[] a, int[] b)
+    {
+      if (a[0] != b[0])
+        return Integer.compare(b[0], a[0]);
+      if (a[1] != b[1])
+        return Integer.compare(b[1], a[1]);
+      return Integer.compare(b[2], a[2]);
+    }
+  };
+
+  void openConnection(Properties configProps) throws Exception
+  {
+    store = MemoryStore.open(configProps);
+    routing = RoutingEngine.open(configProps);
+  }
+
+  void prepareStatements()
+  {
+  }
+
+  void closeConnection()
+  {
+  }
+
+  void clearTables()
+  {
+    try
+    {
+      store.clear();
+    }
+    catch (IOException e)
+    {
+      EventLog.error(e);
+    }
+  }
+
+  String transaction_login(String username, String password)
+  {
+    if (this.username != null)
+      return "User already logged in\n";
+    if (!store.checkLogin(username, password))
+      return "Login failed\n";
+    this.username = username;
+    return "Logged in as " + username + "\n";
+  }
+
+  String transaction_createCustomer(String username, String password, int initAmount)
+  {
+    username = username.toLowerCase();
+    password = password.toLowerCase();
+    if (initAmount < 0 || username.length() > 20 || password.length() > 20)
+      return "Failed to create user\n";
+    try
+    {
+      if (!store.createUser(username, password, initAmount))
+        return "Failed to create user\n";
+    }
+    catch (IOException e)
+    {
+      EventLog.error(e);
+      return "Failed to create user\n";
+    }
+    return "Created user " + username + "\n";
+  }
+
+  String transaction_search(String originCity, String destinationCity, boolean directFlight, int dayOfMonth,
+                            int numberOfItineraries)
+  {
+    TreeMap<Integer, ArrayList<Query.Flight>> found = new TreeMap<Integer, ArrayList<Query.Flight>>();
+    searchFlights.clear();
+    for (ArrayList<Query.Flight> itinerary : searchDay(originCity, destinationCity, directFlight, dayOfMonth,
+            numberOfItineraries, false))
+    {
+      int time = 0;
+      for (Query.Flight f : itinerary)
+        time += f.time;
+      group(found, time).addAll(itinerary);
+    }
+
+    if (found.isEmpty())
+      return "No flights match your selection\n";
+    return flightAssorter(found, destinationCity);
+  }
+
+  List<ArrayList<Query.Flight>> searchDay(String originCity, String destinationCity, boolean directFlight,
+                                          int dayOfMonth, int numberOfItineraries, boolean byPrice)
+  {
+    FlightIndex index = store.flights();
+    ArrayList<ArrayList<Query.Flight>> found = new ArrayList<ArrayList<Query.Flight>>();
+    int origin = index.city(originCity);
+    int dest = index.city(destinationCity);
+    if (origin < 0 || dest < 0)
+      return found;
+
+    if (byPrice)
+    {
+      for (int[] c : cheapest(index, dayOfMonth, origin, dest, directFlight, numberOfItineraries))
+        found.add(c[5] < 0 ? itinerary(index, c[4]) : itinerary(index, c[4], c[5]));
+      return found;
+    }
+
+    int route = index.route(dayOfMonth, origin, dest);
+    for (int k = 0; k < index.routeSize(route) && found.size() < numberOfItineraries; k++)
+      found.add(itinerary(index, index.routeFlight(route, k)));
+
+    int left = numberOfItineraries - found.size();
+    if (!directFlight && left > 0 && routing != null)
+    {
+      for (int[] path : routing.find(index, dayOfMonth, origin, dest, left))
+        found.add(itinerary(index, Arrays.copyOfRange(path, 1, path.length)));
+    }
+    else if (!directFlight && left > 0)
+    {
+      for (int[] hop : fastestOneStops(index, dayOfMonth, origin, dest, left))
+        found.add(itinerary(index, hop[3], hop[4]));
+    }
+    return found;
+  }
+
+  private static ArrayList<Query.Flight> itinerary(FlightIndex index, int... flights)
+  {
+    ArrayList<Query.Flight> itinerary = new ArrayList<Query.Flight>(flights.length);
+    for (int i : flights)
+      itinerary.add(index.flight(i));
+    return itinerary;
+  }
+
+  private static ArrayList<Query.Flight> group(TreeMap<Integer, ArrayList<Query.Flight>> found, int time)
+  {
+    ArrayList<Query.Flight> g = found.get(time);
+    if (g == null)
+    {
+      g = new ArrayList<Query.Flight>();
+      found.put(time, g);
+    }
+    return g;
+  }
+
+  // orders itineraries {price, time, fid1, fid2, index1, index2} cheapest first, then fastest, then by fids
+  private static final Comparator<int[]> CHEAPEST_FIRST = (a, b) ->
+  {
+    for (int k = 0; k < 4; k++)
+    {
+      if (a[k] != b[k])
+        return Integer.compare(a[k], b[k]);
+    }
+    return 0;
+  };
+
+  /**
+   * @return up to {@code limit} itineraries of at most one stop as {price, time, fid1, fid2,
+   * index1, index2}, in {@link #CHEAPEST_FIRST} order; a direct itinerary has fid2 0 and index2 -1
+   */
+  private static List<int[]> cheapest(FlightIndex index, int day, int origin, int dest, boolean direct, int limit)
+  {
+    ArrayList<int[]> found = new ArrayList<int[]>();
+    for (int i : cheapest(index, index.route(day, origin, dest), limit))
+      found.add(new int[] {index.price(i), index.time(i), index.fid(i), 0, i, -1});
+    if (!direct)
+    {
+      for (int via : index.destinations(day, origin))
+      {
+        if (via == dest || via == origin)
+          continue;
+        int[] first = cheapest(index, index.route(day, origin, via), limit);
+        int[] second = cheapest(index, index.route(day, via, dest), limit);
+        if (second.length == 0)
+          continue;
+        int[] a = new int[first.length];
+        int[] b = new int[second.length];
+        for (int k = 0; k < a.length; k++)
+          a[k] = index.price(first[k]);
+        for (int k = 0; k < b.length; k++)
+          b[k] = index.price(second[k]);
+        // the cheapest of this stop are among the cheapest pairs of its two routes
+        for (int[] pair : bestPairs(a, b, limit))
+        {
+          int i = first[pair[0]];
+          int j = second[pair[1]];
+          found.add(new int[] {index.price(i) + index.price(j), index.time(i) + index.time(j), index.fid(i),
+                  index.fid(j), i, j});
+        }
+      }
+    }
+    found.sort(CHEAPEST_FIRST);
+    return found.subList(0, Math.min(limit, found.size()));
+  }
+
+  // the up to limit cheapest flights of route, then fastest and by fid
+  private static int[] cheapest(FlightIndex index, int route, int limit)
+  {
+    Integer[] flights = new Integer[index.routeSize(route)];
+    for (int k = 0; k < flights.length; k++)
+      flights[k] = index.routeFlight(route, k);
+    Arrays.sort(flights, Comparator.<Integer>comparingInt(index::price).thenComparingInt(index::time)
+            .thenComparingInt(index::fid));
+    int[] best = new int[Math.min(limit, flights.length)];
+    for (int k = 0; k < best.length; k++)
+      best[k] = flights[k];
+    return best;
+  }
+
+  /**
+   * @return up to {@code limit} one-stop itineraries as {time, fid1, fid2, index1, index2}, fastest
+   * first and ties broken by fids
+   */
+  private static List<int[]> fastestOneStops(FlightIndex index, int day, int origin, int dest, int limit)
+  {
+    PriorityQueue<int[]> best = new PriorityQueue<int[]>(limit + 1, WORST_FIRST);
+    for (int via : index.destinations(day, origin))
+    {
+      if (via == dest || via == origin)
+        continue;
+      int second = index.route(day, via, dest);
+      if (second < 0)
+        continue;
+      int first = index.route(day, origin, via);
+      int fastestSecond = index.time(index.routeFlight(second, 0));
+
+      for (int a = 0; a < index.routeSize(first); a++)
+      {
+        int i = index.routeFlight(first, a);
+        // both routes are sorted by duration, so nothing later can beat a full heap
+        if (best.size() == limit && index.time(i) + fastestSecond > best.peek()[0])
+          break;
+        for (int b = 0; b < index.routeSize(second); b++)
+        {
+          int j = index.routeFlight(second, b);
+          int[] hop = {index.time(i) + index.time(j), index.fid(i), index.fid(j), i, j};
+          if (best.size() == limit)
+          {
+            if (WORST_FIRST.compare(hop, best.peek()) <= 0)
+            {
+              if (hop[0] > best.peek()[0])
+                break;
+              continue;
+            }
+            best.poll();
+          }
+          best.add(hop);
+        }
+      }
+    }
+
+    ArrayList<int[]> sorted = new ArrayList<int[]>(best);
+    sorted.sort(WORST_FIRST.reversed());
+    return sorted;
+  }
+
+  String transaction_book(int itineraryId)
+  {
+    if (username == null)
+      return "Cannot book reservations, not logged in\n";
+    ArrayList<Query.Flight> itinerary = searchFlights.get(itineraryId);
+    if (itinerary == null)
+      return "No such itinerary " + itineraryId + "\n";
+    return bookSearched(itinerary);
+  }
+
+  String book(ArrayList<Query.Flight> itinerary)
+  {
+    if (itinerary.size() > MAX_BOOKED_FLIGHTS)
+      return TOO_MANY_FLIGHTS;
+    int rid;
+    try
+    {
+      rid = store.book(username, itinerary);
+    }
+    catch (IOException e)
+    {
+      EventLog.error(e);
+      return "Booking failed\n";
+    }
+    if (rid == MemoryStore.SAME_DAY)
+      return "You cannot book two flights in the same day\n";
+    if (rid == MemoryStore.FULL)
+      Metrics.NO_SEAT.increment();
+    if (rid < 0)
+      return "Booking failed\n";
+    return "Booked flight(s), reservation ID: " + rid + "\n";
+  }
+
+  String bookRoundTrip(ArrayList<Query.Flight> outbound, ArrayList<Query.Flight> inbound)
+  {
+    if (outbound.size() > MAX_BOOKED_FLIGHTS || inbound.size() > MAX_BOOKED_FLIGHTS)
+      return TOO_MANY_FLIGHTS;
+    int[] rids;
+    try
+    {
+      rids = store.bookRoundTrip(username, outbound, inbound);
+    }
+    catch (IOException e)
+    {
+      EventLog.error(e);
+      return "Booking failed\n";
+    }
+    if (rids[0] == MemoryStore.SAME_DAY)
+      return "You cannot book two flights in the same day\n";
+    if (rids[0] == MemoryStore.FULL)
+      Metrics.NO_SEAT.increment();
+    if (rids[0] < 0)
+      return "Booking failed\n";
+    return "Booked round trip, reservation IDs: " + rids[0] + ", " + rids[1] + "\n";
+  }
+
+  String transaction_reservations()
+  {
+    if (username == null)
+      return "Cannot view reservations, not logged in\n";
+    List<MemoryStore.Reservation> reservations;
+    try
+    {
+      reservations = store.reservations(username);
+    }
+    catch (IOException e)
+    {
+      return "Failed to retrieve reservations\n";
+    }
+    if (reservations.isEmpty())
+      return "No reservations found\n";
+
+    FlightIndex index = store.flights();
+    ResponseWriter sb = out.reset();
+    for (MemoryStore.Reservation r : reservations)
+    {
+      sb.append(ResponseWriter.RESERVATION).append(r.rid).append(ResponseWriter.PAID)
+              .append(r.paid).append(ResponseWriter.COLON_NEWLINE);
+      FlightLines.write(sb, bookedFlight(index, r.fid1, r.day, r.price1));
+      if (r.fid2 != 0)
+        FlightLines.write(sb, bookedFlight(index, r.fid2, r.day, r.price2));
+    }
+    return sb.toString();
+  }
+
+  // a reload may have dropped a booked flight; show what the reservation itself knows
+  private static Query.Flight bookedFlight(FlightIndex index, int fid, int day, int price)
+  {
+    int i = index.indexOf(fid);
+    if (i >= 0)
+      return index.flight(i);
+    Query.Flight f = new Query.Flight();
+    f.fid = fid;
+    f.dayOfMonth = day;
+    f.price = price;
+    return f;
+  }
+
+  String transaction_cancel(int reservationId)
+  {
+    if (username == null)
+      return "Cannot cancel reservations, not logged in\n";
+    try
+    {
+      if (!store.cancel(username, reservationId))
+        return "Failed to cancel reservation " + reservationId + "\n";
+    }
+    catch (IOException e)
+    {
+      EventLog.error(e);
+      return "Failed to cancel reservation " + reservationId + "\n";
+    }
+    return "Canceled reservation " + reservationId + "\n";
+  }
+
+  String transaction_pay(int reservationId)
+  {
+    if (username == null)
+      return "Cannot pay, not logged in\n";
+    MemoryStore.Payment p;
+    try
+    {
+      p = store.pay(username, reservationId);
+    }
+    catch (IOException e)
+    {
+      EventLog.error(e);
+      return "Failed to pay for reservation " + reservationId + "\n";
+    }
+    if (!p.found)
+      return "Cannot find unpaid reservation " + reservationId + " under user: " + username + "\n";
+    if (!p.paid)
+      return "User has only " + p.balance + " in account but itinerary costs " + p.cost + "\n";
+    return "Paid reservation: " + reservationId + " remaining balance: " + p.balance + "\n";
+  }
+}
@@ -0,0 +1,727 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Process-wide in-memory store of flights, users, reservations and remaining seats, shared by
+ * every session of the in-memory backend.
+ *
+ * Each user's balance and reservations are guarded by the user's monitor, and seats are taken
+ * with a compare-and-set per flight, so a booking, payment or cancellation is atomic and
+ * isolated like the SERIALIZABLE transactions of the JDBC backend. Operations on different
+ * users never block each other.
+ *
+ * If {@code flightservice.memory.journal} names a file, every change is appended to that
+ * {@code Journal} while the user's monitor is held, so the journal has each user's changes in
+ * the order they were made, and the change is synced before the call returns. The journal is
+ * replayed when the store is opened. Changes are visible to other sessions before they are
+ * synced, so if a sync fails the store stops: every later login, reservation listing and change
+ * fails, as nothing it would show survives a restart.
+ *
+ * With {@code flightservice.memory.checkpoint} also set, a background thread periodically
+ * writes all users and reservations to that file and drops the journal records it covers, so a
+ * restart loads the checkpoint and replays only the newer records. Writers are not stopped:
+ * each user is copied under its own monitor together with the journal position at that moment,
+ * and replay skips the records of a user that come before the position it was copied at.
+ *
+ * With {@code flightservice.memory.reload.seconds} set, the flights source is polled for
+ * changes and a new {@code FlightIndex} is built in the background and swapped in with a
+ * single volatile write. Each transaction reads the index once, so searches under way finish
+ * on the old one, and an old index is garbage once no transaction holds it.
+ */
+class MemoryStore
+{
+  // one store per flights source, so all sessions of a process see the same data
+  private static final Map<String, MemoryStore> stores = new ConcurrentHashMap<>();
+
+  private static final int CHECKPOINT_MAGIC = 0x46434b50; // "FCKP"
+  private static final int CHECKPOINT_VERSION = 1;
+
+  static final int SAME_DAY = -1;
+  static final int FULL = -2;
+  static final int NO_USER = -3;
+
+  static final class User
+  {
+    final String name;
+    final String password;
+    int balance;
+    final TreeMap<Integer, Reservation> reservations = new TreeMap<>();
+
+    User(String name, String password, int balance)
+    {
+      this.name = name;
+      this.password = password;
+      this.balance = balance;
+    }
+  }
+
+  static final class Reservation
+  {
+    final int rid;
+    final int day;
+    final int fid1;
+    final int fid2; // 0 for a direct flight
+    final int price1;
+    final int price2;
+    boolean paid;
+
+    Reservation(int rid, int day, int fid1, int fid2, int price1, int price2)
+    {
+      this.rid = rid;
+      this.day = day;
+      this.fid1 = fid1;
+      this.fid2 = fid2;
+      this.price1 = price1;
+      this.price2 = price2;
+    }
+
+    int cost()
+    {
+      return price1 + price2;
+    }
+  }
+
+  /**
+   * Outcome of a payment: the balance after it, and the cost if the balance was too low.
+   */
+  static final class Payment
+  {
+    final boolean found;
+    final boolean paid;
+    final int balance;
+    final int cost;
+
+    Payment(boolean found, boolean paid, int balance, int cost)
+    {
+      this.found = found;
+      this.paid = paid;
+      this.balance = balance;
+      this.cost = cost;
+    }
+  }
+
+  private volatile FlightIndex flights;
+  private long flightsStamp; // stamp of the source the current flights were loaded from
+  private Properties configProps;
+  private ScheduledExecutorService background;
+  private final ConcurrentHashMap<String, User> users = new ConcurrentHashMap<>();
+  private final SeatCounts seats = new SeatCounts();
+  private final AtomicInteger lastRid = new AtomicInteger();
+  private Journal journal; // null when changes are not logged
+
+  private Path checkpointFile; // null when no checkpoints are taken
+  // the first failed journal sync, after which the store serves no user data; see checkOpen
+  private volatile IOException failure;
+  // held while a checkpoint is written; clear() takes it too, so a checkpoint never straddles one
+  private final Object checkpointLock = new Object();
+  private long checkpointed; // journal position the last checkpoint covers
+
+  // filled while a checkpoint is restored and the journal replayed after it
+  private long replayFrom;
+  private Map<String, Long> copiedAt;
+
+  MemoryStore(FlightIndex flights)
+  {
+    this.flights = flights;
+  }
+
+  /**
+   * @return the store for the flights named in the config, loading them on first use
+   */
+  static MemoryStore open(Properties configProps) throws Exception
+  {
+    String source = configProps.getProperty("flightservice.memory.flights", "");
+    if (source.trim().isEmpty())
+      source = configProps.getProperty("flightservice.url");
+
+    MemoryStore store = stores.get(source);
+    if (store != null)
+      return store;
+    synchronized (stores)
+    {
+      store = stores.get(source);
+      if (store == null)
+      {
+        int reloadSeconds = Integer.parseInt(configProps.getProperty("flightservice.memory.reload.seconds", "0").trim());
+        long stamp = reloadSeconds > 0 ? FlightIndex.stamp(configProps) : 0;
+        store = new MemoryStore(FlightIndex.load(configProps));
+        store.configProps = configProps;
+        store.flightsStamp = stamp;
+        String journal = configProps.getProperty("flightservice.memory.journal", "").trim();
+        String checkpoint = configProps.getProperty("flightservice.memory.checkpoint", "").trim();
+        if (!checkpoint.isEmpty())
+        {
+          if (journal.isEmpty())
+            throw new IllegalArgumentException("flightservice.memory.checkpoint needs flightservice.memory.journal");
+          store.checkpointFile = Paths.get(checkpoint);
+          store.restore();
+        }
+        if (!journal.isEmpty())
+        {
+          boolean fsync = !"false".equals(configProps.getProperty("flightservice.memory.journal.fsync", "true").trim());
+          store.journal = Journal.open(Paths.get(journal), fsync, store::redo);
+          store.copiedAt = null;
+        }
+        if (store.checkpointFile != null)
+        {
+          int seconds = Integer.parseInt(configProps.getProperty("flightservice.memory.checkpoint.seconds", "60").trim());
+          store.startCheckpoints(seconds);
+        }
+        if (reloadSeconds > 0)
+          store.startReloads(reloadSeconds);
+        stores.put(source, store);
+      }
+      return store;
+    }
+  }
+
+  FlightIndex flights()
+  {
+    return flights;
+  }
+
+  // user names are case-insensitive, like the default collation of the database
+  private static String key(String username)
+  {
+    return username.toLowerCase();
+  }
+
+  private long append(Journal.Record r) throws IOException
+  {
+    return journal == null ? 0 : journal.append(r);
+  }
+
+  private void sync(long position) throws IOException
+  {
+    if (journal == null)
+      return;
+    try
+    {
+      journal.sync(position);
+    }
+    catch (IOException e)
+    {
+      if (failure == null)
+        failure = e;
+      throw e;
+    }
+  }
+
+  // throws once a sync failed, so that changes that were never logged are not served
+  private void checkOpen() throws IOException
+  {
+    IOException e = failure;
+    if (e != null)
+      throw new IOException("store stopped after its journal failed", e);
+  }
+
+  void clear() throws IOException
+  {
+    long position;
+    synchronized (checkpointLock)
+    {
+      position = append(Journal.Record.clear());
+      reset();
+    }
+    sync(position);
+  }
+
+  private void reset()
+  {
+    users.clear();
+    seats.clear();
+    lastRid.set(0);
+  }
+
+  boolean createUser(String username, String password, int balance) throws IOException
+  {
+    checkOpen();
+    User u = new User(key(username), password, balance);
+    long position;
+    // held so that no change of the new user can reach the journal before its creation
+    synchronized (u)
+    {
+      if (users.putIfAbsent(u.name, u) != null)
+        return false;
+      try
+      {
+        position = append(Journal.Record.create(u.name, password, balance));
+      }
+      catch (IOException e)
+      {
+        users.remove(u.name, u);
+        throw e;
+      }
+    }
+    sync(position);
+    return true;
+  }
+
+  boolean checkLogin(String username, String password)
+  {
+    if (failure != null)
+      return false;
+    User u = users.get(key(username));
+    return u != null && u.password.equalsIgnoreCase(password);
+  }
+
+  /**
+   * Books one seat on each flight of an itinerary.
+   *
+   * @return the new reservation id, or {@link #SAME_DAY}, {@link #FULL} or {@link #NO_USER}
+   */
+  int book(String username, List<Query.Flight> itinerary) throws IOException
+  {
+    checkOpen();
+    User u = users.get(key(username));
+    if (u == null)
+      return NO_USER;
+
+    FlightIndex index = flights;
+    Query.Flight f1 = itinerary.get(0);
+    Query.Flight f2 = itinerary.size() > 1 ? itinerary.get(1) : null;
+
+    int rid;
+    long position;
+    synchronized (u)
+    {
+      for (Reservation r : u.reservations.values())
+      {
+        if (r.day == f1.dayOfMonth)
+          return SAME_DAY;
+      }
+
+      if (!reserve(index, f1.fid))
+        return FULL;
+      if (f2 != null && !reserve(index, f2.fid))
+      {
+        seats.release(f1.fid);
+        return FULL;
+      }
+
+      rid = lastRid.incrementAndGet();
+      Reservation r = new Reservation(rid, f1.dayOfMonth, f1.fid, f2 == null ? 0 : f2.fid,
+              f1.price, f2 == null ? 0 : f2.price);
+      try
+      {
+        position = append(Journal.Record.book(u.name, rid, r.day, r.fid1, r.fid2, r.price1, r.price2));
+      }
+      catch (IOException e)
+      {
+        seats.release(r.fid1);
+        if (r.fid2 != 0)
+          seats.release(r.fid2);
+        throw e;
+      }
+      u.reservations.put(rid, r);
+    }
+    sync(position);
+    return rid;
+  }
+
+  /**
+   * Books both legs of a round trip as two reservations, or neither, under one journal record.
+   *
+   * @return the outbound and return reservation ids, or a single {@link #SAME_DAY},
+   * {@link #FULL} or {@link #NO_USER}
+   */
+  int[] bookRoundTrip(String username, List<Query.Flight> outbound, List<Query.Flight> inbound) throws IOException
+  {
+    checkOpen();
+    User u = users.get(key(username));
+    if (u == null)
+      return new int[] {NO_USER};
+
+    FlightIndex index = flights;
+    int outDay = outbound.get(0).dayOfMonth;
+    int inDay = inbound.get(0).dayOfMonth;
+    Reservation r1;
+    Reservation r2;
+    long position;
+    synchronized (u)
+    {
+      for (Reservation r : u.reservations.values())
+      {
+        if (r.day == outDay || r.day == inDay)
+          return new int[] {SAME_DAY};
+      }
+
+      List<Query.Flight> legs = new ArrayList<>(outbound);
+      legs.addAll(inbound);
+      for (int k = 0; k < legs.size(); k++)
+      {
+        if (!reserve(index, legs.get(k).fid))
+        {
+          while (--k >= 0)
+            seats.release(legs.get(k).fid);
+          return new int[] {FULL};
+        }
+      }
+
+      r1 = reservation(lastRid.incrementAndGet(), outbound);
+      r2 = reservation(lastRid.incrementAndGet(), inbound);
+      try
+      {
+        position = append(Journal.Record.roundTrip(
+                Journal.Record.book(u.name, r1.rid, r1.day, r1.fid1, r1.fid2, r1.price1, r1.price2),
+                Journal.Record.book(u.name, r2.rid, r2.day, r2.fid1, r2.fid2, r2.price1, r2.price2)));
+      }
+      catch (IOException e)
+      {
+        for (Query.Flight f : legs)
+          seats.release(f.fid);
+        throw e;
+      }
+      u.reservations.put(r1.rid, r1);
+      u.reservations.put(r2.rid, r2);
+    }
+    sync(position);
+    return new int[] {r1.rid, r2.rid};
+  }
+
+  private static Reservation reservation(int rid, List<Query.Flight> itinerary)
+  {
+    Query.Flight f1 = itinerary.get(0);
+    Query.Flight f2 = itinerary.size() > 1 ? itinerary.get(1) : null;
+    return new Reservation(rid, f1.dayOfMonth, f1.fid, f2 == null ? 0 : f2.fid,
+            f1.price, f2 == null ? 0 : f2.price);
+  }
+
+  private boolean reserve(FlightIndex index, int fid)
+  {
+    int i = index.indexOf(fid);
+    // the flight may have been canceled or removed by a reload since it was searched
+    return i >= 0 && !index.canceled(i) && seats.tryReserve(fid, index.capacity(i));
+  }
+
+  /**
+   * @return a copy of the user's reservations in rid order, empty if there is no such user
+   */
+  List<Reservation> reservations(String username) throws IOException
+  {
+    checkOpen();
+    User u = users.get(key(username));
+    if (u == null)
+      return new ArrayList<>();
+    synchronized (u)
+    {
+      List<Reservation> copy = new ArrayList<>(u.reservations.size());
+      for (Reservation r : u.reservations.values())
+      {
+        Reservation c = new Reservation(r.rid, r.day, r.fid1, r.fid2, r.price1, r.price2);
+        c.paid = r.paid;
+        copy.add(c);
+      }
+      return copy;
+    }
+  }
+
+  /**
+   * Cancels a reservation, gives its seats back and refunds it if it was paid.
+   *
+   * @return false if the user has no such reservation
+   */
+  boolean cancel(String username, int rid) throws IOException
+  {
+    checkOpen();
+    User u = users.get(key(username));
+    if (u == null)
+      return false;
+    long position;
+    synchronized (u)
+    {
+      if (!u.reservations.containsKey(rid))
+        return false;
+      position = append(Journal.Record.cancel(u.name, rid));
+      cancel(u, rid);
+    }
+    sync(position);
+    return true;
+  }
+
+  private void cancel(User u, int rid)
+  {
+    Reservation r = u.reservations.remove(rid);
+    seats.release(r.fid1);
+    if (r.fid2 != 0)
+      seats.release(r.fid2);
+    if (r.paid)
+      u.balance += r.cost();
+  }
+
+  Payment pay(String username, int rid) throws IOException
+  {
+    checkOpen();
+    User u = users.get(key(username));
+    if (u == null)
+      return new Payment(false, false, 0, 0);
+    Payment p;
+    long position;
+    synchronized (u)
+    {
+      Reservation r = u.reservations.get(rid);
+      if (r == null || r.paid)
+        return new Payment(false, false, u.balance, 0);
+      if (u.balance < r.cost())
+        return new Payment(true, false, u.balance, r.cost());
+      position = append(Journal.Record.pay(u.name, rid));
+      u.balance -= r.cost();
+      r.paid = true;
+      p = new Payment(true, true, u.balance, r.cost());
+    }
+    sync(position);
+    return p;
+  }
+
+  /**
+   * Applies a journal record while the store is being opened. The change was checked when it
+   * was first made, so capacities and balances are not checked again.
+   */
+  private void redo(Journal.Record j, long position)
+  {
+    // already contained in the restored checkpoint
+    if (position < replayFrom)
+      return;
+    Long copied = copiedAt == null ? null : copiedAt.get(j.user);
+    if (copied != null && position < copied)
+      return;
+
+    User u = users.get(j.user);
+    switch (j.type)
+    {
+      case Journal.CREATE:
+        users.put(j.user, new User(j.user, j.password, j.amount));
+        break;
+      case Journal.BOOK:
+        redoBook(u, j);
+        break;
+      case Journal.ROUND_TRIP:
+        redoBook(u, j);
+        redoBook(u, j.inbound);
+        break;
+      case Journal.PAY:
+        Reservation r = u.reservations.get(j.rid);
+        u.balance -= r.cost();
+        r.paid = true;
+        break;
+      case Journal.CANCEL:
+        cancel(u, j.rid);
+        break;
+      case Journal.CLEAR:
+        reset();
+        if (copiedAt != null)
+          copiedAt.clear();
+        break;
+      default:
+        break;
+    }
+  }
+
+  private void redoBook(User u, Journal.Record j)
+  {
+    u.reservations.put(j.rid, new Reservation(j.rid, j.day, j.fid1, j.fid2, j.price1, j.price2));
+    seats.tryReserve(j.fid1, Integer.MAX_VALUE);
+    if (j.fid2 != 0)
+      seats.tryReserve(j.fid2, Integer.MAX_VALUE);
+    if (j.rid > lastRid.get())
+      lastRid.set(j.rid);
+  }
+
+  // one daemon thread runs checkpoints and reloads, so they never overlap each other
+  private ScheduledExecutorService background()
+  {
+    if (background == null)
+    {
+      background = Executors.newSingleThreadScheduledExecutor(r ->
+      {
+        Thread t = new Thread(r, "memory-store");
+        t.setDaemon(true);
+        return t;
+      });
+    }
+    return background;
+  }
+
+  private void startReloads(int seconds)
+  {
+    background().scheduleWithFixedDelay(() ->
+    {
+      try
+      {
+        long stamp = FlightIndex.stamp(configProps);
+        if (stamp != flightsStamp)
+        {
+          reload();
+          flightsStamp = stamp;
+        }
+      }
+      catch (Exception e)
+      {
+        // keep serving the current flights and try again next time
+        EventLog.error(e);
+      }
+    }, seconds, seconds, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Builds a new index from the flights source and publishes it. Transactions that already
+   * read the old index keep using it until they return.
+   */
+  void reload() throws Exception
+  {
+    long start = System.nanoTime();
+    FlightIndex next = FlightIndex.load(configProps);
+    flights = next;
+    // drop the lines and flight details cached for the old flights at once
+    Backend.flightsReloaded();
+    EventLog.info(String.format("Reloaded %d flights in %.1f s", next.size(), (System.nanoTime() - start) / 1e9));
+  }
+
+  private void startCheckpoints(int seconds)
+  {
+    background().scheduleWithFixedDelay(() ->
+    {
+      try
+      {
+        if (journal.position() > checkpointed)
+          checkpoint();
+      }
+      catch (IOException e)
+      {
+        // the journal still has everything, so the next attempt loses nothing
+        EventLog.error(e);
+      }
+    }, seconds, seconds, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Writes every user with its reservations to the checkpoint file, then drops the journal
+   * records the checkpoint makes redundant.
+   */
+  void checkpoint() throws IOException
+  {
+    long start;
+    synchronized (checkpointLock)
+    {
+      start = journal.position();
+      Path tmp = checkpointFile.resolveSibling(checkpointFile.getFileName() + ".tmp");
+      try (FileOutputStream file = new FileOutputStream(tmp.toFile()))
+      {
+        CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(file, 1 << 16), new CRC32());
+        DataOutputStream out = new DataOutputStream(checked);
+        out.writeInt(CHECKPOINT_MAGIC);
+        out.writeInt(CHECKPOINT_VERSION);
+        out.writeLong(start);
+        for (User u : users.values())
+        {
+          String password;
+          int balance;
+          long copied;
+          List<Reservation> reservations = new ArrayList<>();
+          synchronized (u)
+          {
+            if (users.get(u.name) != u)
+              continue;
+            password = u.password;
+            balance = u.balance;
+            copied = journal.position();
+            for (Reservation r : u.reservations.values())
+            {
+              Reservation c = new Reservation(r.rid, r.day, r.fid1, r.fid2, r.price1, r.price2);
+              c.paid = r.paid;
+              reservations.add(c);
+            }
+          }
+          out.writeBoolean(true);
+          out.writeUTF(u.name);
+          out.writeUTF(password);
+          out.writeInt(balance);
+          out.writeLong(copied);
+          out.writeInt(reservations.size());
+          for (Reservation r : reservations)
+          {
+            out.writeInt(r.rid);
+            out.writeInt(r.day);
+            out.writeInt(r.fid1);
+            out.writeInt(r.fid2);
+            out.writeInt(r.price1);
+            out.writeInt(r.price2);
+            out.writeBoolean(r.paid);
+          }
+        }
+        out.writeBoolean(false);
+        out.writeInt(lastRid.get());
+        out.flush();
+        new DataOutputStream(file).writeLong(checked.getChecksum().getValue());
+        file.getFD().sync();
+      }
+      // everything copied was appended before it was copied; never checkpoint what was not logged
+      sync(journal.position());
+      Files.move(tmp, checkpointFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      checkpointed = start;
+    }
+    journal.sync(start);
+    journal.truncate(start);
+  }
+
+  // loads the checkpoint file, if there is one, before the journal is replayed
+  private void restore() throws IOException
+  {
+    copiedAt = new HashMap<>();
+    if (!Files.exists(checkpointFile))
+      return;
+    try (FileInputStream file = new FileInputStream(checkpointFile.toFile()))
+    {
+      CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(file, 1 << 16), new CRC32());
+      DataInputStream in = new DataInputStream(checked);
+      if (in.readInt() != CHECKPOINT_MAGIC || in.readInt() != CHECKPOINT_VERSION)
+        throw new IOException(checkpointFile + " is not a version " + CHECKPOINT_VERSION + " checkpoint");
+      replayFrom = in.readLong();
+      while (in.readBoolean())
+      {
+        User u = new User(in.readUTF(), in.readUTF(), in.readInt());
+        copiedAt.put(u.name, in.readLong());
+        for (int k = in.readInt(); k > 0; k--)
+        {
+          Reservation r = new Reservation(in.readInt(), in.readInt(), in.readInt(), in.readInt(),
+                  in.readInt(), in.readInt());
+          r.paid = in.readBoolean();
+          u.reservations.put(r.rid, r);
+          seats.tryReserve(r.fid1, Integer.MAX_VALUE);
+          if (r.fid2 != 0)
+            seats.tryReserve(r.fid2, Integer.MAX_VALUE);
+        }
+        users.put(u.name, u);
+      }
+      lastRid.set(in.readInt());
+      long crc = checked.getChecksum().getValue();
+      // the journal before replayFrom is gone, so a damaged checkpoint cannot be skipped
+      if (new DataInputStream(in).readLong() != crc)
+        throw new IOException(checkpointFile + " is damaged (checksum mismatch)");
+    }
+    checkpointed = replayFrom;
+  }
+}
@@ -0,0 +1,344 @@
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.PreparedStatement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ * Process-wide registry of latency histograms and counters.
+ *
+ * Histograms are {@code LatencyHistogram}s of nanoseconds: one per {@code Query} transaction
+ * ({@code transaction.<command>}) and one per prepared statement of the JDBC backends
+ * ({@code statement.<name>}, the time spent in execute, not in reading the results). Counters
+ * count commits, rollbacks, deadlocks, timeouts, bookings that found no seat, and cache hits
+ * and misses. Callers look a metric up once and keep it, so recording is a single atomic
+ * increment. Gauges, such as the lag of the {@code ChangeFeed}, are read when exported.
+ *
+ * Everything is exported as the JMX MBean {@code FlightService:type=Metrics}, with count,
+ * mean and percentiles in milliseconds per histogram, and can be written as text every
+ * {@code flightservice.metrics.dumpSeconds} to stderr or {@code flightservice.metrics.file}.
+ */
+class Metrics implements DynamicMBean
+{
+  private static final Map<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+  private static final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+  private static final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+
+  // counters shared by the backends
+  static final LongAdder COMMITS = counter("commits");
+  static final LongAdder ROLLBACKS = counter("rollbacks");
+  static final LongAdder DEADLOCKS = counter("deadlocks");
+  static final LongAdder TIMEOUTS = counter("timeouts");
+  static final LongAdder NO_SEAT = counter("booking.noSeat");
+
+  private static final String[] STATS = {"count", "meanMillis", "p50Millis", "p99Millis", "p999Millis", "maxMillis"};
+
+  private static boolean configured;
+
+  static
+  {
+    try
+    {
+      ManagementFactory.getPlatformMBeanServer().registerMBean(new Metrics(),
+              new ObjectName("FlightService:type=Metrics"));
+    }
+    catch (Exception e)
+    {
+      // no JMX, or registered by another class loader; the text dump still works
+    }
+  }
+
+  private Metrics()
+  {
+  }
+
+  /**
+   * @return the histogram called {@code name}, created on first use
+   */
+  static LatencyHistogram histogram(String name)
+  {
+    return histograms.computeIfAbsent(name, n -> new LatencyHistogram());
+  }
+
+  /**
+   * @return the counter called {@code name}, created on first use
+   */
+  static LongAdder counter(String name)
+  {
+    return counters.computeIfAbsent(name, n -> new LongAdder());
+  }
+
+  /**
+   * Exports {@code value} as the gauge called {@code name}, unless one is already registered.
+   */
+  static void gauge(String name, LongSupplier value)
+  {
+    gauges.putIfAbsent(name, value);
+  }
+
+  /**
+   * Starts the periodic text dump if the first configuration seen asks for one.
+   */
+  static synchronized void configure(Properties configProps) throws IOException
+  {
+    if (configured)
+      return;
+    configured = true;
+    int seconds = Integer.parseInt(configProps.getProperty("flightservice.metrics.dumpSeconds", "0").trim());
+    if (seconds <= 0)
+      return;
+    String file = configProps.getProperty("flightservice.metrics.file");
+    PrintStream out = file == null ? System.err : new PrintStream(new FileOutputStream(file, true), true);
+
+    ScheduledExecutorService dumper = Executors.newSingleThreadScheduledExecutor(r ->
+    {
+      Thread t = new Thread(r, "metrics-dump");
+      t.setDaemon(true);
+      return t;
+    });
+    dumper.scheduleAtFixedRate(() -> dump(out), seconds, seconds, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Writes every metric, histograms as count, mean and percentiles in milliseconds.
+   */
+  static void dump(PrintStream out)
+  {
+    StringBuilder sb = new StringBuilder();
+    sb.append("# metrics at ").append(new java.util.Date()).append('\n');
+    for (Map.Entry<String, LongAdder> e : new TreeMap<>(counters).entrySet())
+      sb.append(e.getKey()).append(' ').append(e.getValue().sum()).append('\n');
+    for (Map.Entry<String, LongSupplier> e : new TreeMap<>(gauges).entrySet())
+      sb.append(e.getKey()).append(' ').append(e.getValue().getAsLong()).append('\n');
+    for (Map.Entry<String, LatencyHistogram> e : new TreeMap<>(histograms).entrySet())
+    {
+      LatencyHistogram h = e.getValue();
+      sb.append(String.format("%s count=%d mean=%.3f p50=%.3f p99=%.3f p999=%.3f max=%.3f ms%n", e.getKey(),
+              h.count(), h.mean() / 1e6, h.percentile(50) / 1e6, h.percentile(99) / 1e6,
+              h.percentile(99.9) / 1e6, h.max() / 1e6));
+    }
+    out.print(sb);
+    out.flush();
+  }
+
+  /**
+   * @return {@code statement}, prepared from {@code sql}, wrapped so that each execute is timed
+   * into {@code statement.<name>}, recorded as a {@code FlightEvents.Statement} event with the
+   * parameters it ran with, and written to the {@code SlowLog} if it was slow
+   *
+   * @param secret 1-based indexes of parameters, such as passwords, that are never logged
+   */
+  static PreparedStatement timed(String name, String sql, PreparedStatement statement, int... secret)
+  {
+    LatencyHistogram h = histogram("statement." + name);
+    // parameters set since the last clearParameters, by index
+    ArrayList<Object> parameters = new ArrayList<>();
+    // slow execution waiting for its server statistics
+    SlowLog.Entry[] pending = new SlowLog.Entry[1];
+    InvocationHandler handler = (proxy, method, args) ->
+    {
+      String m = method.getName();
+      // identity, so that the proxy can be found in collections
+      if (m.equals("equals") && args != null && args.length == 1)
+        return proxy == args[0];
+      if (m.equals("hashCode") && args == null)
+        return System.identityHashCode(proxy);
+      if (m.startsWith("set") && args != null && args.length >= 2 && args[0] instanceof Integer)
+      {
+        int index = (Integer) args[0];
+        while (parameters.size() < index)
+          parameters.add(null);
+        parameters.set(index - 1, args[1]);
+      }
+      else if (m.equals("clearParameters"))
+        parameters.clear();
+      boolean execute = m.startsWith("execute");
+      if ((execute || m.equals("close")) && pending[0] != null)
+      {
+        pending[0].write(statement.getWarnings());
+        pending[0] = null;
+      }
+      if (!execute)
+        return invoke(method, statement, args);
+
+      boolean statistics = SlowLog.statistics();
+      if (statistics)
+        statement.clearWarnings();
+      FlightEvents.Statement event = new FlightEvents.Statement();
+      event.begin();
+      long start = System.nanoTime();
+      Object result = null;
+      Throwable failure = null;
+      try
+      {
+        return result = invoke(method, statement, args);
+      }
+      catch (Throwable t)
+      {
+        failure = t;
+        throw t;
+      }
+      finally
+      {
+        long nanos = System.nanoTime() - start;
+        h.record(nanos);
+        if (SlowLog.slow(nanos))
+        {
+          SlowLog.Entry entry = new SlowLog.Entry(name, sql, shown(parameters, secret), nanos);
+          if (statistics && failure == null)
+            pending[0] = entry;
+          else
+            entry.write(statistics ? statement.getWarnings() : null);
+        }
+        event.end();
+        if (event.shouldCommit())
+        {
+          event.statement = name;
+          event.parameters = shown(parameters, secret).toString();
+          event.rows = result instanceof Integer ? (Integer) result : -1;
+          event.outcome = failure == null ? "ok" : failure.toString();
+          event.commit();
+        }
+      }
+    };
+    return (PreparedStatement) Proxy.newProxyInstance(Metrics.class.getClassLoader(),
+            new Class<?>[] {PreparedStatement.class}, handler);
+  }
+
+  // parameters as they may be logged, with the secret ones masked
+  private static List<Object> shown(List<Object> parameters, int[] secret)
+  {
+    List<Object> shown = new ArrayList<>(parameters);
+    for (int index : secret)
+    {
+      if (index <= shown.size() && shown.get(index - 1) != null)
+        shown.set(index - 1, "***");
+    }
+    return shown;
+  }
+
+  private static Object invoke(Method method, Object target, Object[] args) throws Throwable
+  {
+    try
+    {
+      return method.invoke(target, args);
+    }
+    catch (InvocationTargetException e)
+    {
+      throw e.getCause();
+    }
+  }
+
+  // JMX
+
+  private static Object value(String attribute) throws AttributeNotFoundException
+  {
+    LongAdder c = counters.get(attribute);
+    if (c != null)
+      return c.sum();
+    LongSupplier g = gauges.get(attribute);
+    if (g != null)
+      return g.getAsLong();
+    int dot = attribute.lastIndexOf('.');
+    LatencyHistogram h = dot < 0 ? null : histograms.get(attribute.substring(0, dot));
+    if (h == null)
+      throw new AttributeNotFoundException(attribute);
+    switch (attribute.substring(dot + 1))
+    {
+      case "count":
+        return h.count();
+      case "meanMillis":
+        return h.mean() / 1e6;
+      case "p50Millis":
+        return h.percentile(50) / 1e6;
+      case "p99Millis":
+        return h.percentile(99) / 1e6;
+      case "p999Millis":
+        return h.percentile(99.9) / 1e6;
+      case "maxMillis":
+        return h.max() / 1e6;
+      default:
+        throw new AttributeNotFoundException(attribute);
+    }
+  }
+
+  public Object getAttribute(String attribute) throws AttributeNotFoundException
+  {
+    return value(attribute);
+  }
+
+  public AttributeList getAttributes(String[] attributes)
+  {
+    AttributeList list = new AttributeList();
+    for (String a : attributes)
+    {
+      try
+      {
+        list.add(new Attribute(a, value(a)));
+      }
+      catch (AttributeNotFoundException e)
+      {
+        // left out, as the interface allows
+      }
+    }
+    return list;
+  }
+
+  public void setAttribute(Attribute attribute) throws AttributeNotFoundException
+  {
+    throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+  }
+
+  public AttributeList setAttributes(AttributeList attributes)
+  {
+    return new AttributeList();
+  }
+
+  public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException
+  {
+    throw new ReflectionException(new NoSuchMethodException(actionName));
+  }
+
+  public MBeanInfo getMBeanInfo()
+  {
+    List<MBeanAttributeInfo> attributes = new ArrayList<>();
+    for (String name : new TreeMap<>(counters).keySet())
+      attributes.add(new MBeanAttributeInfo(name, "long", "counter", true, false, false));
+    for (String name : new TreeMap<>(gauges).keySet())
+      attributes.add(new MBeanAttributeInfo(name, "long", "gauge", true, false, false));
+    for (String name : new TreeMap<>(histograms).keySet())
+    {
+      for (String stat : STATS)
+      {
+        attributes.add(new MBeanAttributeInfo(name + "." + stat, stat.equals("count") ? "long" : "double",
+                "latency histogram", true, false, false));
+      }
+    }
+    return new MBeanInfo(Metrics.class.getName(), "Flight service latencies and counters",
+            attributes.toArray(new MBeanAttributeInfo[0]), null, new MBeanOperationInfo[0], null);
+  }
+}
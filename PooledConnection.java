@@ -0,0 +1,118 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Database connection that outlives the session using it, together with the statements
+ * prepared on it.
+ *
+ * When a JDBC session closes, its connection goes back to a process-wide idle list (at most
+ * {@code flightservice.pool.maxIdle} per database and user) instead of being closed, and the
+ * next session to open takes it from there. Each connection caches the statements prepared on
+ * it by SQL text, so a session that reuses a connection also reuses its statements and starts
+ * without a login or a single prepare.
+ */
+class PooledConnection
+{
+  private static final Map<String, ArrayDeque<PooledConnection>> idle = new HashMap<>();
+
+  // ends a BEGIN TRANSACTION that a failed session left open
+  private static final String ROLLBACK_OPEN = "IF @@TRANCOUNT > 0 ROLLBACK TRANSACTION";
+
+  private final String key;
+  private final int maxIdle;
+  final Connection conn;
+  private final Map<String, PreparedStatement> statements = new HashMap<>();
+
+  private PooledConnection(String key, int maxIdle, Connection conn)
+  {
+    this.key = key;
+    this.maxIdle = maxIdle;
+    this.conn = conn;
+  }
+
+  /**
+   * @return an idle connection to {@code url} as {@code user}, or a new one
+   */
+  static PooledConnection take(String url, String user, String password, int maxIdle) throws SQLException
+  {
+    String key = url + '\u0000' + user;
+    while (true)
+    {
+      PooledConnection pooled;
+      synchronized (idle)
+      {
+        ArrayDeque<PooledConnection> connections = idle.get(key);
+        pooled = connections == null ? null : connections.pollLast();
+      }
+      if (pooled == null)
+        return new PooledConnection(key, maxIdle, FlightEvents.connect(url, user, password));
+      if (pooled.conn.isValid(1))
+        return pooled;
+      pooled.close();
+    }
+  }
+
+  /**
+   * @return the statement of this connection for {@code sql}, prepared on first use
+   */
+  PreparedStatement prepare(String sql) throws SQLException
+  {
+    PreparedStatement s = statements.get(sql);
+    if (s == null || s.isClosed())
+    {
+      s = conn.prepareStatement(sql);
+      statements.put(sql, s);
+    }
+    return s;
+  }
+
+  /**
+   * Returns the connection to the idle list, with any transaction the session left open
+   * rolled back and auto-commit on, or closes it if the list is full or it is broken.
+   */
+  void release()
+  {
+    try
+    {
+      if (!conn.getAutoCommit())
+      {
+        conn.rollback();
+        conn.setAutoCommit(true);
+      }
+      prepare(ROLLBACK_OPEN).execute();
+      for (PreparedStatement s : statements.values())
+        s.setQueryTimeout(0);
+    }
+    catch (SQLException e)
+    {
+      close();
+      return;
+    }
+    synchronized (idle)
+    {
+      ArrayDeque<PooledConnection> connections = idle.computeIfAbsent(key, k -> new ArrayDeque<>());
+      if (connections.size() < maxIdle)
+      {
+        connections.addLast(this);
+        return;
+      }
+    }
+    close();
+  }
+
+  private void close()
+  {
+    try
+    {
+      conn.close();
+    }
+    catch (SQLException e)
+    {
+      // already broken
+    }
+  }
+}
@@ -1,10 +1,10 @@
 import java.io.FileInputStream;
-import java.sql.*;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Properties;
-import java.util.*;
+import java.util.TreeMap;
+import jdk.jfr.EventType;
 
 /**
  * Runs queries against a back-end database
@@ -14,103 +14,39 @@ public class Query
   private String configFilename;
   private Properties configProps = new Properties();
 
-  private String jSQLDriver;
-  private String jSQLUrl;
-  private String jSQLUser;
-  private String jSQLPassword;
+  // storage the transactions run against, chosen by flightservice.backend when the connection opens
+  private Backend backend = new JdbcBackend();
 
-  // DB Connection
-  private Connection conn;
+  // deadline of the next transaction set by setDeadline, as a System.nanoTime() value, or 0
+  private long nextDeadline;
 
-  // Logged In User
-  private String username; // customer username is unique
+  // flight recorder event of the running transaction
+  private FlightEvents.Transaction transaction;
 
-  //Objects required 
-  private TreeMap<Integer,ArrayList<Flight>> iternaries=new TreeMap<Integer,ArrayList<Flight>>();
-  private TreeMap<Integer, ArrayList<Flight>> searchFlights = new TreeMap<Integer,ArrayList<Flight>>();
+  // stands in for the event while no recording wants it, so transactions can fill it in unconditionally
+  private final FlightEvents.Transaction unrecorded = new FlightEvents.Transaction();
 
-  // Canned queries
+  private static final EventType TRANSACTION = EventType.getEventType(FlightEvents.Transaction.class);
 
-  private static final String CHECK_FLIGHT_CAPACITY = "SELECT capacity FROM Flights WHERE fid = ?";
-  private PreparedStatement checkFlightCapacityStatement;
+  // timeouts in nanoseconds by command, read by openConnection, and of other commands; 0 if not limited
+  private final Map<String, Long> commandTimeouts = new HashMap<>();
+  private long defaultTimeout;
 
-  private static final String CHECK_USERNAME_PASSWORD= "SELECT * FROM USERS where username = ? and password = ?";
-  private PreparedStatement checkUsernamePasswordStatement;
+  // whether transactions are timed, unless flightservice.metrics.transactions is false
+  private boolean timed = true;
 
-  private static final String CREATE_CUSTOMER="INSERT INTO USERS values (?,?,?);";
-  private PreparedStatement createCustomerStatement;
+  // latency of each transaction, by command
+  private static final LatencyHistogram LOGIN = Metrics.histogram("transaction.login");
+  private static final LatencyHistogram CREATE = Metrics.histogram("transaction.create");
+  private static final LatencyHistogram SEARCH = Metrics.histogram("transaction.search");
+  private static final LatencyHistogram SEARCH_DAYS = Metrics.histogram("transaction.searchdays");
+  private static final LatencyHistogram SEARCH_ROUND_TRIP = Metrics.histogram("transaction.searchroundtrip");
+  private static final LatencyHistogram BOOK = Metrics.histogram("transaction.book");
+  private static final LatencyHistogram RESERVATIONS = Metrics.histogram("transaction.reservations");
+  private static final LatencyHistogram CANCEL = Metrics.histogram("transaction.cancel");
+  private static final LatencyHistogram PAY = Metrics.histogram("transaction.pay");
 
-  private static final String DIRECT_FLIGHTS="SELECT * FROM Flights where origin_city = ? and dest_city= ? and day_of_month=? and canceled!=1 order by actual_time,fid;";
-  private PreparedStatement directFlightsStatement;
-
-  private static final String INDIRECT_FLIGHTS= "SELECT F1.fid as fid1, F2.fid as fid2, F1.actual_time as time1, F2.actual_time as time2, F1.day_of_month as day_of_month, F1.carrier_id as cid1, F2.carrier_id as cid2, F1.flight_num as fnum1, F2.flight_num as fnum2, F1.origin_city as origin_city1, F2.origin_city as origin_city2, F1.dest_city as dest_city1, F2.dest_city as dest_city2, F1.capacity as capacity1, F2.capacity as capacity2, F1.price as price1, F2.price as price2 from Flights as F1, Flights as F2 where F1.origin_city = ? and F1.dest_city = F2.origin_city and F2.dest_city = ? and F1.day_of_month = F2.day_of_month and F1.day_of_month = ? and F1.canceled != 1 and F2.canceled != 1 order by (F1.actual_time + F2.actual_time)";
-  private PreparedStatement indirectFlightsStatement;
-
-  private static final String CLEAR_USERS = "DELETE FROM users;";
-  private PreparedStatement clearUsersStatement;
-
-  private static final String CLEAR_RESERVATIONS = "DELETE FROM reservations;";
-  private PreparedStatement clearReservationStatement;
-
-  private static final String CLEAR_CAPACITY="DELETE FROM capacity;";
-  private PreparedStatement clearCapacityStatement;
-
-  private static final String CHECK_DAY="Select day from reservations where username = ?;";
-  private PreparedStatement checkDayStatement;
-
-  private static final String MAX_RESERVATIONID="Select top 1 rid from reservations order by rid desc ;";
-  private PreparedStatement maxReservationIdStatement;
-
-  private static final String FLIGHT_BOOKING="INSERT INTO RESERVATIONS values (?,?,?,?,?,?,?,?);";
-  private PreparedStatement flightBookingStatement;
-
-  private static final String CREATE_CAPACITY="INSERT INTO Capacity Select Flights.fid,Flights.capacity from Flights where Flights.fid = ? and NOT EXISTS (Select * from capacity where Capacity.fid=Flights.fid);";
-  private PreparedStatement createCapacityStatement;
-
-  private static final String UPDATE_CAPACITY="UPDATE Capacity set capacity=(capacity-1) where fid=? ;";
-  private PreparedStatement updateCapacityStatement;
-
-  private static final String CHECK_CAPACITY="SELECT * from capacity where fid =?;";
-  private PreparedStatement checkCapacityStatement;
-
-  private static final String CHECK_RESERVATIONS="SELECT * from reservations where username = ? order by rid;";
-  private PreparedStatement checkReservationsStatement;
-
-  private static final String BOOKED_FLIGHTS="select * from Flights where fid=?;";
-  private PreparedStatement bookedFlightsStatement;
-
-  private static final String CHECK_MONEY="Select balance from users where username = ?;";
-  private PreparedStatement checkMoneyStatement;
-
-  private static final String UPDATE_MONEY="Update Users set balance = ? where username = ?;";
-  private PreparedStatement updateMoneyStatement;
-
-  private static final String UPDATE_PAYMENT="Update reservations set paid = ? where rid = ?;";
-  private PreparedStatement updatePaymentStatement;
-
-  private static final String REFUND_MONEY="Update users set balance=(balance +?) where username = ?;";
-  private PreparedStatement refundMoneyStatement;
-
-  private static final String INCREASE_CAPACITY="Update capacity set capacity = (capacity+1) where fid =?;";
-  private PreparedStatement increaseCapacityStatement;
-
-  private static final String CANCEL_RESERVATION="DELETE from reservations where rid =?;";
-  private PreparedStatement cancelReservationStatement;
-
-
-
-
-  // transactions
-  private static final String BEGIN_TRANSACTION_SQL = "SET TRANSACTION ISOLATION LEVEL SERIALIZABLE; BEGIN TRANSACTION;";
-  private PreparedStatement beginTransactionStatement;
-
-  private static final String COMMIT_SQL = "COMMIT TRANSACTION";
-  private PreparedStatement commitTransactionStatement;
-
-  private static final String ROLLBACK_SQL = "ROLLBACK TRANSACTION";
-  private PreparedStatement rollbackTransactionStatement;
-
-  class Flight
+  static class Flight
   {
     public int fid;
     public int dayOfMonth;
@@ -136,35 +72,39 @@ public class Query
     this.configFilename = configFilename;
   }
 
-  /* Connection code to SQL Azure.  */
+  /* Connection code to SQL Azure, or to the in-memory store.  */
   public void openConnection() throws Exception
   {
     configProps.load(new FileInputStream(configFilename));
+    Metrics.configure(configProps);
+    SlowLog.configure(configProps);
+    EventLog.configure(configProps);
+    timed = Boolean.parseBoolean(configProps.getProperty("flightservice.metrics.transactions", "true").trim());
+    defaultTimeout = Long.parseLong(configProps.getProperty("flightservice.timeout.millis", "0").trim()) * 1000000L;
+    for (String name : configProps.stringPropertyNames())
+    {
+      if (name.startsWith("flightservice.timeout.") && name.endsWith(".millis") && !name.equals("flightservice.timeout.millis"))
+      {
+        String command = name.substring("flightservice.timeout.".length(), name.length() - ".millis".length());
+        commandTimeouts.put(command, Long.parseLong(configProps.getProperty(name).trim()) * 1000000L);
+      }
+    }
 
-    jSQLDriver = configProps.getProperty("flightservice.jdbc_driver");
-    jSQLUrl = configProps.getProperty("flightservice.url");
-    jSQLUser = configProps.getProperty("flightservice.sqlazure_username");
-    jSQLPassword = configProps.getProperty("flightservice.sqlazure_password");
-
-    /* load jdbc drivers */
-    Class.forName(jSQLDriver).newInstance();
-
-    /* open connections to the flights database */
-    conn = DriverManager.getConnection(jSQLUrl, // database
-            jSQLUser, // user
-            jSQLPassword); // password
-
-    conn.setAutoCommit(true); //by default automatically commit after each statement
+    backend = Backend.create(configProps);
+    backend.openConnection(configProps);
+  }
 
-    /* You will also want to appropriately set the transaction's isolation level through:
-       conn.setTransactionIsolation(...)
-       See Connection class' JavaDoc for details.
-    */
+  /**
+   * @return the properties loaded from the configuration file by {@link #openConnection}
+   */
+  Properties configProps()
+  {
+    return configProps;
   }
 
   public void closeConnection() throws Exception
   {
-    conn.close();
+    backend.closeConnection();
   }
 
   /**
@@ -174,19 +114,7 @@ public class Query
    */
   public void clearTables ()
   {
-    try{
-      //clearReservationStatement.clearParameters();
-      clearReservationStatement.executeUpdate();
-
-      //clearUsersStatement.clearParameters();
-      clearUsersStatement.executeUpdate();
-
-      clearCapacityStatement.executeUpdate();
-
-    }catch(SQLException e){
-     //e.printStackTrace();
-    }
-
+    backend.clearTables();
   }
 
   /**
@@ -196,36 +124,7 @@ public class Query
    */
   public void prepareStatements() throws Exception
   {
-    beginTransactionStatement = conn.prepareStatement(BEGIN_TRANSACTION_SQL);
-    commitTransactionStatement = conn.prepareStatement(COMMIT_SQL);
-    rollbackTransactionStatement = conn.prepareStatement(ROLLBACK_SQL);
-
-    checkFlightCapacityStatement = conn.prepareStatement(CHECK_FLIGHT_CAPACITY);
-    checkUsernamePasswordStatement=conn.prepareStatement(CHECK_USERNAME_PASSWORD);
-    createCustomerStatement=conn.prepareStatement(CREATE_CUSTOMER);
-    directFlightsStatement=conn.prepareStatement(DIRECT_FLIGHTS);
-    indirectFlightsStatement=conn.prepareStatement(INDIRECT_FLIGHTS);
-    clearUsersStatement=conn.prepareStatement(CLEAR_RESERVATIONS);
-    clearReservationStatement=conn.prepareStatement(CLEAR_USERS);
-    checkDayStatement = conn.prepareStatement(CHECK_DAY);
-    maxReservationIdStatement=conn.prepareStatement(MAX_RESERVATIONID);
-    flightBookingStatement=conn.prepareStatement(FLIGHT_BOOKING);
-    createCapacityStatement=conn.prepareStatement(CREATE_CAPACITY);
-    updateCapacityStatement=conn.prepareStatement(UPDATE_CAPACITY);
-    checkCapacityStatement=conn.prepareStatement(CHECK_CAPACITY);
-    checkReservationsStatement=conn.prepareStatement(CHECK_RESERVATIONS);
-    bookedFlightsStatement=conn.prepareStatement(BOOKED_FLIGHTS);
-    checkMoneyStatement=conn.prepareStatement(CHECK_MONEY);
-    updateMoneyStatement=conn.prepareStatement(UPDATE_MONEY);
-    updatePaymentStatement=conn.prepareStatement(UPDATE_PAYMENT);
-    clearCapacityStatement=conn.prepareStatement(CLEAR_CAPACITY);
-    increaseCapacityStatement=conn.prepareStatement(INCREASE_CAPACITY);
-    refundMoneyStatement=conn.prepareStatement(REFUND_MONEY);
-    cancelReservationStatement=conn.prepareStatement(CANCEL_RESERVATION);
- 
-
-    /* add here more prepare statements for all the other queries you need */
-    /* . . . . . . */
+    backend.prepareStatements();
   }
 
   /**
@@ -241,27 +140,17 @@ public class Query
    */
   public String transaction_login(String username, String password)
   {
-    
-    try{
-      if(this.username==null){
-      checkUsernamePasswordStatement.clearParameters();
-      checkUsernamePasswordStatement.setString(1,username);
-      checkUsernamePasswordStatement.setString(2,password);
-      ResultSet rs=checkUsernamePasswordStatement.executeQuery();
-            if(rs.next()){
-              this.username=username;
-              return "Logged in as "+ username + "\n";
-            }
-       }else{
-        return "User already logged in"+"\n";
-       }
+    long start = begin("login");
+    String response = null;
+    try
+    {
+      return response = backend.transaction_login(username, password);
+    }
+    finally
+    {
+      end(LOGIN, start, response);
     }
-    catch (SQLException e) { 
-      e.printStackTrace(); 
-    return "Login failed"+"\n";
   }
-  return "Login failed"+"\n";
-}
   
   /**
    * Implement the create user function.
@@ -274,25 +163,16 @@ public class Query
    */
   public String transaction_createCustomer (String username, String password, int initAmount)
   {
-    username=username.toLowerCase();
-    password=password.toLowerCase();
-   if(initAmount >=0 && username.length()<=20 && password.length()<=20){
-    try{
-      beginTransaction();
-      createCustomerStatement.clearParameters();
-      createCustomerStatement.setString(1,username);
-      createCustomerStatement.setString(2,password);
-      createCustomerStatement.setInt(3,initAmount);
-      createCustomerStatement.executeUpdate();
-      commitTransaction();
-      return "Created user " + username + "\n";
-    }catch(SQLException e){
-      return "Failed to create user"+"\n";
+    long start = begin("create");
+    String response = null;
+    try
+    {
+      return response = backend.transaction_createCustomer(username, password, initAmount);
+    }
+    finally
+    {
+      end(CREATE, start, response);
     }
-   }else{
-    return "Failed to create user"+"\n" ;
-   }
-
   }
 
   /**
@@ -330,173 +210,84 @@ public class Query
   public String transaction_search(String originCity, String destinationCity, boolean directFlight, int dayOfMonth,
                                    int numberOfItineraries)
   {
-
-    try{
-
-    directFlightsStatement.clearParameters();
-    directFlightsStatement.setString(1,originCity);
-    directFlightsStatement.setString(2,destinationCity);
-    directFlightsStatement.setInt(3,dayOfMonth);
-    ResultSet rs= directFlightsStatement.executeQuery();
-    int num=numberOfItineraries;
-
-    while(rs.next() && numberOfItineraries>0){
-        numberOfItineraries--;
-        int fid=rs.getInt("fid");
-        Flight direct = flightText(fid);
-
-        if(iternaries.containsKey(direct.time)){
-          iternaries.get(direct.time).add(direct);
-        }else{
-          ArrayList<Flight>flights= new ArrayList<Flight>();
-          flights.add(direct);
-          iternaries.put(direct.time,flights);
-        }
-      }
-      if(num==numberOfItineraries){
-        return "No flights match your selection"+"\n";
-      }
-
-       if(!directFlight && numberOfItineraries>0){
-    
-      indirectFlightsStatement.clearParameters();
-      indirectFlightsStatement.setString(1,originCity);
-      indirectFlightsStatement.setString(2,destinationCity);
-      indirectFlightsStatement.setInt(3,dayOfMonth);
-      ResultSet urs=indirectFlightsStatement.executeQuery();
-
-      while(urs.next() && numberOfItineraries >0){
-        numberOfItineraries--;
-        Flight f1 = new Flight();
-        Flight f2 = new Flight();
-
-        f1.fid = urs.getInt("fid1");
-        f1.dayOfMonth=urs.getInt("day_of_month");
-        f1.flightNum=urs.getString("fnum1");
-        f1.carrierId=urs.getString("cid1");
-        f1.time=urs.getInt("time1");
-        f1.originCity=urs.getString("origin_city1");
-        f1.destCity=urs.getString("dest_city1");
-        f1.capacity=urs.getInt("capacity1");
-        f1.price=urs.getInt("price1");
-
-        f2.fid=urs.getInt("fid2");
-        f2.dayOfMonth=f1.dayOfMonth;
-        f2.flightNum=urs.getString("fnum2");
-        f2.carrierId=urs.getString("cid2");
-        f2.time=urs.getInt("time2");
-        f2.originCity=urs.getString("origin_city2");
-        f2.destCity=urs.getString("dest_city2");
-        f2.capacity=urs.getInt("capacity2");
-        f2.price=urs.getInt("price2");
-
-        int totalTime=urs.getInt("time1")+urs.getInt("time2");
-
-        if(iternaries.containsKey(totalTime)){
-          iternaries.get(totalTime).add(f1);
-          iternaries.get(totalTime).add(f2);
-        }else{
-          ArrayList<Flight>flights= new ArrayList<Flight>();
-          flights.add(f1);
-          flights.add(f2);
-          iternaries.put(totalTime,flights);
-        }
-      }
-      if(num==numberOfItineraries){
-        return "No flights match your selection"+"\n";
-      }
-
+    long start = begin("search");
+    transaction.origin = originCity;
+    transaction.destination = destinationCity;
+    transaction.dayOfMonth = dayOfMonth;
+    String response = null;
+    try
+    {
+      return response = backend.transaction_search(originCity, destinationCity, directFlight, dayOfMonth, numberOfItineraries);
     }
-        
-      
-    }catch (SQLException e) { e.printStackTrace();
-    return "Failed to Search";
-     }
-
-  return flightAssorter(iternaries,destinationCity);
-  } 
-
-
-
-  private String flightAssorter(TreeMap<Integer,ArrayList<Flight>> groupFlights,String destinationCity){
-           StringBuffer flightResult = new StringBuffer();
-       int number = 0;
- 
-    Iterator<Map.Entry<Integer,ArrayList<Flight>>> it=groupFlights.entrySet().iterator();
-    while(it.hasNext()){
-    Map.Entry<Integer,ArrayList<Flight>> pair=it.next();
-    ArrayList<Flight> schedules = pair.getValue();
-    ArrayList<Flight> fids_group = new ArrayList<Flight>();
-    for (Flight flight: schedules) {
-      fids_group.add(flight);
-      if(flight.destCity.equals(destinationCity)){
-        int num_flights = fids_group.size();
-        flightResult.append("Itinerary " + number + ": " + num_flights + " flight(s), " + pair.getKey() + " minutes"+"\n");
-        for (Flight f1: fids_group) {
-        flightResult.append(f1.toString() + "\n");
-        }
-        searchFlights.put(number, new ArrayList<Flight>(fids_group));
-        number++;
-        fids_group.clear();
-      } else {
-        flightResult.append("");
-      }
+    finally
+    {
+      end(SEARCH, start, response);
     }
   }
-  return flightResult.toString();
-
 
+  /**
+   * Searches every day from {@code firstDay} to {@code lastDay}, as {@link #transaction_search}
+   * searches one, for flexible-date queries such as three days either side of a date. The days
+   * are searched in parallel, on a pool of {@code flightservice.search.parallelism} threads.
+   *
+   * @return up to {@code numberOfItineraries} itineraries of all days together, direct ones
+   * taking precedence, sorted by total flight time and then day, in the format of
+   * {@link #transaction_search}; each flight line shows its day. "Failed to search\n" if a
+   * day could not be searched.
+   */
+  public String transaction_searchDays(String originCity, String destinationCity, boolean directFlight, int firstDay,
+                                       int lastDay, int numberOfItineraries)
+  {
+    long start = begin("searchdays");
+    transaction.origin = originCity;
+    transaction.destination = destinationCity;
+    transaction.dayOfMonth = firstDay;
+    String response = null;
+    try
+    {
+      return response = backend.transaction_searchDays(originCity, destinationCity, directFlight, firstDay, lastDay,
+              numberOfItineraries);
+    }
+    finally
+    {
+      end(SEARCH_DAYS, start, response);
+    }
   }
-  
 
   /**
-   * Same as {@code transaction_search} except that it only performs single hop search and
-   * do it in an unsafe manner.
+   * Searches round trips: outbound itineraries from {@code originCity} on {@code outboundDay}
+   * paired with return itineraries to it on {@code returnDay}, best pairs first. Booking one
+   * with {@link #transaction_book(int)} reserves both legs, as two reservations, or neither.
    *
-   * @param originCity
-   * @param destinationCity
-   * @param directFlight
-   * @param dayOfMonth
-   * @param numberOfItineraries
+   * @param byPrice rank the pairs by total price instead of total flight time
    *
-   * @return The search results. Note that this implementation *does not conform* to the format required by
-   * {@code transaction_search}.
+   * @return "No flights match your selection\n" if there is no pair or {@code returnDay} is not
+   * after {@code outboundDay}, "Failed to search\n" on errors, and otherwise up to
+   * {@code numberOfItineraries} pairs in the format of {@link #transaction_search}, each
+   * itinerary listing the outbound flights and then the return flights
    */
-  private String transaction_search_unsafe(String originCity, String destinationCity, boolean directFlight,
-                                          int dayOfMonth, int numberOfItineraries)
+  public String transaction_searchRoundTrip(String originCity, String destinationCity, boolean directFlight,
+                                            int outboundDay, int returnDay, int numberOfItineraries,
+                                            boolean byPrice)
   {
-    StringBuffer sb = new StringBuffer();
-
+    long start = begin("searchroundtrip");
+    transaction.origin = originCity;
+    transaction.destination = destinationCity;
+    transaction.dayOfMonth = outboundDay;
+    String response = null;
     try
     {
-      // one hop itineraries
-      String unsafeSearchSQL =
-              "SELECT TOP (" + numberOfItineraries + ") day_of_month,carrier_id,flight_num,origin_city,dest_city,actual_time,capacity,price "
-                      + "FROM Flights "
-                      + "WHERE origin_city = \'" + originCity + "\' AND dest_city = \'" + destinationCity + "\' AND day_of_month =  " + dayOfMonth + " "
-                      + "ORDER BY actual_time ASC";
-             
-
-      Statement searchStatement = conn.createStatement();
-      ResultSet oneHopResults = searchStatement.executeQuery(unsafeSearchSQL);
-
-      while (oneHopResults.next())
-      {
-        int result_dayOfMonth = oneHopResults.getInt("day_of_month");
-        String result_carrierId = oneHopResults.getString("carrier_id");
-        String result_flightNum = oneHopResults.getString("flight_num");
-        String result_originCity = oneHopResults.getString("origin_city");
-        String result_destCity = oneHopResults.getString("dest_city");
-        int result_time = oneHopResults.getInt("actual_time");
-        int result_capacity = oneHopResults.getInt("capacity");
-        int result_price = oneHopResults.getInt("price");
-
-        sb.append("Day: " + result_dayOfMonth + " Carrier: " + result_carrierId + " Number: " + result_flightNum + " Origin: " + result_originCity + " Destination: " + result_destCity + " Duration: " + result_time + " Capacity: " + result_capacity + " Price: " + result_price + "\n");
-      }
-      oneHopResults.close();
-    } catch (SQLException e) { e.printStackTrace(); }
+      return response = backend.transaction_searchRoundTrip(originCity, destinationCity, directFlight, outboundDay,
+              returnDay, numberOfItineraries, byPrice);
+    }
+    finally
+    {
+      end(SEARCH_ROUND_TRIP, start, response);
+    }
+  }
 
-    return sb.toString();
+  String flightAssorter(TreeMap<Integer,ArrayList<Flight>> groupFlights,String destinationCity){
+    return backend.flightAssorter(groupFlights, destinationCity);
   }
 
   /**
@@ -508,6 +299,8 @@ public class Query
    * If try to book an itinerary with invalid ID, then return "No such itinerary {@code itineraryId}\n".
    * If the user already has a reservation on the same day as the one that they are trying to book now, then return
    * "You cannot book two flights in the same day\n".
+   * If the itinerary has more than two flights, then return
+   * "Booking failed: itineraries of more than 2 flights cannot be booked\n".
    * For all other errors, return "Booking failed\n".
    *
    * And if booking succeeded, return "Booked flight(s), reservation ID: [reservationId]\n" where
@@ -516,136 +309,43 @@ public class Query
    */
   public String transaction_book(int itineraryId)
   {
-    if(this.username == null){
-      return "Cannot book reservations, not logged in"+"\n";
+    long start = begin("book");
+    transaction.itineraryId = itineraryId;
+    String response = null;
+    try
+    {
+      return response = backend.transaction_book(itineraryId);
     }
-    if(!searchFlights.containsKey(itineraryId)){
-      return "no such iternary" + itineraryId;
+    finally
+    {
+      end(BOOK, start, response);
     }
+  }
 
-    try {
-      beginTransaction();
-      checkDayStatement.clearParameters();
-      checkDayStatement.setString(1,this.username);
-      ResultSet rs=checkDayStatement.executeQuery();
-      Flight flight= searchFlights.get(itineraryId).get(0);
-      int bookingday=flight.dayOfMonth;
-      if(rs.next()){
-        int day=rs.getInt("day");
-        if(bookingday == day){
-          //rollbackTransaction();
-          return "You cannot book two flights on the same day";
-        }
-      }
-
-      maxReservationIdStatement.clearParameters();
-      ResultSet max = maxReservationIdStatement.executeQuery();
-      int reserveId=1;
-      if(max.next()){
-        int maximum=max.getInt("rid");
-        reserveId=maximum + 1;
-      }
-
-      ArrayList<Flight> bookingFlights = searchFlights.get(itineraryId);
-        if(bookingFlights.size()==1){
-          Flight direct = bookingFlights.get(0);
-
-          createCapacityStatement.clearParameters();
-          createCapacityStatement.setInt(1,direct.fid);
-          createCapacityStatement.executeUpdate();
-
-          checkCapacityStatement.clearParameters();
-          checkCapacityStatement.setInt(1,direct.fid);
-          ResultSet cap=checkCapacityStatement.executeQuery();
-
-            if(cap.next()){
-            int flightCapacity =cap.getInt("capacity");
-            if(flightCapacity<1){
-              rollbackTransaction();
-              return "Booking failed"+"\n";
-            }else{
-            flightBookingStatement.clearParameters();
-            flightBookingStatement.setInt(1,reserveId);
-            flightBookingStatement.setString(2,this.username);
-            flightBookingStatement.setInt(3,direct.dayOfMonth);
-            flightBookingStatement.setInt(4,direct.fid);
-            flightBookingStatement.setInt(5,0);
-            flightBookingStatement.setInt(6,direct.price);
-            flightBookingStatement.setInt(7,0);
-            flightBookingStatement.setInt(8,0);
-            flightBookingStatement.executeUpdate();
-            updateCapacityStatement.clearParameters();
-            updateCapacityStatement.setInt(1,direct.fid);
-            updateCapacityStatement.executeUpdate();
-            commitTransaction();
-             return "Booked flight(s), reservation ID: "+reserveId +"\n";
-
-            }
-
-          }
-          rollbackTransaction();
-          return "booking failed"+"\n";
-          }else{
-            Flight indirect1=bookingFlights.get(0);
-            Flight indirect2=bookingFlights.get(1);
-
-            createCapacityStatement.clearParameters();
-            createCapacityStatement.setInt(1,indirect1.fid);
-            createCapacityStatement.executeUpdate();
-
-            createCapacityStatement.clearParameters();
-            createCapacityStatement.setInt(1,indirect2.fid);
-            createCapacityStatement.executeUpdate();
-
-            checkCapacityStatement.clearParameters();
-            checkCapacityStatement.setInt(1,indirect1.fid);
-            ResultSet cap1=checkCapacityStatement.executeQuery();
-            int capacity1=0;
-            if(cap1.next()){
-              capacity1 = cap1.getInt("capacity");
-            }
-
-            checkCapacityStatement.clearParameters();
-            checkCapacityStatement.setInt(1,indirect2.fid);
-            ResultSet cap2=checkCapacityStatement.executeQuery();
-            int capacity2=0;
-            if(cap2.next()){
-              capacity2 = cap2.getInt("capacity");
-            }
-
-                      if(capacity1 <1 || capacity2 <1){
-                        rollbackTransaction();
-                        return "booking failed"+"\n";
-                      }else{
-                        flightBookingStatement.clearParameters();
-                        flightBookingStatement.setInt(1,reserveId);
-                        flightBookingStatement.setString(2,this.username);
-                        flightBookingStatement.setInt(3,indirect1.dayOfMonth);
-                        flightBookingStatement.setInt(4,indirect1.fid);
-                        flightBookingStatement.setInt(5,indirect2.fid);
-                        flightBookingStatement.setInt(6,indirect1.price);
-                        flightBookingStatement.setInt(7,indirect2.price);
-                        flightBookingStatement.setInt(8,0);
-                        flightBookingStatement.executeUpdate();
-
-                        updateCapacityStatement.clearParameters();
-                        updateCapacityStatement.setInt(1,indirect1.fid);
-                        updateCapacityStatement.executeUpdate();
-
-                        updateCapacityStatement.clearParameters();
-                        updateCapacityStatement.setInt(1,indirect2.fid);
-                        updateCapacityStatement.executeUpdate();
-                        commitTransaction();
-                       return "Booked flight(s),reservartion ID: "+reserveId +"\n";
-                      }
-
-          }
-
-      } catch (SQLException e) {
-        return "Booking failed" +"\n";
-      }
-
+  /**
+   * Books the itinerary of a token printed by a search with {@code flightservice.tokens.secret}
+   * set. The search may have run in another session or process with the same secret.
+   *
+   * @param token the token printed under the itinerary
+   *
+   * @return as {@link #transaction_book(int)}, with an invalid or expired token reported as
+   * "No such itinerary {@code token}\n"
+   */
+  public String transaction_book(String token)
+  {
+    long start = begin("book");
+    transaction.token = token;
+    String response = null;
+    try
+    {
+      return response = backend.transaction_book(token);
     }
+    finally
+    {
+      end(BOOK, start, response);
+    }
+  }
+
   /**
    * Implements the reservations function.
    *
@@ -669,46 +369,16 @@ public class Query
    */
   public String transaction_reservations()
   {
-    if(this.username==null){
-      return "Cannot veiw reservations, not logged in"+"\n";
-    }
-    StringBuffer sb = new StringBuffer();
-    try{
-    checkReservationsStatement.clearParameters();
-    checkReservationsStatement.setString(1,this.username);
-    ResultSet rs=checkReservationsStatement.executeQuery();
-    
-    int reservedFlights=0;
-    while(rs.next()){ 
-      reservedFlights++;
-      int rid=rs.getInt("rid");
-      int flightid1=rs.getInt("fid1");
-      int flightid2=rs.getInt("fid2");
-      int paid = rs.getInt("paid");
-      String payment = "";
-      if(paid==0){
-        payment ="false";
-      }
-      if(paid==1){
-        payment ="true";
-      }
-      sb.append("Reservation "+ rid + " paid: " + payment + ":\n");
-      if(flightid2 == 0){
-        sb.append(flightText(flightid1).toString()+"\n");
-      }else{
-        sb.append(flightText(flightid1).toString()+"\n");
-        sb.append(flightText(flightid2).toString()+"\n");
-      }
+    long start = begin("reservations");
+    String response = null;
+    try
+    {
+      return response = backend.transaction_reservations();
     }
-    if(reservedFlights==0){
-      return "No reservations found "+"\n";
-    }else{
-    return sb.toString();
+    finally
+    {
+      end(RESERVATIONS, start, response);
     }
-  }catch(SQLException e){
-    e.printStackTrace();
-  }
-    return "Failed to retrieve reservations"+"\n";
   }
 
   /**
@@ -725,52 +395,18 @@ public class Query
    */
   public String transaction_cancel(int reservationId)
   {
-
-    if(this.username==null){
-      return "Cannot cancel reservations, not logged in"+"\n";
+    long start = begin("cancel");
+    transaction.reservationId = reservationId;
+    String response = null;
+    try
+    {
+      return response = backend.transaction_cancel(reservationId);
     }
-    try{
-      //beginTransaction();
-    checkReservationsStatement.clearParameters();
-    checkReservationsStatement.setString(1,this.username);
-    ResultSet rs=checkReservationsStatement.executeQuery();
-    while(rs.next()){
-      int rid=rs.getInt("rid");
-      int paid=rs.getInt("paid");
-      int totalPrice=rs.getInt("price1")+rs.getInt("price2");
-      int fid1=rs.getInt("fid1");
-      int fid2=rs.getInt("fid2");
-
-      if(rid !=reservationId){
-        //rollbackTransaction();
-        return "Failed to cancel reservation "+reservationId;
-      }else{
-          cancelReservationStatement.setInt(1,reservationId);
-          cancelReservationStatement.executeUpdate();
-              increaseCapacityStatement.setInt(1,fid1);
-              increaseCapacityStatement.executeUpdate();          
-              if(fid2!=0){
-              increaseCapacityStatement.setInt(1,fid2);
-              increaseCapacityStatement.executeUpdate();
-              }
-        if(paid==1){
-          refundMoneyStatement.clearParameters();
-          refundMoneyStatement.setInt(1,totalPrice);
-          refundMoneyStatement.setString(2,this.username);
-          refundMoneyStatement.executeUpdate();
-        }
-        return "Canceled reservation "+reservationId+"\n";
-      }
+    finally
+    {
+      end(CANCEL, start, response);
     }
-  }catch(SQLException e){
-     return "Failed to cancel reservation "+reservationId+"\n";
   }
-  return "Failed to cancel reservation "+reservationId+"\n";
-}
-
-
-
-
 
   /**
    * Implements the pay function.
@@ -789,125 +425,113 @@ public class Query
    */
   public String transaction_pay (int reservationId)
   {
-    
-    if(this.username==null){
-      return "Cannot pay, not logged in"+"\n";
-    }
-    try{
-    beginTransaction();
-    checkReservationsStatement.clearParameters();
-    checkReservationsStatement.setString(1,this.username);
-    ResultSet rs=checkReservationsStatement.executeQuery();
-
-    checkMoneyStatement.clearParameters();
-    checkMoneyStatement.setString(1,this.username);
-    ResultSet mrs=checkMoneyStatement.executeQuery();
-    int money=0;
-    int cost=0;
-    if(mrs.next()){
-      money=mrs.getInt("balance");
+    long start = begin("pay");
+    transaction.reservationId = reservationId;
+    String response = null;
+    try
+    {
+      return response = backend.transaction_pay(reservationId);
     }
-
-    if(!rs.next()){
-      rollbackTransaction();
-     return "Cannot find unpaid reservation "+reservationId+" under user: " +username+ "\n";
-    }else{
-    int rid= rs.getInt("rid");
-    int totalPrice=rs.getInt("price1")+rs.getInt("price2");
-    cost=totalPrice;
-    int paid=rs.getInt("paid");
-
-      if(paid==1 || rid != reservationId){
-        rollbackTransaction();
-        return "Cannot find unpaid reservation "+reservationId+" under user: " +username+ "\n";
-      }
-      
-
-      if(money >= totalPrice){
-        int moneyLeft = money-totalPrice;
-        updateMoneyStatement.setInt(1,moneyLeft);
-        updateMoneyStatement.setString(2,this.username);
-        updateMoneyStatement.executeUpdate();
-        updatePaymentStatement.setInt(1,1);
-        updatePaymentStatement.setInt(2,rid);
-        updatePaymentStatement.executeUpdate();
-        commitTransaction();
-        return "Paid reservation: "+reservationId +" remaining balance: "+moneyLeft+"\n";
-      }else{
-        return "User has only "+ money+ " in account but itinerary costs " +cost+"\n";
-      }
-
-
-
+    finally
+    {
+      end(PAY, start, response);
     }
-  }catch(SQLException e){
-    e.printStackTrace();
   }
-  return "Failed to pay for reservation"+reservationId+"\n";
 
-    }
-
-
-  /* some utility functions below */
-
-  public void beginTransaction() throws SQLException
+  /**
+   * Sets the deadline of the next transaction of this session, as a {@code System.nanoTime()}
+   * value, in place of the timeout configured for its command.
+   */
+  public void setDeadline(long deadlineNanos)
   {
-    conn.setAutoCommit(false);
-    beginTransactionStatement.executeUpdate();
+    nextDeadline = deadlineNanos;
   }
 
-  public void commitTransaction() throws SQLException
+  /**
+   * @return the time a transaction of {@code command} (as typed in FlightService, e.g. "search")
+   * may take, from {@code flightservice.timeout.<command>.millis} or else
+   * {@code flightservice.timeout.millis}, in nanoseconds; 0 if it is not limited
+   */
+  long timeoutNanos(String command)
   {
-    commitTransactionStatement.executeUpdate();
-    conn.setAutoCommit(true);
+    Long timeout = commandTimeouts.get(command);
+    return timeout != null ? timeout : defaultTimeout;
   }
 
-  public void rollbackTransaction() throws SQLException
+  // starts the deadline and event of a transaction of command and returns its start time, or 0 if untimed
+  private long begin(String command)
   {
-    rollbackTransactionStatement.executeUpdate();
-    conn.setAutoCommit(true);
+    if (TRANSACTION.isEnabled() || EventLog.audits(command))
+    {
+      transaction = new FlightEvents.Transaction();
+      transaction.begin();
+    }
+    else
+      transaction = unrecorded;
+    transaction.command = command;
+    startDeadline(command);
+    return timed ? System.nanoTime() : 0;
   }
 
-  private Flight flightText(int fid) throws SQLException{
-    Flight booked= new Flight();
-try{
-    bookedFlightsStatement.clearParameters();
-    bookedFlightsStatement.setInt(1,fid);
-    ResultSet rs=bookedFlightsStatement.executeQuery();    
-      while (rs.next())
+  private void end(LatencyHistogram latency, long start, String response)
+  {
+    backend.endDeadline();
+    if (start != 0)
+      latency.record(System.nanoTime() - start);
+
+    FlightEvents.Transaction event = transaction;
+    transaction = null;
+    if (event == unrecorded)
+      return;
+    event.end();
+    boolean audit = EventLog.audits(event.command);
+    if (event.shouldCommit() || audit)
+    {
+      event.user = backend.username;
+      ArrayList<Flight> flights = event.itineraryId >= 0 ? backend.searchFlights.get(event.itineraryId)
+              : event.token != null && backend.tokens != null ? backend.tokens.verify(event.token) : null;
+      if (flights != null)
       {
-        booked.fid=rs.getInt("fid");
-        booked.dayOfMonth = rs.getInt("day_of_month");
-        booked.carrierId = rs.getString("carrier_id");
-        booked.flightNum = rs.getString("flight_num");
-        booked.originCity = rs.getString("origin_city");
-        booked.destCity = rs.getString("dest_city");
-        booked.time = rs.getInt("actual_time");
-        booked.capacity = rs.getInt("capacity");
-        booked.price = rs.getInt("price");
+        event.fid1 = flights.get(0).fid;
+        event.fid2 = flights.size() > 1 ? flights.get(1).fid : 0;
       }
-      //oneHopResults.close();
-  }catch(SQLException e){
-    e.printStackTrace();
+      event.outcome = FlightEvents.outcome(response);
+      if (audit)
+      {
+        EventLog.audit(event.command, event.user, event.itineraryId, event.fid1, event.fid2, event.reservationId,
+                event.outcome);
+      }
+      if (event.shouldCommit())
+        event.commit();
+    }
   }
-    return booked;
+
+  private void startDeadline(String command)
+  {
+    long deadline = nextDeadline;
+    nextDeadline = 0;
+    if (deadline == 0)
+    {
+      long timeout = timeoutNanos(command);
+      if (timeout > 0)
+        deadline = System.nanoTime() + timeout;
+    }
+    backend.startDeadline(deadline);
   }
 
   /**
-   * Shows an example of using PreparedStatements after setting arguments. You don't need to
-   * use this method if you don't want to.
+   * @return the number of transactions of this session that were cut off by their deadline
    */
-  private int checkFlightCapacity(int fid) throws SQLException
+  public int timeouts()
   {
-    checkFlightCapacityStatement.clearParameters();
-    checkFlightCapacityStatement.setInt(1, fid);
-    ResultSet results = checkFlightCapacityStatement.executeQuery();
-    results.next();
-    int capacity = results.getInt("capacity");
-    results.close();
-
-    return capacity;
+    return backend.timeouts;
   }
 
-
+  /**
+   * @return the number of transactions of this session that were aborted as a deadlock victim
+   */
+  public int deadlocks()
+  {
+    return backend.deadlocks;
+  }
 }
@@ -0,0 +1,208 @@
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Read-only copy of the database named by {@code flightservice.replica.url} that searches (and
+ * optionally reservation listings) are sent to instead of the primary.
+ *
+ * A background thread measures how far the replica is behind: every poll it reads the highest
+ * {@code ver} rowversion (see createTables.sql) on the primary, remembers when it saw it, and
+ * then reads the same on the replica. The replica has caught up with the primary as of the
+ * latest sample it has reached, so {@link #lagMillis} is an upper bound on its lag. Sessions use
+ * the replica only while it answers polls, is within {@code flightservice.replica.maxLagMillis},
+ * and has caught up past their own last write; otherwise they read from the primary.
+ */
+class ReadReplica
+{
+  // one monitor per replica, shared by all sessions of the process
+  private static final Map<String, ReadReplica> replicas = new ConcurrentHashMap<>();
+
+  private static final String LAST_VERSION = "SELECT MAX(v) FROM ("
+          + "SELECT MAX(ver) v FROM users UNION ALL SELECT MAX(ver) FROM reservations "
+          + "UNION ALL SELECT MAX(ver) FROM capacity UNION ALL SELECT MAX(ver) FROM deletions) t";
+
+  private final Properties configProps;
+  private final String url;
+  private final String user;
+  private final String password;
+  private final long maxLagNanos;
+  final boolean reservations;
+
+  private Connection primary;
+  private Connection replica;
+  // {System.nanoTime(), version} read from the primary and not yet reached by the replica
+  private final ArrayDeque<long[]> samples = new ArrayDeque<>();
+  private volatile long caughtUp; // System.nanoTime() of the latest sample the replica has reached
+  private volatile boolean healthy;
+
+  private ReadReplica(Properties configProps, long maxLagMillis)
+  {
+    this.configProps = configProps;
+    this.url = configProps.getProperty("flightservice.replica.url");
+    this.user = configProps.getProperty("flightservice.replica.username",
+            configProps.getProperty("flightservice.sqlazure_username"));
+    this.password = configProps.getProperty("flightservice.replica.password",
+            configProps.getProperty("flightservice.sqlazure_password"));
+    this.maxLagNanos = TimeUnit.MILLISECONDS.toNanos(maxLagMillis);
+    this.reservations = Boolean.parseBoolean(
+            configProps.getProperty("flightservice.replica.reservations", "false").trim());
+  }
+
+  /**
+   * @return the monitor of the configured replica, started on first use, or null unless
+   * {@code flightservice.replica.url} is set
+   */
+  static ReadReplica open(Properties configProps)
+  {
+    String url = configProps.getProperty("flightservice.replica.url");
+    if (url == null || url.trim().isEmpty())
+      return null;
+    return replicas.computeIfAbsent(url, u ->
+    {
+      long maxLag = Long.parseLong(configProps.getProperty("flightservice.replica.maxLagMillis", "1000").trim());
+      int millis = Integer.parseInt(configProps.getProperty("flightservice.replica.pollMillis", "250").trim());
+      ReadReplica replica = new ReadReplica(configProps, maxLag);
+      replica.start(millis);
+      return replica;
+    });
+  }
+
+  private void start(int millis)
+  {
+    ScheduledExecutorService poller = Executors.newSingleThreadScheduledExecutor(r ->
+    {
+      Thread t = new Thread(r, "replica-lag");
+      t.setDaemon(true);
+      return t;
+    });
+    poller.scheduleWithFixedDelay(() ->
+    {
+      try
+      {
+        poll();
+      }
+      catch (Exception e)
+      {
+        // fail over to the primary until a poll succeeds again
+        healthy = false;
+        close();
+      }
+    }, 0, millis, TimeUnit.MILLISECONDS);
+  }
+
+  private void poll() throws Exception
+  {
+    if (primary == null)
+      primary = FlightsLoader.connect(configProps, false);
+    if (replica == null)
+      replica = connect();
+
+    long now = System.nanoTime();
+    long[] sample = {now, lastVersion(primary)};
+    if (samples.isEmpty() || samples.peekLast()[1] != sample[1])
+      samples.addLast(sample);
+    else
+      samples.peekLast()[0] = now; // no writes since the last sample
+
+    long reached = lastVersion(replica);
+    long at = 0;
+    while (!samples.isEmpty() && samples.peekFirst()[1] <= reached)
+      at = samples.pollFirst()[0];
+    if (at != 0)
+      caughtUp = at;
+    healthy = true;
+  }
+
+  private static long lastVersion(Connection conn) throws SQLException
+  {
+    try (Statement s = conn.createStatement(); ResultSet rs = s.executeQuery(LAST_VERSION))
+    {
+      rs.next();
+      byte[] ver = rs.getBytes(1);
+      long v = 0;
+      if (ver != null)
+      {
+        for (byte b : ver)
+          v = (v << 8) | (b & 0xff);
+      }
+      return v;
+    }
+  }
+
+  private void close()
+  {
+    for (Connection c : new Connection[] {primary, replica})
+    {
+      try
+      {
+        if (c != null)
+          c.close();
+      }
+      catch (SQLException e)
+      {
+        // already broken
+      }
+    }
+    primary = null;
+    replica = null;
+  }
+
+  /**
+   * @return a new read-only connection to the replica
+   */
+  Connection connect() throws Exception
+  {
+    Class.forName(configProps.getProperty("flightservice.jdbc_driver"));
+    Connection conn = FlightEvents.connect(url, user, password);
+    conn.setReadOnly(true);
+    return conn;
+  }
+
+  /**
+   * Reports that a session's query on the replica failed, so that all sessions read from the
+   * primary until the next successful poll.
+   */
+  void failed()
+  {
+    healthy = false;
+  }
+
+  /**
+   * @return whether the replica is up
+   */
+  boolean healthy()
+  {
+    return healthy;
+  }
+
+  /**
+   * @return an upper bound in milliseconds on how far the replica is behind the primary, or -1
+   * if it is down
+   */
+  long lagMillis()
+  {
+    return healthy ? TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - caughtUp) : -1;
+  }
+
+  /**
+   * Whether a session whose last write committed at {@code lastWrite} (a System.nanoTime()
+   * value, or 0 if it has not written) may read from the replica: it must be up, within the
+   * allowed lag, and have caught up past that write.
+   */
+  boolean freshFor(long lastWrite)
+  {
+    if (!healthy)
+      return false;
+    long at = caughtUp;
+    return (lastWrite == 0 || at - lastWrite > 0) && System.nanoTime() - at <= maxLagNanos;
+  }
+}
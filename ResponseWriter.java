@@ -0,0 +1,142 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reusable byte buffer that command responses are rendered into.
+ *
+ * Static text is appended from pre-encoded fragments and integers are written digit by
+ * digit, so rendering a response only allocates when the buffer has to grow or when the
+ * caller asks for the final {@code String}. A writer is owned by a single session and is
+ * not thread safe.
+ */
+public class ResponseWriter
+{
+  // pre-encoded fragments shared by every response
+  static final byte[] ITINERARY = ascii("Itinerary ");
+  static final byte[] COLON_SPACE = ascii(": ");
+  static final byte[] FLIGHTS = ascii(" flight(s), ");
+  static final byte[] MINUTES = ascii(" minutes\n");
+  static final byte[] RESERVATION = ascii("Reservation ");
+  static final byte[] PAID = ascii(" paid: ");
+  static final byte[] TRUE = ascii("true");
+  static final byte[] FALSE = ascii("false");
+  static final byte[] COLON_NEWLINE = ascii(":\n");
+  static final byte[] NEWLINE = ascii("\n");
+  static final byte[] TOKEN = ascii("Token: ");
+
+  private static final int INITIAL_CAPACITY = 4096;
+
+  private byte[] buf;
+  private int len;
+
+  public ResponseWriter()
+  {
+    this(INITIAL_CAPACITY);
+  }
+
+  public ResponseWriter(int capacity)
+  {
+    buf = new byte[capacity];
+  }
+
+  static byte[] ascii(String s)
+  {
+    return s.getBytes(StandardCharsets.US_ASCII);
+  }
+
+  /**
+   * Drops everything written so far but keeps the backing array.
+   */
+  public ResponseWriter reset()
+  {
+    len = 0;
+    return this;
+  }
+
+  public int length()
+  {
+    return len;
+  }
+
+  public ResponseWriter append(byte[] fragment)
+  {
+    ensure(fragment.length);
+    System.arraycopy(fragment, 0, buf, len, fragment.length);
+    len += fragment.length;
+    return this;
+  }
+
+  /**
+   * Appends the decimal form of {@code v} without going through {@code Integer.toString}.
+   */
+  public ResponseWriter append(int v)
+  {
+    if (v == Integer.MIN_VALUE)
+      return append(ascii(Integer.toString(v)));
+
+    ensure(11);
+    if (v < 0)
+    {
+      buf[len++] = '-';
+      v = -v;
+    }
+    int digits = 1;
+    for (int t = v; t >= 10; t /= 10)
+      digits++;
+    int pos = len + digits;
+    do
+    {
+      buf[--pos] = (byte) ('0' + v % 10);
+      v /= 10;
+    } while (v != 0);
+    len += digits;
+    return this;
+  }
+
+  /**
+   * Appends {@code s} as UTF-8; {@code null} is written as "null" to match string concatenation.
+   */
+  public ResponseWriter append(String s)
+  {
+    if (s == null)
+      s = "null";
+
+    int n = s.length();
+    ensure(n);
+    for (int i = 0; i < n; i++)
+    {
+      char c = s.charAt(i);
+      if (c >= 0x80)
+      {
+        // rare: fall back to the charset encoder for the remainder
+        return append(s.substring(i).getBytes(StandardCharsets.UTF_8));
+      }
+      buf[len++] = (byte) c;
+    }
+    return this;
+  }
+
+  public ResponseWriter append(boolean b)
+  {
+    return append(b ? TRUE : FALSE);
+  }
+
+  public void writeTo(OutputStream out) throws IOException
+  {
+    out.write(buf, 0, len);
+  }
+
+  @Override
+  public String toString()
+  {
+    return new String(buf, 0, len, StandardCharsets.UTF_8);
+  }
+
+  private void ensure(int extra)
+  {
+    if (len + extra > buf.length)
+      buf = Arrays.copyOf(buf, Math.max(buf.length << 1, len + extra));
+  }
+}
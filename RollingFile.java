@@ -0,0 +1,68 @@
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Text file that is appended to and rotated once it grows past a size, keeping a number of old
+ * files as {@code <file>.1} (the newest), {@code <file>.2} and so on. Not thread-safe.
+ */
+class RollingFile
+{
+  private final Path file;
+  private final long maxBytes;
+  private final int files;
+  private Writer out;
+  private long written;
+
+  RollingFile(String file, long maxBytes, int files) throws IOException
+  {
+    this.file = Paths.get(file);
+    this.maxBytes = maxBytes;
+    this.files = files;
+    open();
+  }
+
+  private void open() throws IOException
+  {
+    out = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    written = Files.size(file);
+  }
+
+  /**
+   * Appends {@code text}, which stays buffered until {@link #flush}.
+   */
+  void write(CharSequence text) throws IOException
+  {
+    out.append(text);
+    written += text.length();
+  }
+
+  /**
+   * Writes out what is buffered, then rotates the file if it is full.
+   */
+  void flush() throws IOException
+  {
+    out.flush();
+    if (written >= maxBytes)
+      rotate();
+  }
+
+  private void rotate() throws IOException
+  {
+    out.close();
+    for (int i = files; i >= 1; i--)
+    {
+      Path from = i == 1 ? file : Paths.get(file + "." + (i - 1));
+      if (Files.exists(from))
+        Files.move(from, Paths.get(file + "." + i), StandardCopyOption.REPLACE_EXISTING);
+    }
+    if (files <= 0)
+      Files.deleteIfExists(file);
+    open();
+  }
+}
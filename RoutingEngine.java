@@ -0,0 +1,372 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finds the fastest itineraries of two up to {@code flightservice.routing.maxHops} flights
+ * between two cities on one day, in place of the one-stop {@code INDIRECT_FLIGHTS} self-join.
+ *
+ * Like the one-stop search, an itinerary is any sequence of same-day flights that visits no
+ * city twice, and its time is the sum of the flight durations. The search is A* over labels,
+ * each a flight taken after its parent label. The lower bound of a label is the least time
+ * from its city to the destination in the flights it has left, computed per query by relaxing
+ * the fastest flight of each route of the day once per hop; cities that cannot reach the
+ * destination in time are never entered. Since the flights of a route are sorted by duration,
+ * a label only pushes the fastest flight of each route out of its city, and a popped label
+ * pushes its sibling, the next fastest flight of the same route. Labels therefore come off the
+ * heap in order of total time, and the search stops once {@code limit} itineraries (plus ties)
+ * have reached the destination, or after {@code flightservice.routing.maxLabels} labels.
+ *
+ * Labels, heap and bounds live in int arrays that each thread reuses across queries.
+ */
+class RoutingEngine
+{
+  private static final int INF = Integer.MAX_VALUE / 2;
+
+  // flights of the JDBC backends, loaded once per source
+  private static final Map<String, Flights> sources = new ConcurrentHashMap<>();
+
+  // polls the sources for changed flights, if flightservice.memory.reload.seconds is set
+  private static ScheduledExecutorService reloads;
+
+  private static final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(Scratch::new);
+
+  private final int maxHops;
+  private final int maxLabels;
+
+  // per-thread buffers; labels are numbered from 0, the origin
+  private static final class Scratch
+  {
+    int[] parent = new int[1024];
+    int[] route = new int[1024];
+    int[] rank = new int[1024];
+    int[] city = new int[1024];
+    int[] hops = new int[1024];
+    int[] time = new int[1024];
+    int labels;
+
+    // binary heap of labels by key, the time so far plus the lower bound to the destination
+    int[] heap = new int[1024];
+    int[] key = new int[1024];
+    int size;
+
+    // bound[r * cities + c]: least time from c to the destination in at most r flights
+    int[] bound = new int[0];
+
+    int label(int parentLabel, int r, int k, int c, int h, int t)
+    {
+      if (labels == parent.length)
+      {
+        int n = labels * 2;
+        parent = Arrays.copyOf(parent, n);
+        route = Arrays.copyOf(route, n);
+        rank = Arrays.copyOf(rank, n);
+        city = Arrays.copyOf(city, n);
+        hops = Arrays.copyOf(hops, n);
+        time = Arrays.copyOf(time, n);
+      }
+      parent[labels] = parentLabel;
+      route[labels] = r;
+      rank[labels] = k;
+      city[labels] = c;
+      hops[labels] = h;
+      time[labels] = t;
+      return labels++;
+    }
+
+    void push(int label, int k)
+    {
+      if (size == heap.length)
+      {
+        heap = Arrays.copyOf(heap, size * 2);
+        key = Arrays.copyOf(key, size * 2);
+      }
+      int i = size++;
+      while (i > 0)
+      {
+        int up = (i - 1) >>> 1;
+        if (!before(k, label, key[up], heap[up]))
+          break;
+        heap[i] = heap[up];
+        key[i] = key[up];
+        i = up;
+      }
+      heap[i] = label;
+      key[i] = k;
+    }
+
+    int pop()
+    {
+      int top = heap[0];
+      int label = heap[--size];
+      int k = key[size];
+      int i = 0;
+      while (true)
+      {
+        int child = 2 * i + 1;
+        if (child >= size)
+          break;
+        if (child + 1 < size && before(key[child + 1], heap[child + 1], key[child], heap[child]))
+          child++;
+        if (!before(key[child], heap[child], k, label))
+          break;
+        heap[i] = heap[child];
+        key[i] = key[child];
+        i = child;
+      }
+      heap[i] = label;
+      key[i] = k;
+      return top;
+    }
+
+    // ties go to the older label, so that results do not depend on heap layout
+    private static boolean before(int k1, int label1, int k2, int label2)
+    {
+      return k1 < k2 || (k1 == k2 && label1 < label2);
+    }
+  }
+
+  RoutingEngine(int maxHops, int maxLabels)
+  {
+    this.maxHops = maxHops;
+    this.maxLabels = maxLabels;
+  }
+
+  /**
+   * @return an engine for {@code flightservice.routing.maxHops}, or null if that is not above
+   * 2, in which case searches keep to one stop
+   */
+  static RoutingEngine open(Properties configProps)
+  {
+    int maxHops = Integer.parseInt(configProps.getProperty("flightservice.routing.maxHops", "2").trim());
+    if (maxHops <= 2)
+      return null;
+    return new RoutingEngine(maxHops,
+            Integer.parseInt(configProps.getProperty("flightservice.routing.maxLabels", "100000").trim()));
+  }
+
+  /**
+   * The flights of one source, for backends that do not keep an index of their own. With
+   * {@code flightservice.memory.reload.seconds} set, the source's stamp is polled as
+   * {@code MemoryStore} polls it, and changed flights are loaded in the background and swapped
+   * in; a search that already took the old index keeps using it until it returns.
+   */
+  static final class Flights
+  {
+    private final Properties configProps;
+    private volatile FlightIndex index;
+    private long stamp;
+
+    private Flights(Properties configProps, FlightIndex index, long stamp)
+    {
+      this.configProps = configProps;
+      this.index = index;
+      this.stamp = stamp;
+    }
+
+    /**
+     * @return the flights loaded last
+     */
+    FlightIndex current()
+    {
+      return index;
+    }
+
+    private void poll()
+    {
+      try
+      {
+        long next = FlightIndex.stamp(configProps);
+        if (next != stamp)
+        {
+          long start = System.nanoTime();
+          index = FlightIndex.load(configProps);
+          stamp = next;
+          Backend.flightsReloaded();
+          EventLog.info(String.format("Reloaded %d routing flights in %.1f s", index.size(),
+                  (System.nanoTime() - start) / 1e9));
+        }
+      }
+      catch (Exception e)
+      {
+        // keep routing over the current flights and try again next time
+        EventLog.error(e);
+      }
+    }
+  }
+
+  /**
+   * @return the flights of the configured source, loaded once per process for backends that do
+   * not keep an index of their own, and reloaded when they change
+   */
+  static Flights flights(Properties configProps) throws Exception
+  {
+    String source = configProps.getProperty("flightservice.memory.flights", "");
+    if (source.trim().isEmpty())
+      source = configProps.getProperty("flightservice.url");
+    Flights flights = sources.get(source);
+    if (flights != null)
+      return flights;
+    synchronized (sources)
+    {
+      flights = sources.get(source);
+      if (flights == null)
+      {
+        int reloadSeconds = Integer.parseInt(configProps.getProperty("flightservice.memory.reload.seconds", "0").trim());
+        long stamp = reloadSeconds > 0 ? FlightIndex.stamp(configProps) : 0;
+        flights = new Flights(configProps, FlightIndex.load(configProps), stamp);
+        sources.put(source, flights);
+        if (reloadSeconds > 0)
+        {
+          if (reloads == null)
+          {
+            reloads = Executors.newSingleThreadScheduledExecutor(r ->
+            {
+              Thread t = new Thread(r, "routing-flights");
+              t.setDaemon(true);
+              return t;
+            });
+          }
+          reloads.scheduleWithFixedDelay(flights::poll, reloadSeconds, reloadSeconds, TimeUnit.SECONDS);
+        }
+      }
+      return flights;
+    }
+  }
+
+  /**
+   * @return up to {@code limit} itineraries of two or more flights as {time, flight index...},
+   * fastest first and ties broken by fids
+   */
+  List<int[]> find(FlightIndex index, int day, int origin, int dest, int limit)
+  {
+    ArrayList<int[]> found = new ArrayList<int[]>();
+    if (limit <= 0 || origin == dest)
+      return found;
+    int n = index.cities();
+    Scratch s = scratch.get();
+    bounds(index, day, dest, s, n);
+    if (s.bound[maxHops * n + origin] >= INF)
+      return found;
+
+    s.labels = 0;
+    s.size = 0;
+    int root = s.label(-1, -1, 0, origin, 0, 0);
+    expand(index, day, dest, s, n, root);
+
+    int cutoff = INF;
+    while (s.size > 0 && s.labels < maxLabels)
+    {
+      if (s.key[0] > cutoff)
+        break;
+      int l = s.pop();
+
+      // the next fastest flight of the same route, after the same parent
+      int r = s.route[l];
+      int k = s.rank[l] + 1;
+      if (k < index.routeSize(r))
+      {
+        int p = s.parent[l];
+        int t = s.time[p] + index.time(index.routeFlight(r, k));
+        int sibling = s.label(p, r, k, s.city[l], s.hops[l], t);
+        s.push(sibling, t + s.bound[(maxHops - s.hops[l]) * n + s.city[l]]);
+      }
+
+      if (s.city[l] == dest)
+      {
+        found.add(path(index, s, l));
+        if (found.size() == limit)
+          cutoff = s.time[l];
+      }
+      else if (s.hops[l] < maxHops)
+        expand(index, day, dest, s, n, l);
+    }
+
+    found.sort((a, b) ->
+    {
+      if (a[0] != b[0])
+        return Integer.compare(a[0], b[0]);
+      for (int i = 1; i < Math.min(a.length, b.length); i++)
+      {
+        if (a[i] != b[i])
+          return Integer.compare(index.fid(a[i]), index.fid(b[i]));
+      }
+      return Integer.compare(a.length, b.length);
+    });
+    return found.size() > limit ? new ArrayList<int[]>(found.subList(0, limit)) : found;
+  }
+
+  // least time from every city to dest in at most r flights, for r up to maxHops
+  private void bounds(FlightIndex index, int day, int dest, Scratch s, int n)
+  {
+    if (s.bound.length < (maxHops + 1) * n)
+      s.bound = new int[(maxHops + 1) * n];
+    int[] bound = s.bound;
+    Arrays.fill(bound, 0, n, INF);
+    bound[dest] = 0;
+    for (int r = 1; r <= maxHops; r++)
+    {
+      int prev = (r - 1) * n;
+      int cur = r * n;
+      System.arraycopy(bound, prev, bound, cur, n);
+      for (int c = 0; c < n; c++)
+      {
+        int out = index.out(day, c);
+        for (int k = 0; k < index.outSize(out); k++)
+        {
+          int w = index.outDest(out, k);
+          if (bound[prev + w] >= INF)
+            continue;
+          int t = bound[prev + w] + index.time(index.routeFlight(index.route(day, c, w), 0));
+          if (t < bound[cur + c])
+            bound[cur + c] = t;
+        }
+      }
+    }
+  }
+
+  // pushes the fastest flight of each route out of the city of label l
+  private void expand(FlightIndex index, int day, int dest, Scratch s, int n, int l)
+  {
+    int c = s.city[l];
+    int h = s.hops[l] + 1;
+    int out = index.out(day, c);
+    for (int k = 0; k < index.outSize(out); k++)
+    {
+      int w = index.outDest(out, k);
+      if (w == dest && h == 1)
+        continue; // direct flights are searched separately
+      int b = s.bound[(maxHops - h) * n + w];
+      if (b >= INF || visited(s, l, w))
+        continue;
+      int r = index.route(day, c, w);
+      int t = s.time[l] + index.time(index.routeFlight(r, 0));
+      s.push(s.label(l, r, 0, w, h, t), t + b);
+    }
+  }
+
+  private static boolean visited(Scratch s, int l, int c)
+  {
+    for (; l >= 0; l = s.parent[l])
+    {
+      if (s.city[l] == c)
+        return true;
+    }
+    return false;
+  }
+
+  private static int[] path(FlightIndex index, Scratch s, int l)
+  {
+    int[] path = new int[s.hops[l] + 1];
+    path[0] = s.time[l];
+    for (int i = s.hops[l]; i > 0; i--, l = s.parent[l])
+      path[i] = index.routeFlight(s.route[l], s.rank[l]);
+    return path;
+  }
+}
@@ -0,0 +1,72 @@
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Number of booked seats per fid, shared by all sessions of the in-memory backend.
+ *
+ * Counts live in chunks of 64K fids that are allocated on first use, so the structure needs
+ * no resizing when new flights appear and costs nothing for fids that are never booked.
+ * Reserving a seat is a compare-and-set against the flight's capacity; no locks are taken.
+ */
+class SeatCounts
+{
+  private static final int CHUNK_BITS = 16;
+  private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+  private static final int CHUNKS = 1 << (31 - CHUNK_BITS);
+
+  private final AtomicReferenceArray<AtomicIntegerArray> chunks = new AtomicReferenceArray<AtomicIntegerArray>(CHUNKS);
+
+  private AtomicIntegerArray chunk(int fid)
+  {
+    int c = fid >>> CHUNK_BITS;
+    AtomicIntegerArray chunk = chunks.get(c);
+    if (chunk == null)
+    {
+      chunks.compareAndSet(c, null, new AtomicIntegerArray(CHUNK_SIZE));
+      chunk = chunks.get(c);
+    }
+    return chunk;
+  }
+
+  int booked(int fid)
+  {
+    AtomicIntegerArray chunk = chunks.get(fid >>> CHUNK_BITS);
+    return chunk == null ? 0 : chunk.get(fid & (CHUNK_SIZE - 1));
+  }
+
+  /**
+   * Books one seat on {@code fid} unless all {@code capacity} seats are taken.
+   */
+  boolean tryReserve(int fid, int capacity)
+  {
+    AtomicIntegerArray chunk = chunk(fid);
+    int i = fid & (CHUNK_SIZE - 1);
+    while (true)
+    {
+      int booked = chunk.get(i);
+      if (booked >= capacity)
+        return false;
+      if (chunk.compareAndSet(i, booked, booked + 1))
+        return true;
+    }
+  }
+
+  void release(int fid)
+  {
+    chunk(fid).decrementAndGet(fid & (CHUNK_SIZE - 1));
+  }
+
+  /**
+   * Sets the count for {@code fid} directly, e.g. while restoring saved state.
+   */
+  void set(int fid, int booked)
+  {
+    chunk(fid).set(fid & (CHUNK_SIZE - 1), booked);
+  }
+
+  void clear()
+  {
+    for (int c = 0; c < CHUNKS; c++)
+      chunks.set(c, null);
+  }
+}
@@ -0,0 +1,724 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * JDBC backend that splits reservations and seat counts across several databases by day of
+ * month.
+ *
+ * Selected with {@code flightservice.backend=sharded}. The database of dbconn.properties stays
+ * the global shard: it holds FLIGHTS, USERS and the {@code reservation_ids} sequence that hands
+ * out reservation ids, and login, user creation and search run there exactly as in
+ * {@code JdbcBackend}. Each of the {@code flightservice.shards} databases named by
+ * {@code flightservice.shard.<i>.url} holds the RESERVATIONS and CAPACITY rows of the days
+ * {@code d} with {@code (d - 1) % shards == i} (see createShard.sql). All flights of an
+ * itinerary are on the same day, so a booking, including its same-day check, is a local
+ * transaction on one shard.
+ *
+ * Listing reservations queries all shards in parallel and merges the rows by id; cancel and
+ * pay locate the reservation the same way. Pay and cancel also change the user's balance on the
+ * global shard. There is no distributed transaction between the two, so pay debits the balance
+ * first and refunds it if the reservation cannot be marked paid, and cancel refunds a paid
+ * reservation first and takes the refund back if the reservation cannot be deleted, or marks
+ * the reservation unpaid should the balance no longer cover it. Either way a failure on a shard
+ * never keeps the user's money, and the balance never goes negative.
+ *
+ * A session prepares its statements once on every shard, like those of the global shard, so
+ * transaction deadlines and statement metrics apply to them too.
+ */
+class ShardedBackend extends JdbcBackend
+{
+  // runs the per-shard queries of a fan-out; shared by all sessions
+  private static final ExecutorService fanOut = Executors.newCachedThreadPool(r ->
+  {
+    Thread t = new Thread(r, "shard-fanout");
+    t.setDaemon(true);
+    return t;
+  });
+
+  // global shard
+  private static final String NEXT_RID = "SELECT NEXT VALUE FOR reservation_ids";
+  private static final String RESET_RIDS = "ALTER SEQUENCE reservation_ids RESTART WITH 1";
+  private static final String DEBIT = "UPDATE users SET balance = balance - ? OUTPUT inserted.balance "
+          + "WHERE username = ? AND balance >= ?";
+  private static final String REFUND = "UPDATE users SET balance = balance + ? WHERE username = ?";
+  private static final String BALANCE = "SELECT balance FROM users WHERE username = ?";
+  private static final String CLEAR_USERS = "DELETE FROM users";
+
+  // day shards
+  private static final String SAME_DAY = "SELECT rid FROM reservations WITH (UPDLOCK, HOLDLOCK) "
+          + "WHERE username = ? AND day = ?";
+  private static final String ADD_CAPACITY = "INSERT INTO capacity (fid, capacity) SELECT ?, ? "
+          + "WHERE NOT EXISTS (SELECT * FROM capacity WITH (UPDLOCK, HOLDLOCK) WHERE fid = ?)";
+  private static final String TAKE_SEAT = "UPDATE capacity SET capacity = capacity - 1 WHERE fid = ? AND capacity > 0";
+  private static final String RETURN_SEAT = "UPDATE capacity SET capacity = capacity + 1 WHERE fid = ?";
+  private static final String INSERT_RESERVATION = "INSERT INTO reservations "
+          + "(rid, username, day, fid1, fid2, price1, price2, paid) VALUES (?, ?, ?, ?, ?, ?, ?, 0)";
+  private static final String USER_RESERVATIONS = "SELECT rid, day, fid1, fid2, price1, price2, paid "
+          + "FROM reservations WHERE username = ?";
+  private static final String FIND_RESERVATION = "SELECT rid, day, fid1, fid2, price1, price2, paid "
+          + "FROM reservations WHERE rid = ? AND username = ?";
+  private static final String MARK_PAID = "UPDATE reservations SET paid = 1 WHERE rid = ? AND paid = 0";
+  private static final String DELETE_RESERVATION = "DELETE FROM reservations OUTPUT deleted.fid1, deleted.fid2, "
+          + "deleted.price1, deleted.price2, deleted.paid WHERE rid = ? AND username = ?";
+  private static final String CLEAR_RESERVATIONS = "DELETE FROM reservations";
+  private static final String CLEAR_CAPACITY = "DELETE FROM capacity";
+  private static final String MARK_UNPAID = "UPDATE reservations SET paid = 0 WHERE rid = ? AND paid = 1";
+
+  // one row of RESERVATIONS and the shard it lives on
+  private static final class Row
+  {
+    int shard;
+    int rid;
+    int day;
+    int fid1;
+    int fid2;
+    int price1;
+    int price2;
+    boolean paid;
+  }
+
+  // the statements of one day shard, prepared once per session
+  private static final class ShardStatements
+  {
+    PreparedStatement sameDay;
+    PreparedStatement addCapacity;
+    PreparedStatement takeSeat;
+    PreparedStatement returnSeat;
+    PreparedStatement insertReservation;
+    PreparedStatement userReservations;
+    PreparedStatement findReservation;
+    PreparedStatement markPaid;
+    PreparedStatement markUnpaid;
+    PreparedStatement deleteReservation;
+    PreparedStatement clearReservations;
+    PreparedStatement clearCapacity;
+  }
+
+  private Connection[] shards;
+  private ShardStatements[] onShard;
+  private PreparedStatement nextRidStatement;
+  private PreparedStatement debitStatement;
+  private PreparedStatement refundStatement;
+  private PreparedStatement balanceStatement;
+  private PreparedStatement flightStatement;
+  private PreparedStatement clearUsersStatement;
+  private PreparedStatement resetRidsStatement;
+
+  /**
+   * @return the shard that holds the reservations of {@code dayOfMonth}
+   */
+  int shardOf(int dayOfMonth)
+  {
+    return (dayOfMonth - 1) % shards.length;
+  }
+
+  void openConnection(Properties configProps) throws Exception
+  {
+    super.openConnection(configProps);
+    int n = Integer.parseInt(configProps.getProperty("flightservice.shards", "1").trim());
+    shards = new Connection[n];
+    for (int i = 0; i < n; i++)
+    {
+      String prefix = "flightservice.shard." + i + ".";
+      String url = configProps.getProperty(prefix + "url");
+      if (url == null)
+        throw new IllegalArgumentException("missing " + prefix + "url");
+      shards[i] = FlightEvents.connect(url,
+              configProps.getProperty(prefix + "username", configProps.getProperty("flightservice.sqlazure_username")),
+              configProps.getProperty(prefix + "password", configProps.getProperty("flightservice.sqlazure_password")));
+      shards[i].setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+    }
+  }
+
+  void prepareStatements() throws Exception
+  {
+    super.prepareStatements();
+    nextRidStatement = prepare("global.NEXT_RID", NEXT_RID);
+    debitStatement = prepare("global.DEBIT", DEBIT);
+    refundStatement = prepare("global.REFUND", REFUND);
+    balanceStatement = prepare("global.BALANCE", BALANCE);
+    flightStatement = prepare("global.BOOKED_FLIGHTS", BOOKED_FLIGHTS);
+    clearUsersStatement = prepare("global.CLEAR_USERS", CLEAR_USERS);
+    resetRidsStatement = prepare("global.RESET_RIDS", RESET_RIDS);
+
+    onShard = new ShardStatements[shards.length];
+    for (int i = 0; i < shards.length; i++)
+    {
+      Connection shard = shards[i];
+      String name = "shard" + i + ".";
+      ShardStatements s = new ShardStatements();
+      s.sameDay = prepare(shard, name + "SAME_DAY", SAME_DAY);
+      s.addCapacity = prepare(shard, name + "ADD_CAPACITY", ADD_CAPACITY);
+      s.takeSeat = prepare(shard, name + "TAKE_SEAT", TAKE_SEAT);
+      s.returnSeat = prepare(shard, name + "RETURN_SEAT", RETURN_SEAT);
+      s.insertReservation = prepare(shard, name + "INSERT_RESERVATION", INSERT_RESERVATION);
+      s.userReservations = prepare(shard, name + "USER_RESERVATIONS", USER_RESERVATIONS);
+      s.findReservation = prepare(shard, name + "FIND_RESERVATION", FIND_RESERVATION);
+      s.markPaid = prepare(shard, name + "MARK_PAID", MARK_PAID);
+      s.markUnpaid = prepare(shard, name + "MARK_UNPAID", MARK_UNPAID);
+      s.deleteReservation = prepare(shard, name + "DELETE_RESERVATION", DELETE_RESERVATION);
+      s.clearReservations = prepare(shard, name + "CLEAR_RESERVATIONS", CLEAR_RESERVATIONS);
+      s.clearCapacity = prepare(shard, name + "CLEAR_CAPACITY", CLEAR_CAPACITY);
+      onShard[i] = s;
+    }
+  }
+
+  void closeConnection() throws Exception
+  {
+    // closes the statements, the shards' among them, before their connections
+    super.closeConnection();
+    for (Connection shard : shards)
+      shard.close();
+  }
+
+  void clearTables()
+  {
+    try
+    {
+      for (ShardStatements s : onShard)
+      {
+        s.clearReservations.executeUpdate();
+        s.clearCapacity.executeUpdate();
+      }
+      clearUsersStatement.executeUpdate();
+      resetRidsStatement.executeUpdate();
+      if (users != null)
+        users.clear();
+    }
+    catch (SQLException e)
+    {
+      EventLog.error(e);
+    }
+  }
+
+  String transaction_book(int itineraryId)
+  {
+    if (username == null)
+      return "Cannot book reservations, not logged in\n";
+    ArrayList<Query.Flight> itinerary = searchFlights.get(itineraryId);
+    if (itinerary == null)
+      return "No such itinerary " + itineraryId + "\n";
+    return bookSearched(itinerary);
+  }
+
+  String book(ArrayList<Query.Flight> itinerary)
+  {
+    if (itinerary.size() > MAX_BOOKED_FLIGHTS)
+      return TOO_MANY_FLIGHTS;
+    int day = shardOf(itinerary.get(0).dayOfMonth);
+    Connection shard = shards[day];
+    try
+    {
+      int rid;
+      shard.setAutoCommit(false);
+      try
+      {
+        String failed = reserve(day, itinerary);
+        if (failed != null)
+        {
+          shard.rollback();
+          return failed;
+        }
+        rid = insert(day, itinerary);
+        shard.commit();
+        Metrics.COMMITS.increment();
+      }
+      catch (SQLException e)
+      {
+        shard.rollback();
+        Metrics.ROLLBACKS.increment();
+        throw e;
+      }
+      finally
+      {
+        shard.setAutoCommit(true);
+      }
+      lastWrite = System.nanoTime();
+      return "Booked flight(s), reservation ID: " + rid + "\n";
+    }
+    catch (SQLException e)
+    {
+      countDeadlock(e);
+      EventLog.error(e);
+      return "Booking failed\n";
+    }
+  }
+
+  /**
+   * Books the legs in one local transaction when both days live on the same shard. Otherwise
+   * both shards' transactions do all their work, holding their locks, before either commits;
+   * should the second commit still fail, the committed outbound reservation is canceled again.
+   */
+  String bookRoundTrip(ArrayList<Query.Flight> outbound, ArrayList<Query.Flight> inbound)
+  {
+    if (outbound.size() > MAX_BOOKED_FLIGHTS || inbound.size() > MAX_BOOKED_FLIGHTS)
+      return TOO_MANY_FLIGHTS;
+    int out = shardOf(outbound.get(0).dayOfMonth);
+    int back = shardOf(inbound.get(0).dayOfMonth);
+    Connection first = shards[out];
+    Connection second = shards[back];
+    try
+    {
+      int rid1 = 0;
+      int rid2;
+      boolean outboundCommitted = false;
+      first.setAutoCommit(false);
+      second.setAutoCommit(false);
+      try
+      {
+        String failed = reserve(out, outbound);
+        if (failed == null)
+          failed = reserve(back, inbound);
+        if (failed != null)
+        {
+          first.rollback();
+          second.rollback();
+          return failed;
+        }
+        // ids only once both legs are sure to be inserted, so that failed bookings use none up
+        rid1 = insert(out, outbound);
+        rid2 = insert(back, inbound);
+        first.commit();
+        Metrics.COMMITS.increment();
+        outboundCommitted = true;
+        if (second != first)
+        {
+          second.commit();
+          Metrics.COMMITS.increment();
+        }
+      }
+      catch (SQLException e)
+      {
+        second.rollback();
+        if (!outboundCommitted)
+          first.rollback();
+        Metrics.ROLLBACKS.increment();
+        if (outboundCommitted)
+          transaction_cancel(rid1);
+        throw e;
+      }
+      finally
+      {
+        first.setAutoCommit(true);
+        second.setAutoCommit(true);
+      }
+      lastWrite = System.nanoTime();
+      return "Booked round trip, reservation IDs: " + rid1 + ", " + rid2 + "\n";
+    }
+    catch (SQLException e)
+    {
+      countDeadlock(e);
+      EventLog.error(e);
+      return "Booking failed\n";
+    }
+  }
+
+  private int nextRid() throws SQLException
+  {
+    try (ResultSet rs = nextRidStatement.executeQuery())
+    {
+      rs.next();
+      return rs.getInt(1);
+    }
+  }
+
+  /**
+   * Checks the day and takes the seats of {@code itinerary} in the open transaction of
+   * shard {@code shard}.
+   *
+   * @return null, or the response if the user already has a reservation that day or a flight
+   * is full
+   */
+  private String reserve(int shard, ArrayList<Query.Flight> itinerary) throws SQLException
+  {
+    PreparedStatement ps = onShard[shard].sameDay;
+    ps.setString(1, username);
+    ps.setInt(2, itinerary.get(0).dayOfMonth);
+    try (ResultSet rs = ps.executeQuery())
+    {
+      if (rs.next())
+        return "You cannot book two flights in the same day\n";
+    }
+    for (Query.Flight f : itinerary)
+    {
+      if (!takeSeat(shard, f))
+      {
+        Metrics.NO_SEAT.increment();
+        return "Booking failed\n";
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Inserts a reservation for {@code itinerary}, whose seats {@link #reserve} has taken, in the
+   * open transaction of shard {@code shard}. The id is drawn from the sequence only now, so that
+   * bookings that fail their checks do not leave gaps in the ids.
+   *
+   * @return the reservation id
+   */
+  private int insert(int shard, ArrayList<Query.Flight> itinerary) throws SQLException
+  {
+    Query.Flight first = itinerary.get(0);
+    Query.Flight second = itinerary.size() > 1 ? itinerary.get(1) : null;
+    int rid = nextRid();
+    PreparedStatement ps = onShard[shard].insertReservation;
+    ps.setInt(1, rid);
+    ps.setString(2, username);
+    ps.setInt(3, first.dayOfMonth);
+    ps.setInt(4, first.fid);
+    ps.setInt(5, second == null ? 0 : second.fid);
+    ps.setInt(6, first.price);
+    ps.setInt(7, second == null ? 0 : second.price);
+    ps.executeUpdate();
+    return rid;
+  }
+
+  // creates the flight's seat count on first booking and takes one seat if any is left
+  private boolean takeSeat(int shard, Query.Flight f) throws SQLException
+  {
+    ShardStatements s = onShard[shard];
+    s.addCapacity.setInt(1, f.fid);
+    s.addCapacity.setInt(2, f.capacity);
+    s.addCapacity.setInt(3, f.fid);
+    s.addCapacity.executeUpdate();
+    s.takeSeat.setInt(1, f.fid);
+    return s.takeSeat.executeUpdate() == 1;
+  }
+
+  String transaction_reservations()
+  {
+    if (username == null)
+      return "Cannot view reservations, not logged in\n";
+    try
+    {
+      TreeMap<Integer, Row> rows = new TreeMap<Integer, Row>();
+      for (List<Row> found : onAllShards(username, 0))
+      {
+        for (Row r : found)
+          rows.put(r.rid, r);
+      }
+      if (rows.isEmpty())
+        return "No reservations found\n";
+
+      ResponseWriter sb = out.reset();
+      for (Row r : rows.values())
+      {
+        sb.append(ResponseWriter.RESERVATION).append(r.rid).append(ResponseWriter.PAID)
+                .append(r.paid).append(ResponseWriter.COLON_NEWLINE);
+        FlightLines.write(sb, flightText(flightStatement, r.fid1));
+        if (r.fid2 != 0)
+          FlightLines.write(sb, flightText(flightStatement, r.fid2));
+      }
+      return sb.toString();
+    }
+    catch (SQLException e)
+    {
+      countDeadlock(e);
+      EventLog.error(e);
+      return "Failed to retrieve reservations\n";
+    }
+  }
+
+  String transaction_cancel(int reservationId)
+  {
+    if (username == null)
+      return "Cannot cancel reservations, not logged in\n";
+    try
+    {
+      Row r = find(reservationId);
+      if (r == null)
+        return "Failed to cancel reservation " + reservationId + "\n";
+
+      // refund before the delete, so that a failure after it cannot keep the money
+      int refunded = r.paid ? r.price1 + r.price2 : 0;
+      if (refunded > 0)
+        refund(refunded);
+
+      Connection shard = shards[r.shard];
+      ShardStatements on = onShard[r.shard];
+      Row deleted = null;
+      SQLException failure = null;
+      shard.setAutoCommit(false);
+      try
+      {
+        on.deleteReservation.setInt(1, reservationId);
+        on.deleteReservation.setString(2, username);
+        try (ResultSet rs = on.deleteReservation.executeQuery())
+        {
+          if (rs.next())
+          {
+            deleted = new Row();
+            deleted.fid1 = rs.getInt("fid1");
+            deleted.fid2 = rs.getInt("fid2");
+            deleted.price1 = rs.getInt("price1");
+            deleted.price2 = rs.getInt("price2");
+            deleted.paid = rs.getInt("paid") == 1;
+          }
+        }
+        if (deleted == null)
+        {
+          // canceled concurrently
+          shard.rollback();
+        }
+        else
+        {
+          returnSeat(r.shard, deleted.fid1);
+          if (deleted.fid2 != 0)
+            returnSeat(r.shard, deleted.fid2);
+          shard.commit();
+          Metrics.COMMITS.increment();
+        }
+      }
+      catch (SQLException e)
+      {
+        shard.rollback();
+        Metrics.ROLLBACKS.increment();
+        deleted = null;
+        failure = e;
+      }
+      finally
+      {
+        shard.setAutoCommit(true);
+      }
+
+      if (deleted == null)
+      {
+        try
+        {
+          takeBack(r, refunded);
+        }
+        catch (SQLException e)
+        {
+          if (failure == null)
+            throw e;
+          failure.addSuppressed(e);
+        }
+        if (failure != null)
+          throw failure;
+        return "Failed to cancel reservation " + reservationId + "\n";
+      }
+
+      if (deleted.paid && refunded == 0)
+      {
+        // paid after it was looked up; the reservation is gone, so report the cancel whatever happens
+        try
+        {
+          refund(deleted.price1 + deleted.price2);
+        }
+        catch (SQLException e)
+        {
+          EventLog.error(e);
+        }
+      }
+      lastWrite = System.nanoTime();
+      return "Canceled reservation " + reservationId + "\n";
+    }
+    catch (SQLException e)
+    {
+      countDeadlock(e);
+      EventLog.error(e);
+      return "Failed to cancel reservation " + reservationId + "\n";
+    }
+  }
+
+  private void returnSeat(int shard, int fid) throws SQLException
+  {
+    onShard[shard].returnSeat.setInt(1, fid);
+    onShard[shard].returnSeat.executeUpdate();
+  }
+
+  String transaction_pay(int reservationId)
+  {
+    if (username == null)
+      return "Cannot pay, not logged in\n";
+    try
+    {
+      Row r = find(reservationId);
+      if (r == null || r.paid)
+        return "Cannot find unpaid reservation " + reservationId + " under user: " + username + "\n";
+      int cost = r.price1 + r.price2;
+
+      int balance;
+      debitStatement.setInt(1, cost);
+      debitStatement.setString(2, username);
+      debitStatement.setInt(3, cost);
+      try (ResultSet rs = debitStatement.executeQuery())
+      {
+        if (!rs.next())
+          return "User has only " + balance() + " in account but itinerary costs " + cost + "\n";
+        balance = rs.getInt(1);
+      }
+
+      boolean marked;
+      try
+      {
+        onShard[r.shard].markPaid.setInt(1, reservationId);
+        marked = onShard[r.shard].markPaid.executeUpdate() == 1;
+      }
+      catch (SQLException e)
+      {
+        // the shard failed: give the money back unless the reservation did get marked paid
+        Row now = null;
+        try
+        {
+          now = find(reservationId);
+        }
+        catch (SQLException again)
+        {
+          e.addSuppressed(again);
+        }
+        if (now == null || !now.paid)
+          refund(cost);
+        throw e;
+      }
+      finally
+      {
+        lastWrite = System.nanoTime();
+      }
+      if (!marked)
+      {
+        // paid or canceled concurrently: give the money back
+        refund(cost);
+        return "Cannot find unpaid reservation " + reservationId + " under user: " + username + "\n";
+      }
+      return "Paid reservation: " + reservationId + " remaining balance: " + balance + "\n";
+    }
+    catch (SQLException e)
+    {
+      countDeadlock(e);
+      EventLog.error(e);
+      return "Failed to pay for reservation " + reservationId + "\n";
+    }
+  }
+
+  /**
+   * Takes back the refund of a cancel that did not delete reservation {@code r}. The balance
+   * must still cover it, checked by the debit itself; if the user has spent the refund since,
+   * the reservation is marked unpaid instead, so that the balance never goes negative and the
+   * user is not left with both the money and a paid reservation.
+   */
+  private void takeBack(Row r, int refunded) throws SQLException
+  {
+    if (refunded == 0)
+      return;
+    debitStatement.setInt(1, refunded);
+    debitStatement.setString(2, username);
+    debitStatement.setInt(3, refunded);
+    try (ResultSet rs = debitStatement.executeQuery())
+    {
+      if (rs.next())
+        return;
+    }
+    PreparedStatement unpay = onShard[r.shard].markUnpaid;
+    unpay.setInt(1, r.rid);
+    if (unpay.executeUpdate() == 0)
+      EventLog.warn("Cannot take back the refund of reservation " + r.rid + " from " + username);
+  }
+
+  // adds amount to the balance of the user on the global shard
+  private void refund(int amount) throws SQLException
+  {
+    if (amount == 0)
+      return;
+    refundStatement.setInt(1, amount);
+    refundStatement.setString(2, username);
+    refundStatement.executeUpdate();
+  }
+
+  private int balance() throws SQLException
+  {
+    balanceStatement.setString(1, username);
+    try (ResultSet rs = balanceStatement.executeQuery())
+    {
+      return rs.next() ? rs.getInt(1) : 0;
+    }
+  }
+
+  // the user's reservation with id rid, looked up on all shards at once
+  private Row find(int rid) throws SQLException
+  {
+    for (List<Row> found : onAllShards(username, rid))
+    {
+      if (!found.isEmpty())
+        return found.get(0);
+    }
+    return null;
+  }
+
+  /**
+   * Looks up the reservation {@code rid} of {@code user}, or with {@code rid} 0 all of the user's
+   * reservations, on every shard in parallel.
+   *
+   * @return the rows found, per shard
+   */
+  private List<List<Row>> onAllShards(String user, int rid) throws SQLException
+  {
+    List<Future<List<Row>>> pending = new ArrayList<Future<List<Row>>>();
+    for (int i = 0; i < shards.length; i++)
+    {
+      int shard = i;
+      pending.add(fanOut.submit(() -> query(shard, user, rid)));
+    }
+
+    List<List<Row>> results = new ArrayList<List<Row>>();
+    SQLException failure = null;
+    for (Future<List<Row>> f : pending)
+    {
+      try
+      {
+        results.add(f.get());
+      }
+      catch (ExecutionException e)
+      {
+        if (failure == null)
+          failure = e.getCause() instanceof SQLException ? (SQLException) e.getCause() : new SQLException(e.getCause());
+      }
+      catch (InterruptedException e)
+      {
+        Thread.currentThread().interrupt();
+        throw new SQLException("interrupted waiting for shards", e);
+      }
+    }
+    if (failure != null)
+      throw failure;
+    return results;
+  }
+
+  private List<Row> query(int shard, String user, int rid) throws SQLException
+  {
+    List<Row> rows = new ArrayList<Row>();
+    PreparedStatement ps = rid != 0 ? onShard[shard].findReservation : onShard[shard].userReservations;
+    int p = 1;
+    if (rid != 0)
+      ps.setInt(p++, rid);
+    ps.setString(p, user);
+    try (ResultSet rs = ps.executeQuery())
+    {
+      while (rs.next())
+      {
+        Row r = new Row();
+        r.shard = shard;
+        r.rid = rs.getInt("rid");
+        r.day = rs.getInt("day");
+        r.fid1 = rs.getInt("fid1");
+        r.fid2 = rs.getInt("fid2");
+        r.price1 = rs.getInt("price1");
+        r.price2 = rs.getInt("price2");
+        r.paid = rs.getInt("paid") == 1;
+        rows.add(r);
+      }
+    }
+    return rows;
+  }
+}
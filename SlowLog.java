@@ -0,0 +1,134 @@
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLWarning;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Process-wide log of prepared statement executions slower than
+ * {@code flightservice.slowlog.millis}, with the parameters they ran with.
+ *
+ * The timing proxy of {@code Metrics.timed} compares every execution against the threshold,
+ * which is a single comparison; the entry is only formatted and written once a statement turns
+ * out to be slow. The log is rotated when it grows past {@code flightservice.slowlog.maxBytes},
+ * keeping {@code flightservice.slowlog.files} old files as {@code <file>.1}, {@code <file>.2}
+ * and so on.
+ *
+ * With {@code flightservice.slowlog.statistics} the JDBC sessions run
+ * {@code SET STATISTICS IO, TIME ON}, and the server's CPU, elapsed time and logical reads of a
+ * slow statement, which SQL Server sends as informational messages, are logged with it. Queries
+ * only receive the I/O statistics once their results are read, so those entries are written
+ * when the statement is next executed or closed.
+ */
+class SlowLog
+{
+  // threshold in nanoseconds; Long.MAX_VALUE while the log is off
+  private static volatile long thresholdNanos = Long.MAX_VALUE;
+  private static volatile boolean statistics;
+
+  private static RollingFile out;
+
+  private SlowLog()
+  {
+  }
+
+  /**
+   * Opens the log if the first configuration seen sets {@code flightservice.slowlog.millis}.
+   */
+  static synchronized void configure(Properties configProps) throws IOException
+  {
+    if (out != null)
+      return;
+    String millis = configProps.getProperty("flightservice.slowlog.millis");
+    if (millis == null || millis.trim().isEmpty())
+      return;
+    out = new RollingFile(configProps.getProperty("flightservice.slowlog.file", "slow.log"),
+            Long.parseLong(configProps.getProperty("flightservice.slowlog.maxBytes", "10485760").trim()),
+            Integer.parseInt(configProps.getProperty("flightservice.slowlog.files", "5").trim()));
+    statistics = Boolean.parseBoolean(configProps.getProperty("flightservice.slowlog.statistics", "false").trim());
+    thresholdNanos = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(millis.trim()));
+  }
+
+  /**
+   * @return whether an execution that took {@code nanos} belongs in the log
+   */
+  static boolean slow(long nanos)
+  {
+    return nanos >= thresholdNanos;
+  }
+
+  /**
+   * @return whether slow statements are logged with server statistics, so that their warnings
+   * must be cleared before each execution
+   */
+  static boolean statistics()
+  {
+    return statistics;
+  }
+
+  /**
+   * Turns on the server statistics of {@code conn} if they are to be logged.
+   */
+  static void enableStatistics(Connection conn) throws SQLException
+  {
+    if (!statistics)
+      return;
+    try (Statement s = conn.createStatement())
+    {
+      s.execute("SET STATISTICS IO, TIME ON");
+    }
+  }
+
+  /**
+   * One slow execution, written once its statistics are in.
+   */
+  static final class Entry
+  {
+    private final long at = System.currentTimeMillis();
+    private final String name;
+    private final String sql;
+    private final List<Object> parameters;
+    private final long nanos;
+
+    Entry(String name, String sql, List<Object> parameters, long nanos)
+    {
+      this.name = name;
+      this.sql = sql;
+      this.parameters = new ArrayList<>(parameters);
+      this.nanos = nanos;
+    }
+
+    /**
+     * Writes the entry with the messages of {@code warnings}, if any.
+     */
+    void write(SQLWarning warnings)
+    {
+      StringBuilder sb = new StringBuilder();
+      sb.append(String.format("%tF %<tT.%<tL %s %.3f ms %s%n", at, name, nanos / 1e6, parameters));
+      if (sql != null)
+        sb.append("  ").append(sql.replaceAll("\\s+", " ").trim()).append('\n');
+      for (SQLWarning w = warnings; w != null; w = w.getNextWarning())
+        sb.append("  ").append(w.getMessage().trim()).append('\n');
+      append(sb.toString());
+    }
+  }
+
+  private static synchronized void append(String text)
+  {
+    if (out == null)
+      return;
+    try
+    {
+      out.write(text);
+      out.flush();
+    }
+    catch (IOException e)
+    {
+      // the log is best effort; statements must not fail because of it
+    }
+  }
+}
@@ -0,0 +1,229 @@
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Process-wide cache of user credentials, so that repeated logins and attempts to create
+ * existing users are answered without the database.
+ *
+ * Users who logged in or were created are remembered with a random salt and the SHA-256 hash of
+ * salt and password, never the password itself; a later login is verified against the hash.
+ * Names the database reported as unknown are remembered too, for
+ * {@code flightservice.users.negativeTtlMillis}, so that login storms for names that do not
+ * exist stay off the database. Both kinds of entry share one LRU bound of
+ * {@code flightservice.users.cacheSize}, split evenly over 16 stripes with a lock each, so that
+ * sessions of different users rarely wait for each other. Known users expire after
+ * {@code flightservice.users.ttlMillis}, which bounds how long users created or cleared by
+ * another process can be misjudged. Passwords never change and balances are not cached (they
+ * are read under the payment's lock), so nothing needs to be written through.
+ *
+ * Names and passwords are compared in lower case, like the database's default collation.
+ */
+class UserCache
+{
+  private static final LongAdder HITS = Metrics.counter("cache.users.hits");
+  private static final LongAdder MISSES = Metrics.counter("cache.users.misses");
+  private static final LongAdder NEGATIVE_HITS = Metrics.counter("cache.users.negativeHits");
+
+  private static volatile UserCache shared;
+
+  private static final SecureRandom random = new SecureRandom();
+
+  // a power of two; each stripe is an LRU map with its own lock and share of the size
+  private static final int STRIPES = 16;
+
+  // a known user, or with hash null a name that does not exist
+  private static final class Entry
+  {
+    final byte[] salt;
+    final byte[] hash;
+    final long expires;
+
+    Entry(byte[] salt, byte[] hash, long expires)
+    {
+      this.salt = salt;
+      this.hash = hash;
+      this.expires = expires;
+    }
+  }
+
+  private final Map<String, Entry>[] stripes;
+  private final long ttlNanos;
+  private final long negativeTtlNanos;
+
+  @SuppressWarnings("unchecked")
+  private UserCache(int size, long ttlMillis, long negativeTtlMillis)
+  {
+    int perStripe = Math.max(1, (size + STRIPES - 1) / STRIPES);
+    this.stripes = new Map[STRIPES];
+    for (int i = 0; i < STRIPES; i++)
+    {
+      stripes[i] = new LinkedHashMap<String, Entry>(16, 0.75f, true)
+      {
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest)
+        {
+          return size() > perStripe;
+        }
+      };
+    }
+    this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+    this.negativeTtlNanos = TimeUnit.MILLISECONDS.toNanos(negativeTtlMillis);
+  }
+
+  /**
+   * @return the cache of this process, created from the first configuration that enables it,
+   * or null unless {@code flightservice.users.cacheSize} is set
+   */
+  static UserCache open(Properties configProps)
+  {
+    UserCache c = shared;
+    if (c != null)
+      return c;
+    int size = Integer.parseInt(configProps.getProperty("flightservice.users.cacheSize", "0").trim());
+    if (size <= 0)
+      return null;
+    synchronized (UserCache.class)
+    {
+      if (shared == null)
+      {
+        shared = new UserCache(size,
+                Long.parseLong(configProps.getProperty("flightservice.users.ttlMillis", "300000").trim()),
+                Long.parseLong(configProps.getProperty("flightservice.users.negativeTtlMillis", "10000").trim()));
+      }
+      return shared;
+    }
+  }
+
+  // the stripe of username, which is also the lock of its entries
+  private Map<String, Entry> stripe(String username)
+  {
+    int h = username.hashCode();
+    return stripes[(h ^ (h >>> 16)) & (STRIPES - 1)];
+  }
+
+  private Entry get(String username)
+  {
+    Map<String, Entry> entries = stripe(username);
+    synchronized (entries)
+    {
+      Entry e = entries.get(username);
+      if (e != null && System.nanoTime() - e.expires > 0)
+      {
+        entries.remove(username);
+        return null;
+      }
+      return e;
+    }
+  }
+
+  private void put(String username, Entry e)
+  {
+    Map<String, Entry> entries = stripe(username);
+    synchronized (entries)
+    {
+      entries.put(username, e);
+    }
+  }
+
+  // puts e unless username has an entry that has not expired
+  private void putIfAbsent(String username, Entry e)
+  {
+    Map<String, Entry> entries = stripe(username);
+    synchronized (entries)
+    {
+      if (get(username) == null)
+        entries.put(username, e);
+    }
+  }
+
+  /**
+   * @return true if {@code password} is the password of {@code username}, false if it is not or
+   * the user does not exist, or null if the database has to be asked
+   */
+  Boolean login(String username, String password)
+  {
+    Entry e = get(username.toLowerCase());
+    if (e == null)
+    {
+      MISSES.increment();
+      return null;
+    }
+    if (e.hash == null)
+    {
+      NEGATIVE_HITS.increment();
+      return false;
+    }
+    HITS.increment();
+    return MessageDigest.isEqual(e.hash, hash(e.salt, password));
+  }
+
+  /**
+   * @return whether {@code username} is known to exist, so that creating it must fail
+   */
+  boolean exists(String username)
+  {
+    Entry e = get(username.toLowerCase());
+    if (e == null || e.hash == null)
+    {
+      MISSES.increment();
+      return false;
+    }
+    HITS.increment();
+    return true;
+  }
+
+  /**
+   * Remembers that {@code username} exists with {@code password}, after the database confirmed
+   * a login or created the user.
+   */
+  void found(String username, String password)
+  {
+    byte[] salt = new byte[16];
+    random.nextBytes(salt);
+    put(username.toLowerCase(), new Entry(salt, hash(salt, password), System.nanoTime() + ttlNanos));
+  }
+
+  /**
+   * Remembers for a while that the database has no user {@code username}, unless the name is
+   * already cached: another session may have created the user since the database was asked.
+   */
+  void missing(String username)
+  {
+    if (negativeTtlNanos > 0)
+      putIfAbsent(username.toLowerCase(), new Entry(null, null, System.nanoTime() + negativeTtlNanos));
+  }
+
+  /**
+   * Forgets everything, after the users table was cleared.
+   */
+  void clear()
+  {
+    for (Map<String, Entry> entries : stripes)
+    {
+      synchronized (entries)
+      {
+        entries.clear();
+      }
+    }
+  }
+
+  private static byte[] hash(byte[] salt, String password)
+  {
+    try
+    {
+      MessageDigest sha = MessageDigest.getInstance("SHA-256");
+      sha.update(salt);
+      return sha.digest(password.toLowerCase().getBytes(StandardCharsets.UTF_8));
+    }
+    catch (NoSuchAlgorithmException e)
+    {
+      throw new IllegalStateException(e); // every JVM has SHA-256
+    }
+  }
+}
@@ -0,0 +1,269 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Minimal micro-benchmark harness in the spirit of JMH: warmup and measurement iterations,
+ * a blackhole for results, and GC / allocation profiling through the platform MXBeans.
+ *
+ * Results are printed as a table and can be written to a file, and a previous result file
+ * can be given as a baseline to print the relative change of every benchmark.
+ */
+public class Bench
+{
+  /**
+   * A single benchmark. {@code invoke} is the measured operation; everything else is untimed.
+   */
+  static abstract class Benchmark
+  {
+    final String name;
+
+    Benchmark (String name)
+    {
+      this.name = name;
+    }
+
+    void setUp () throws Exception {}
+
+    /**
+     * Untimed work before every invocation. Benchmarks that override this are timed one
+     * invocation at a time, like JMH's {@code Level.Invocation}, so keep them to slow operations.
+     */
+    void beforeInvocation () throws Exception {}
+
+    boolean perInvocation ()
+    {
+      return false;
+    }
+
+    abstract Object invoke () throws Exception;
+
+    void tearDown () throws Exception {}
+  }
+
+  static class Result
+  {
+    String name;
+    long ops;
+    double nsPerOp;
+    double error;
+    double bytesPerOp;
+    long gcCount;
+    long gcMillis;
+  }
+
+  int warmupIterations = 3;
+  int iterations = 5;
+  long iterationMillis = 1000;
+  Pattern filter = Pattern.compile(".*");
+
+  // results are folded into this so the JIT cannot drop the benchmarked work
+  private int blackhole;
+
+  private final com.sun.management.ThreadMXBean threads =
+          (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+  List<Result> run (List<Benchmark> benchmarks) throws Exception
+  {
+    List<Result> results = new ArrayList<>();
+    for (Benchmark b : benchmarks)
+    {
+      if (!filter.matcher(b.name).find())
+        continue;
+
+      System.out.println("# Benchmark: " + b.name);
+      b.setUp();
+      try
+      {
+        for (int i = 0; i < warmupIterations; i++)
+        {
+          double ns = iteration(b, null);
+          System.out.printf("# Warmup Iteration %d: %.1f ns/op%n", i + 1, ns);
+        }
+
+        Result r = new Result();
+        r.name = b.name;
+        double[] samples = new double[iterations];
+        long gcCount = gcCount(), gcMillis = gcMillis();
+        for (int i = 0; i < iterations; i++)
+        {
+          samples[i] = iteration(b, r);
+          System.out.printf("Iteration %d: %.1f ns/op%n", i + 1, samples[i]);
+        }
+        r.gcCount = gcCount() - gcCount;
+        r.gcMillis = gcMillis() - gcMillis;
+        r.nsPerOp = mean(samples);
+        r.error = stddev(samples, r.nsPerOp);
+        r.bytesPerOp = r.ops == 0 ? 0 : r.bytesPerOp / r.ops;
+        results.add(r);
+      }
+      finally
+      {
+        b.tearDown();
+      }
+    }
+    return results;
+  }
+
+  /**
+   * Runs one iteration and returns its ns/op. When {@code r} is non-null the op count and
+   * allocated bytes are accumulated into it.
+   */
+  private double iteration (Benchmark b, Result r) throws Exception
+  {
+    long deadline = System.nanoTime() + iterationMillis * 1_000_000L;
+    long ops = 0;
+    long timed = 0;
+    long allocated = 0;
+
+    if (b.perInvocation())
+    {
+      while (System.nanoTime() < deadline)
+      {
+        b.beforeInvocation();
+        long a0 = threads.getCurrentThreadAllocatedBytes();
+        long t0 = System.nanoTime();
+        consume(b.invoke());
+        timed += System.nanoTime() - t0;
+        allocated += threads.getCurrentThreadAllocatedBytes() - a0;
+        ops++;
+      }
+    }
+    else
+    {
+      long a0 = threads.getCurrentThreadAllocatedBytes();
+      long t0 = System.nanoTime();
+      do
+      {
+        // check the clock every 64 ops to keep its cost out of short benchmarks
+        for (int i = 0; i < 64; i++)
+          consume(b.invoke());
+        ops += 64;
+      } while (System.nanoTime() < deadline);
+      timed = System.nanoTime() - t0;
+      allocated = threads.getCurrentThreadAllocatedBytes() - a0;
+    }
+
+    if (r != null)
+    {
+      r.ops += ops;
+      r.bytesPerOp += allocated;
+    }
+    return (double) timed / ops;
+  }
+
+  private void consume (Object o)
+  {
+    blackhole ^= System.identityHashCode(o);
+  }
+
+  private static long gcCount ()
+  {
+    long n = 0;
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+      n += Math.max(0, gc.getCollectionCount());
+    return n;
+  }
+
+  private static long gcMillis ()
+  {
+    long n = 0;
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+      n += Math.max(0, gc.getCollectionTime());
+    return n;
+  }
+
+  private static double mean (double[] xs)
+  {
+    double s = 0;
+    for (double x : xs)
+      s += x;
+    return s / xs.length;
+  }
+
+  private static double stddev (double[] xs, double mean)
+  {
+    if (xs.length < 2)
+      return 0;
+    double s = 0;
+    for (double x : xs)
+      s += (x - mean) * (x - mean);
+    return Math.sqrt(s / (xs.length - 1));
+  }
+
+  static final String HEADER = String.format("%-40s %14s %10s %14s %9s %10s",
+          "Benchmark", "ns/op", "error", "alloc B/op", "gc.count", "gc.ms");
+
+  static String format (Result r)
+  {
+    return String.format("%-40s %14.1f %10.1f %14.1f %9d %10d",
+            r.name, r.nsPerOp, r.error, r.bytesPerOp, r.gcCount, r.gcMillis);
+  }
+
+  static void print (List<Result> results, Map<String, Result> baseline)
+  {
+    System.out.println();
+    System.out.println(HEADER + (baseline == null ? "" : String.format(" %10s %10s", "vs.ns", "vs.alloc")));
+    for (Result r : results)
+    {
+      String line = format(r);
+      if (baseline != null)
+      {
+        Result b = baseline.get(r.name);
+        line += b == null ? String.format(" %10s %10s", "-", "-")
+                : String.format(" %+9.1f%% %+9.1f%%", change(b.nsPerOp, r.nsPerOp), change(b.bytesPerOp, r.bytesPerOp));
+      }
+      System.out.println(line);
+    }
+  }
+
+  private static double change (double before, double after)
+  {
+    return before == 0 ? 0 : (after - before) * 100.0 / before;
+  }
+
+  static void write (List<Result> results, String filename) throws IOException
+  {
+    try (PrintWriter w = new PrintWriter(new FileWriter(filename)))
+    {
+      w.println("# " + System.getProperty("java.vm.name") + " " + System.getProperty("java.version")
+              + ", " + Runtime.getRuntime().availableProcessors() + " cpus");
+      w.println("# " + HEADER);
+      for (Result r : results)
+        w.println(format(r));
+    }
+  }
+
+  static Map<String, Result> read (String filename) throws IOException
+  {
+    Map<String, Result> results = new HashMap<>();
+    try (BufferedReader r = new BufferedReader(new FileReader(filename)))
+    {
+      String l;
+      while ((l = r.readLine()) != null)
+      {
+        if (l.startsWith("#") || l.trim().isEmpty())
+          continue;
+        String[] cols = l.trim().split("\\s+");
+        Result res = new Result();
+        res.name = cols[0];
+        res.nsPerOp = Double.parseDouble(cols[1]);
+        res.error = Double.parseDouble(cols[2]);
+        res.bytesPerOp = Double.parseDouble(cols[3]);
+        res.gcCount = Long.parseLong(cols[4]);
+        res.gcMillis = Long.parseLong(cols[5]);
+        results.put(res.name, res);
+      }
+    }
+    return results;
+  }
+}
@@ -0,0 +1,283 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+/**
+ * Benchmarks for the hot paths of {@code FlightService} and {@code Query}.
+ *
+ * Usage: java QueryBenchmarks [-wi warmups] [-i iterations] [-t millis per iteration]
+ *                             [-f name regex] [-o result file] [-baseline result file]
+ *                             [-config dbconn.properties]
+ *
+ * The end-to-end benchmarks only run when {@code -config} points at a database; use a local
+ * instance loaded with the flights dataset, never the shared one.
+ */
+public class QueryBenchmarks
+{
+  static final String[] COMMANDS = {
+          "search \"Seattle WA\" \"Boston MA\" 1 1 1",
+          "search \"Kahului HI\" \"Los Angeles CA\" 0 6 7",
+          "create user1 user1 10000",
+          "login user1 user1",
+          "book 5",
+          "pay 1",
+          "reservations",
+          "cancel 1",
+          "quit",
+  };
+
+  // commands that are answered without touching the database on a session that is not logged in
+  static final String[] OFFLINE_COMMANDS = {
+          "book 5",
+          "pay 1",
+          "reservations",
+          "cancel 1",
+          "quit",
+          "search \"Seattle WA\" \"Boston MA\" 1 1",
+          "bogus",
+  };
+
+  static List<Bench.Benchmark> offline ()
+  {
+    List<Bench.Benchmark> benchmarks = new ArrayList<>();
+
+    benchmarks.add(new Bench.Benchmark("FlightService.tokenize")
+    {
+      int i;
+
+      Object invoke ()
+      {
+        return FlightService.tokenize(COMMANDS[i++ % COMMANDS.length]);
+      }
+    });
+
+    benchmarks.add(new Bench.Benchmark("FlightService.execute.dispatch")
+    {
+      Query q = new Query(FlightService.DBCONFIG_FILENAME);
+      int i;
+
+      Object invoke ()
+      {
+        return FlightService.execute(q, OFFLINE_COMMANDS[i++ % OFFLINE_COMMANDS.length]);
+      }
+    });
+
+    for (int n : new int[] { 1, 10, 100 })
+      benchmarks.add(assorter(n));
+
+    return benchmarks;
+  }
+
+  /**
+   * Renders {@code n} itineraries, a mix of direct and one-stop, like a search for n results.
+   */
+  static Bench.Benchmark assorter (final int n)
+  {
+    return new Bench.Benchmark("Query.flightAssorter.n" + n)
+    {
+      Query q = new Query(FlightService.DBCONFIG_FILENAME);
+      TreeMap<Integer, ArrayList<Query.Flight>> itineraries = new TreeMap<>();
+
+      void setUp ()
+      {
+        Random rnd = new Random(42);
+        for (int i = 0; i < n; i++)
+        {
+          int time = 60 + rnd.nextInt(600);
+          ArrayList<Query.Flight> group = itineraries.computeIfAbsent(time, k -> new ArrayList<>());
+          if (i % 2 == 0)
+            group.add(flight(rnd, 100000 + i, "Seattle WA", "Boston MA", time));
+          else
+          {
+            int first = time / 3;
+            group.add(flight(rnd, 200000 + i, "Seattle WA", "Chicago IL", first));
+            group.add(flight(rnd, 300000 + i, "Chicago IL", "Boston MA", time - first));
+          }
+        }
+      }
+
+      Object invoke ()
+      {
+        return q.flightAssorter(itineraries, "Boston MA");
+      }
+    };
+  }
+
+  static Query.Flight flight (Random rnd, int fid, String origin, String dest, int time)
+  {
+    Query.Flight f = new Query.Flight();
+    f.fid = fid;
+    f.dayOfMonth = 1 + rnd.nextInt(31);
+    f.carrierId = "AS";
+    f.flightNum = Integer.toString(rnd.nextInt(3000));
+    f.originCity = origin;
+    f.destCity = dest;
+    f.time = time;
+    f.capacity = rnd.nextInt(20);
+    f.price = 100 + rnd.nextInt(900);
+    return f;
+  }
+
+  /**
+   * Session-level benchmarks against the database named in {@code config}. Each benchmark
+   * gets its own session and user so they do not see each other's reservations.
+   */
+  static List<Bench.Benchmark> endToEnd (final String config)
+  {
+    List<Bench.Benchmark> benchmarks = new ArrayList<>();
+
+    // session startup as Grader does it; compare runs with and without flightservice.pool.maxIdle
+    benchmarks.add(new Bench.Benchmark("Query.session")
+    {
+      Object invoke () throws Exception
+      {
+        Query q = new Query(config);
+        q.openConnection();
+        q.prepareStatements();
+        q.closeConnection();
+        return q;
+      }
+    });
+
+    benchmarks.add(new Session(config, "Query.transaction_search")
+    {
+      Object invoke ()
+      {
+        return q.transaction_search("Seattle WA", "Boston MA", false, 1, 10);
+      }
+    });
+
+    benchmarks.add(new Session(config, "Query.transaction_searchDays")
+    {
+      Object invoke ()
+      {
+        return q.transaction_searchDays("Seattle WA", "Boston MA", false, 1, 7, 10);
+      }
+    });
+
+    benchmarks.add(new Session(config, "Query.transaction_book")
+    {
+      boolean perInvocation ()
+      {
+        return true;
+      }
+
+      void beforeInvocation ()
+      {
+        cancelLast();
+      }
+
+      Object invoke ()
+      {
+        return book();
+      }
+    });
+
+    benchmarks.add(new Session(config, "Query.transaction_pay")
+    {
+      boolean perInvocation ()
+      {
+        return true;
+      }
+
+      void beforeInvocation ()
+      {
+        cancelLast();
+        book();
+      }
+
+      Object invoke ()
+      {
+        return q.transaction_pay(rid);
+      }
+    });
+
+    return benchmarks;
+  }
+
+  static abstract class Session extends Bench.Benchmark
+  {
+    static final Pattern RID = Pattern.compile(".*reservation ID: ?(\\d+)\\s*");
+    static int users;
+
+    final String config;
+    Query q;
+    int rid = -1;
+
+    Session (String config, String name)
+    {
+      super(name);
+      this.config = config;
+    }
+
+    void setUp () throws Exception
+    {
+      q = new Query(config);
+      q.openConnection();
+      q.prepareStatements();
+      String user = "bench" + System.nanoTime() % 100000 + "_" + users++;
+      q.transaction_createCustomer(user, user, Integer.MAX_VALUE / 2);
+      q.transaction_login(user, user);
+      q.transaction_search("Seattle WA", "Boston MA", true, 1, 1);
+    }
+
+    String book ()
+    {
+      String r = q.transaction_book(0);
+      java.util.regex.Matcher m = RID.matcher(r);
+      rid = m.matches() ? Integer.parseInt(m.group(1)) : -1;
+      return r;
+    }
+
+    void cancelLast ()
+    {
+      if (rid > 0)
+        q.transaction_cancel(rid);
+      rid = -1;
+    }
+
+    void tearDown () throws Exception
+    {
+      cancelLast();
+      q.closeConnection();
+    }
+  }
+
+  public static void main (String[] args) throws Exception
+  {
+    Bench bench = new Bench();
+    String output = null;
+    String baseline = null;
+    String config = null;
+
+    for (int i = 0; i < args.length; i++)
+    {
+      switch (args[i])
+      {
+        case "-wi": bench.warmupIterations = Integer.parseInt(args[++i]); break;
+        case "-i": bench.iterations = Integer.parseInt(args[++i]); break;
+        case "-t": bench.iterationMillis = Long.parseLong(args[++i]); break;
+        case "-f": bench.filter = Pattern.compile(args[++i]); break;
+        case "-o": output = args[++i]; break;
+        case "-baseline": baseline = args[++i]; break;
+        case "-config": config = args[++i]; break;
+        default:
+          System.err.println("unknown option " + args[i]);
+          System.exit(1);
+      }
+    }
+
+    List<Bench.Benchmark> benchmarks = offline();
+    if (config != null)
+      benchmarks.addAll(endToEnd(config));
+
+    List<Bench.Result> results = bench.run(benchmarks);
+    Map<String, Bench.Result> previous = baseline == null ? null : Bench.read(baseline);
+    Bench.print(results, previous);
+    if (output != null)
+      Bench.write(results, output);
+  }
+}
@@ -0,0 +1,22 @@
+#!/bin/bash
+
+if [[ "$#" -lt 1 ]]; then
+  echo "Usage: bench/runBenchmarks.sh <output folder> [benchmark options]"
+  echo "Compiles Query, FlightService and the benchmarks into <output folder> and runs them."
+  echo "Options: -wi <warmups> -i <iterations> -t <millis> -f <regex> -o <result file>"
+  echo "         -baseline <result file> -config <dbconn.properties of a local database>"
+  echo "WARNING: output folder is initially deleted and recreated!!!"
+  exit 1
+fi
+
+out=$1
+shift
+
+rm -rf $out
+mkdir $out
+
+echo "compiling benchmarks"
+javac -cp ./lib/sqljdbc4.jar -d $out *.java FlightBookingService/FlightService.java FlightBookingService/AdmissionControl.java bench/*.java || exit 1
+
+# run benchmarks in a fresh JVM with a fixed heap so GC counts are comparable between runs
+java -Xms1g -Xmx1g -cp ./lib/sqljdbc4.jar:$out QueryBenchmarks "$@"
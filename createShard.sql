@@ -0,0 +1,23 @@
+-- Tables of one day shard for flightservice.backend = sharded. Each shard holds the
+-- reservations and seat counts of the days d with (d - 1) % flightservice.shards equal to
+-- its number; users, flights and the reservation_ids sequence stay in the global database
+-- (createTables.sql).
+
+create table reservations(
+	rid int,
+	username varchar(20),
+	day int,
+	fid1 int,
+	fid2 int,
+	price1 int,
+	price2 int,
+	paid int,
+	PRIMARY KEY(rid)
+);
+create index reservations_user_day on reservations(username, day);
+
+create table capacity(
+	fid int,
+	capacity int,
+	PRIMARY KEY(fid)
+);
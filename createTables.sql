@@ -29,6 +29,7 @@ create table users(
 	username varchar(20);
 	password varchar(20);
 	balance int,
+	ver rowversion,
 	Primary Key(username)
 	)
 
@@ -41,12 +42,46 @@ create table reservations(
 	price1 int,
     price2 int,
 	paid int,
+	ver rowversion,
 	PRIMARY KEY(rid)
 );
 
 create table capacity(
 	fid int,
 	capacity int,
+	ver rowversion,
 	FOREIGN KEY(fid) REFERENCES FLIGHTS(fid)
 	);
 
+-- change capture for ChangeFeed (reservations) and ReadReplica (lag of all tables): every
+-- insert and update bumps ver, and deletes leave a tombstone in deletions (tbl is 'u', 'r'
+-- or 'c', k the deleted key)
+create index users_ver on users(ver);
+create index reservations_ver on reservations(ver);
+create index capacity_ver on capacity(ver);
+
+create table deletions(
+	tbl char(1),
+	k varchar(20),
+	ver rowversion
+	);
+create index deletions_ver on deletions(ver);
+GO
+
+create trigger users_deleted on users after delete as
+	insert into deletions (tbl, k) select 'u', username from deleted;
+GO
+
+create trigger reservations_deleted on reservations after delete as
+	insert into deletions (tbl, k) select 'r', cast(rid as varchar(20)) from deleted;
+GO
+
+create trigger capacity_deleted on capacity after delete as
+	insert into deletions (tbl, k) select 'c', cast(fid as varchar(20)) from deleted;
+GO
+
+
+-- reservation ids when reservations are sharded by day (flightservice.backend = sharded);
+-- the tables above except users then live in the day shards, see createShard.sql
+create sequence reservation_ids as int start with 1;
+GO